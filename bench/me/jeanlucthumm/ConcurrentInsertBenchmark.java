@@ -0,0 +1,72 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Inserts a whole {@link Dataset} into a {@link ConcurrentQuadTree} from a
+ * number of threads at once, to show how inserts scale with cores
+ *
+ * @author Jean-Luc Thumm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConcurrentInsertBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"uniform", "clustered", "sorted"})
+    public String dataset;
+
+    @Param("42")
+    public long seed;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private PointColumns points;
+    private Rectangle2D bounds;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        points = Dataset.of(dataset).generate(size, seed);
+        bounds = points.getBounds();
+        pool = new ForkJoinPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public long insert() {
+        return pool.submit(() -> {
+            ConcurrentQuadTree tree = new ConcurrentQuadTree(bounds);
+            IntStream.range(0, size).parallel().forEach(i -> tree.add(points.getX(i), points.getY(i)));
+            return tree.getSize();
+        }).join();
+    }
+}
@@ -0,0 +1,122 @@
+package me.jeanlucthumm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic data sets for the benchmarks. Each shape stresses the tree
+ * differently: uniform points give a balanced tree, clustered points give
+ * deep narrow subtrees next to empty ones, and sorted points arrive in the
+ * order of a time series such as {@code data.csv}.
+ *
+ * @author Jean-Luc Thumm
+ */
+enum Dataset {
+
+    /** Points spread evenly over the unit square */
+    UNIFORM {
+        @Override
+        void fill(PointColumns points, int size, Random random) {
+            for (int i = 0; i < size; i++) points.add(random.nextDouble(), random.nextDouble());
+        }
+    },
+
+    /** Most points packed into a few tight clusters of very different spreads, the rest uniform */
+    CLUSTERED {
+        @Override
+        void fill(PointColumns points, int size, Random random) {
+            int clusters = 16;
+            double[] centerXs = new double[clusters];
+            double[] centerYs = new double[clusters];
+            double[] spreads = new double[clusters];
+            for (int c = 0; c < clusters; c++) {
+                centerXs[c] = random.nextDouble();
+                centerYs[c] = random.nextDouble();
+                spreads[c] = Math.pow(10, -2 - 3 * random.nextDouble()); // 1e-2 down to 1e-5
+            }
+            for (int i = 0; i < size; i++) {
+                if (random.nextInt(10) == 0) {
+                    points.add(random.nextDouble(), random.nextDouble());
+                    continue;
+                }
+                int c = random.nextInt(clusters);
+                points.add(centerXs[c] + spreads[c] * random.nextGaussian(),
+                        centerYs[c] + spreads[c] * random.nextGaussian());
+            }
+        }
+    },
+
+    /** Time series with evenly spaced, increasing x and a random walk for y */
+    SORTED {
+        @Override
+        void fill(PointColumns points, int size, Random random) {
+            double y = 0;
+            for (int i = 0; i < size; i++) {
+                y += random.nextGaussian();
+                points.add(0.125 * i, y);
+            }
+        }
+    };
+
+    /**
+     * Generates {@code size} points. The same seed always gives the same points.
+     */
+    PointColumns generate(int size, long seed) {
+        PointColumns points = new PointColumns(size);
+        fill(points, size, new Random(seed));
+        return points;
+    }
+
+    abstract void fill(PointColumns points, int size, Random random);
+
+    /**
+     * Writes points as a CSV file with a header, like the files the application reads
+     */
+    static void write(PointColumns points, Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            writer.write("x,y\n");
+            for (int i = 0; i < points.size(); i++) {
+                writer.write(Double.toString(points.getX(i)));
+                writer.write(',');
+                writer.write(Double.toString(points.getY(i)));
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Copies points in order of increasing x, as {@link SortedIndex} takes
+     * them, or returns them as they are if they already are
+     */
+    static PointColumns sortedByX(PointColumns points) {
+        boolean sorted = true;
+        for (int i = 1; i < points.size() && sorted; i++) sorted = points.getX(i) > points.getX(i - 1);
+        if (sorted) return points;
+        Integer[] order = new Integer[points.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble(points::getX));
+        PointColumns copy = new PointColumns(points.size());
+        for (int i : order) copy.add(points.getX(i), points.getY(i));
+        return copy;
+    }
+
+    /**
+     * @param id name as given by {@link #id()}
+     */
+    static Dataset of(String id) {
+        return valueOf(id.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return lower case name, as used on the command line and in results
+     */
+    String id() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,88 @@
+package me.jeanlucthumm;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.IntStream;
+
+/**
+ * A {@link Dataset} and an index of it, shared by the benchmarks that query
+ * and render indexes. The index is one of:
+ * <ul>
+ *     <li>{@code tree}, a bulk built {@link QuadTree}</li>
+ *     <li>{@code concurrent}, a {@link ConcurrentQuadTree} filled from every core</li>
+ *     <li>{@code compact}, a {@link CompactQuadTree} of the bulk built tree</li>
+ *     <li>{@code sorted}, a {@link SortedIndex} of the points sorted by x</li>
+ *     <li>{@code paged}, a {@link PagedQuadTree} on disk read through a 16 MB cache</li>
+ * </ul>
+ *
+ * @author Jean-Luc Thumm
+ */
+@State(Scope.Benchmark)
+public class IndexedDataset {
+
+    private static final double COMPACT_ERROR = 1e-6; // error of compacted coordinates, as a fraction of extent
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"uniform", "clustered", "sorted"})
+    public String dataset;
+
+    @Param("42")
+    public long seed;
+
+    @Param({"tree", "concurrent", "compact", "sorted", "paged"})
+    public String index;
+
+    PointColumns points;
+    PointIndex built;
+    private Path paged;
+
+    @Setup(Level.Trial)
+    public void build() throws IOException {
+        points = Dataset.of(dataset).generate(size, seed);
+        switch (index) {
+            case "tree":
+                built = new QuadTree(points.getBounds(), points);
+                break;
+            case "concurrent":
+                ConcurrentQuadTree concurrent = new ConcurrentQuadTree(points.getBounds());
+                IntStream.range(0, size).parallel().forEach(i -> concurrent.add(points.getX(i), points.getY(i)));
+                built = concurrent;
+                break;
+            case "compact":
+                QuadTree tree = new QuadTree(points.getBounds(), points);
+                built = tree.compact(COMPACT_ERROR * tree.getBounds().getWidth(),
+                        COMPACT_ERROR * tree.getBounds().getHeight());
+                break;
+            case "sorted":
+                points = Dataset.sortedByX(points);
+                built = new SortedIndex(points);
+                break;
+            case "paged":
+                paged = Files.createTempFile("benchmark", PagedQuadTree.EXTENSION);
+                PagedQuadTree pagedTree = PagedQuadTree.create(paged, points.getBounds(),
+                        IngestBenchmark.PAGED_CACHE_BYTES);
+                for (int i = 0; i < size; i++) pagedTree.add(points.getX(i), points.getY(i));
+                built = pagedTree;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown index " + index);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        if (paged == null) return;
+        ((PagedQuadTree) built).close();
+        PagedQuadTree.delete(paged);
+    }
+}
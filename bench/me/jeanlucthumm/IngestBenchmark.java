@@ -0,0 +1,120 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and indexes a whole {@link Dataset}: parsing it from CSV, inserting
+ * it point by point, bulk building a tree of it, keeping a rolling window
+ * of it, and building the index by x and a tree paged from disk. Every
+ * operation covers the whole data set, so scores are per data set rather
+ * than per point.
+ *
+ * @author Jean-Luc Thumm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IngestBenchmark {
+
+    static final long PAGED_CACHE_BYTES = 1 << 24; // page cache of trees on disk, smaller than large sets
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"uniform", "clustered", "sorted"})
+    public String dataset;
+
+    @Param("42")
+    public long seed;
+
+    private PointColumns points;
+    private PointColumns sorted; // the same points by increasing x
+    private Rectangle2D bounds;
+    private Path csv;
+    private Path paged;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        points = Dataset.of(dataset).generate(size, seed);
+        sorted = Dataset.sortedByX(points);
+        bounds = points.getBounds();
+        csv = Files.createTempFile("benchmark", ".csv");
+        Dataset.write(points, csv);
+        paged = Files.createTempFile("benchmark", PagedQuadTree.EXTENSION);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        Files.delete(csv);
+        PagedQuadTree.delete(paged);
+    }
+
+    @Benchmark
+    public int parse() throws IOException {
+        return new CSVReader(csv.toString()).read()[0].size();
+    }
+
+    @Benchmark
+    public long insert() {
+        QuadTree tree = new QuadTree(bounds);
+        for (int i = 0; i < size; i++) tree.add(points.getX(i), points.getY(i));
+        return tree.getSize();
+    }
+
+    @Benchmark
+    public long bulk() {
+        return new QuadTree(bounds, points).getSize();
+    }
+
+    /**
+     * Every point goes in but only the latest tenth is kept, merging as a window does
+     */
+    @Benchmark
+    public long window() {
+        QuadTree tree = new QuadTree(bounds);
+        int window = Math.max(size / 10, 1);
+        for (int i = 0; i < size; i++) {
+            tree.add(points.getX(i), points.getY(i));
+            if (i >= window) tree.remove(points.getX(i - window), points.getY(i - window));
+            if ((i & 1023) == 1023) tree.merge(1 << 12);
+        }
+        return tree.getSize();
+    }
+
+    /**
+     * Builds the index by x from the points sorted by x
+     */
+    @Benchmark
+    public long sortedBuild() {
+        return new SortedIndex(sorted).getSize();
+    }
+
+    @Benchmark
+    public long pagedInsert() throws IOException {
+        try (PagedQuadTree tree = PagedQuadTree.create(paged, bounds, PAGED_CACHE_BYTES)) {
+            for (int i = 0; i < size; i++) tree.add(points.getX(i), points.getY(i));
+            return tree.getSize();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Range queries, counts, aggregates and nearest neighbor searches on an
+ * {@link IndexedDataset}. Windows covering 1% and 10% of the extent and
+ * nearest neighbor searches are centered on data points, so they land where
+ * the data is. Scores are per query.
+ *
+ * @author Jean-Luc Thumm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    private static final int QUERIES = 1000; // queries per invocation
+
+    private PointIndex index;
+    private Rectangle2D[] small;   // windows of 1% of the extent
+    private Rectangle2D[] large;   // windows of 10% of the extent
+    private double[] xs;           // where nearest neighbors are searched
+    private double[] ys;
+    private final PointBuffer buffer = new PointBuffer();
+    private final RegionStats stats = new RegionStats();
+
+    @Setup(Level.Trial)
+    public void generate(IndexedDataset data) {
+        index = data.built;
+        Random random = new Random(data.seed);
+        small = windows(data, 0.01, random);
+        large = windows(data, 0.1, random);
+
+        Rectangle2D bounds = index.getBounds();
+        xs = new double[QUERIES];
+        ys = new double[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            int p = random.nextInt(data.points.size());
+            xs[q] = data.points.getX(p) + 1e-3 * bounds.getWidth() * random.nextGaussian();
+            ys[q] = data.points.getY(p) + 1e-3 * bounds.getHeight() * random.nextGaussian();
+        }
+    }
+
+    private static Rectangle2D[] windows(IndexedDataset data, double fraction, Random random) {
+        Rectangle2D bounds = data.built.getBounds();
+        double width = fraction * bounds.getWidth();
+        double height = fraction * bounds.getHeight();
+        Rectangle2D[] windows = new Rectangle2D[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            int p = random.nextInt(data.points.size());
+            windows[q] = new Rectangle2D(data.points.getX(p) - width / 2, data.points.getY(p) - height / 2,
+                    width, height);
+        }
+        return windows;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long range1pct() {
+        return range(small);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long range10pct() {
+        return range(large);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long count1pct() {
+        return count(small);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long count10pct() {
+        return count(large);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long aggregate1pct() {
+        return aggregate(small);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long aggregate10pct() {
+        return aggregate(large);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long nearest1() {
+        long found = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            index.nearest(xs[q], ys[q], 1, 1, 1, Double.POSITIVE_INFINITY, buffer);
+            found += buffer.getIndex(0);
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public long nearest10() {
+        long found = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            index.nearest(xs[q], ys[q], 1, 1, 10, Double.POSITIVE_INFINITY, buffer);
+            found += buffer.size();
+        }
+        return found;
+    }
+
+    private long range(Rectangle2D[] windows) {
+        long found = 0;
+        for (Rectangle2D window : windows) {
+            index.query(window, buffer);
+            found += buffer.size();
+        }
+        return found;
+    }
+
+    private long count(Rectangle2D[] windows) {
+        long found = 0;
+        for (Rectangle2D window : windows) found += index.count(window);
+        return found;
+    }
+
+    private long aggregate(Rectangle2D[] windows) {
+        long found = 0;
+        for (Rectangle2D window : windows) {
+            index.aggregate(window, stats);
+            found += stats.getCount();
+        }
+        return found;
+    }
+}
@@ -0,0 +1,76 @@
+package me.jeanlucthumm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares two runs of the benchmarks, written by JMH with
+ * {@code -rf csv}, and reports every benchmark whose score got worse by
+ * more than a threshold. Every benchmark here reports time per operation,
+ * so a higher score is worse. Results of profilers, such as {@code -prof gc},
+ * are left out. Exits with status 1 if anything regressed.
+ * <p>
+ * Usage: {@code java me.jeanlucthumm.Regressions baseline.csv results.csv [threshold]},
+ * the threshold being a fraction, 0.1 by default.
+ *
+ * @author Jean-Luc Thumm
+ */
+class Regressions {
+
+    private static final int SCORE = 4; // column of the score, after name, mode, threads and samples
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: Regressions baseline.csv results.csv [threshold]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+        Map<String, Double> before = scores(args[0]);
+        Map<String, Double> after = scores(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, Double> entry : after.entrySet()) {
+            Double old = before.get(entry.getKey());
+            if (old == null || entry.getValue() <= old * (1 + threshold)) continue;
+            System.out.printf(Locale.ROOT, "REGRESSION %s: %.3f -> %.3f (%+.0f%%)%n", entry.getKey(), old,
+                    entry.getValue(), 100 * (entry.getValue() / old - 1));
+            regressions++;
+        }
+        System.out.printf("%d regressions against %s%n", regressions, args[0]);
+        if (regressions > 0) System.exit(1);
+    }
+
+    /**
+     * @return score of every benchmark in a results file, by benchmark name and parameters
+     */
+    private static Map<String, Double> scores(String path) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(path));
+        Map<String, Double> scores = new HashMap<>();
+        String[] header = fields(lines.get(0));
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = fields(line);
+            if (fields[0].contains(":")) continue; // a profiler's result
+            StringBuilder key = new StringBuilder(fields[0]);
+            for (int i = 0; i < fields.length; i++) {
+                if (header[i].startsWith("Param: ")) key.append(' ').append(header[i].substring(7)).append('=')
+                        .append(fields[i]);
+            }
+            scores.put(key.toString(), Double.parseDouble(fields[SCORE]));
+        }
+        return scores;
+    }
+
+    /**
+     * Splits a line of JMH's CSV, whose fields never hold commas
+     */
+    private static String[] fields(String line) {
+        String[] fields = line.split(",", -1);
+        for (int i = 0; i < fields.length; i++) fields[i] = fields[i].replace("\"", "");
+        return fields;
+    }
+}
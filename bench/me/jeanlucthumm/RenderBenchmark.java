@@ -0,0 +1,90 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Traverses an {@link IndexedDataset} to draw tiles the way
+ * {@link Renderer} does, into a {@link PixelRaster} and without a JavaFX
+ * toolkit: the whole data set in one tile, the first and coarsest drawing
+ * of that tile while it is refined, and tiles zoomed in 64 times around
+ * data points. Scores are per tile.
+ *
+ * @author Jean-Luc Thumm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    private static final int TILE = Renderer.TILE_SIZE;
+    private static final int ZOOMED = 16; // zoomed in tiles per invocation
+
+    private PointIndex index;
+    private final Rectangle2D tileBounds = new Rectangle2D(0, 0, TILE, TILE);
+    private final PixelRaster raster = new PixelRaster(TILE, TILE, 0xFF0000FF, 0xFF000000, false);
+    private final TraversalStats traversal = new TraversalStats();
+    private ZoomLevel whole;
+    private ZoomLevel[] zoomed;
+
+    @Setup(Level.Trial)
+    public void generate(IndexedDataset data) {
+        index = data.built;
+        Rectangle2D bounds = index.getBounds();
+        whole = new ZoomLevel(bounds.getMinX(), bounds.getMinY(), TILE / bounds.getWidth(),
+                TILE / bounds.getHeight());
+
+        Random random = new Random(data.seed);
+        zoomed = new ZoomLevel[ZOOMED];
+        double width = bounds.getWidth() / 64;
+        double height = bounds.getHeight() / 64;
+        for (int r = 0; r < ZOOMED; r++) {
+            int p = random.nextInt(data.points.size());
+            zoomed[r] = new ZoomLevel(data.points.getX(p) - width / 2, data.points.getY(p) - height / 2,
+                    TILE / width, TILE / height);
+        }
+    }
+
+    @Benchmark
+    public int whole() {
+        raster.clear();
+        index.graphPointsAndBoundaries(raster, whole, tileBounds, () -> false, traversal);
+        return raster.getPixels()[TILE / 2];
+    }
+
+    @Benchmark
+    public int preview() {
+        raster.clear();
+        index.graphPointsAndBoundaries(raster, whole, tileBounds, Renderer.PREVIEW_GRAIN, () -> false, traversal);
+        return raster.getPixels()[TILE / 2];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ZOOMED)
+    public long zoomed() {
+        long drawn = 0;
+        for (ZoomLevel level : zoomed) {
+            raster.clear();
+            index.graphPointsAndBoundaries(raster, level, tileBounds, () -> false, traversal);
+            drawn += raster.getPixels()[TILE / 2];
+        }
+        return drawn;
+    }
+}
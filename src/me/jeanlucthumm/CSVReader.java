@@ -1,84 +1,417 @@
 package me.jeanlucthumm;
 
-import javafx.geometry.Point2D;
-import javafx.util.Pair;
-
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
+/**
+ * Reads a CSV file whose first column is x and every other column is the y
+ * of a series, such as {@code time,temperature,pressure}. All series are
+ * parsed in the same pass over the file, into a column of points each. The
+ * header line names the series.
+ *
+ * @author Jean-Luc Thumm
+ */
 class CSVReader {
 
     static final String IOERROR_MSG = "I/O Error ";
     static final String NOFIND_MSG = "Could not find file ";
-    private static final String EMPTY_MSG = "File empty ";
+    static final String EMPTY_MSG = "File empty ";
+
+    private static final int BUFFER_SIZE = 1 << 22; // bytes read from the channel at a time
+    private static final int MAX_EXACT_EXP = 22;    // largest power of ten a double holds exactly
+    private static final double[] POW10 = new double[MAX_EXACT_EXP + 1];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+    }
 
     private String path;
+    private ByteBuffer buffer;  // kept between reads so that tailing allocates nothing per poll
+    private long position;      // offset just past the last complete line read
+    private boolean header;     // whether the header line is still to come
+    private String[] names;     // of the series, from the header, or null until it is read
+    private boolean sorted;     // whether x strictly increased over every row read so far
+    private double lastX;       // x of the last row read
+    private long rowLimit = Long.MAX_VALUE; // rows after which a read stops
+
+    // Statistics of the last read
+    private long rows;
+    private long malformed;
+    private long elapsedNanos;
+
+    // Set by parseDouble when a field could not be parsed
+    private boolean parseError;
 
     CSVReader(String path) {
         this.path = path;
+        header = true;
+        sorted = true;
+        lastX = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Reads every point of every series in a single pass. Doubles are parsed
+     * straight from the bytes of a large channel buffer, so no objects are
+     * created per row. Lines whose x is not numeric, or that have no numeric
+     * y, are skipped and counted as malformed. An empty or non-numeric y
+     * leaves a gap in its series only.
+     *
+     * @return columns of the points read, one per series in the order of
+     * {@link #getSeriesNames()}, or {@code null} if the file is empty
+     * @throws IOException if the file could not be read
+     */
+    PointColumns[] read() throws IOException {
+        rows = 0;
+        malformed = 0;
+        long start = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (!readHeader(channel)) {
+                System.err.println(EMPTY_MSG + path);
+                return null;
+            }
+            PointColumns[] points = newColumns();
+            header = true;
+            sorted = true;
+            lastX = Double.NEGATIVE_INFINITY;
+            position = parse(channel, 0, true, points);
+            elapsedNanos = System.nanoTime() - start;
+            return points;
+        }
+    }
+
+    /**
+     * Reads the points in lines appended since the last read. A line still
+     * being written, with no newline yet, is left for the next call. If the
+     * file shrank, it is assumed to have been replaced and is read again from
+     * the start.
+     *
+     * @return columns of the new points, one per series, empty if there are none
+     * @throws IOException if the file could not be read
+     */
+    PointColumns[] readAppended() throws IOException {
+        rows = 0;
+        malformed = 0;
+        long start = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (names == null && !readHeader(channel)) return newColumns();
+            PointColumns[] points = newColumns();
+            if (channel.size() < position) {
+                position = 0;
+                header = true;
+            }
+            if (channel.size() > position) position = parse(channel, position, false, points);
+            elapsedNanos = System.nanoTime() - start;
+            return points;
+        }
+    }
+
+    /**
+     * Like {@link #readAppended()}, but stops after a number of rows, so
+     * that a file too large for memory can be read in batches. A read that
+     * returns fewer rows reached the end of the file.
+     *
+     * @param maxRows rows to read at most
+     */
+    PointColumns[] readAppended(long maxRows) throws IOException {
+        rowLimit = maxRows;
+        try {
+            return readAppended();
+        } finally {
+            rowLimit = Long.MAX_VALUE;
+        }
     }
 
-    boolean readData(QuadTree tree) throws IOException {
-        // Try to set up reader
-        FileReader file = new FileReader(path);
-        BufferedReader in = new BufferedReader(file);
+    /**
+     * Names of the series, from the header line. The series stay the same
+     * for the life of the reader, even if the file is replaced.
+     *
+     * @return SE, or {@code null} if the file is empty
+     * @throws IOException if the header had to be read and could not be
+     */
+    String[] getSeriesNames() throws IOException {
+        if (names == null) {
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                readHeader(channel);
+            }
+        }
+        return names;
+    }
 
-        // Skip header
-        if (in.readLine() == null) {
-            System.err.println(EMPTY_MSG + path);
-            in.close();
-            file.close();
-            return false;
+    /**
+     * Reads the names of the series from the header line, once
+     *
+     * @return {@code false} if the file is empty
+     */
+    private boolean readHeader(FileChannel channel) throws IOException {
+        if (names != null) return true;
+        ByteBuffer line = ByteBuffer.allocate(1 << 12);
+        long offset = 0;
+        int end = -1;
+        while (end < 0) {
+            int read = channel.read(line, offset);
+            if (read < 0) break;
+            offset += read;
+            for (int i = 0; i < line.position(); i++) {
+                if (line.get(i) == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0 && !line.hasRemaining()) {
+                line = ByteBuffer.allocate(line.capacity() * 2).put(line.flip());
+            }
         }
+        if (end < 0) end = line.position();
+        if (end == 0) return false;
 
-        // Read every point and add to tree
-        String line;
-        while ((line = in.readLine()) != null) {
-            String[] data = line.trim().split(",");
-            double x = Double.parseDouble(data[0]);
-            double y = Double.parseDouble(data[1]);
-            Point2D point = new Point2D(x, y);
-            if (!tree.add(point));
-//                System.err.println("Could not add point: " + point); // TODO uncomment
+        // Every column after the first is a series, even if unnamed
+        String[] columns = new String(line.array(), 0, end, StandardCharsets.UTF_8).trim().split(",", -1);
+        names = new String[Math.max(1, columns.length - 1)];
+        for (int i = 0; i < names.length; i++) {
+            String name = i + 1 < columns.length ? columns[i + 1].trim() : "";
+            names[i] = name.isEmpty() ? "y" + (i + 1) : name;
         }
-        in.close();
-        file.close();
         return true;
     }
 
-    Pair<Point2D, Point2D> getMinMax() throws IOException {
-        // Try to set up reader
-        FileReader file = new FileReader(path);
-        BufferedReader in = new BufferedReader(file);
-
-        // Skip header
-        if (in.readLine() == null) {
-            System.err.println(EMPTY_MSG + path);
-            in.close();
-            file.close();
-            return null;
-        }
-
-        // Get the min values for each axis
-        double minX = Double.MAX_VALUE;
-        double maxX = -Double.MAX_VALUE;
-        double minY = Double.MAX_VALUE;
-        double maxY = -Double.MAX_VALUE;
-
-        String line;
-        while ((line = in.readLine()) != null) {
-            String[] data = line.trim().split(",");
-            double x = Double.parseDouble(data[0]);
-            double y = Double.parseDouble(data[1]);
-            // Check bounds
-            if (x < minX) minX = x;
-            if (x > maxX) maxX = x;
-            if (y < minY) minY = y;
-            if (y > maxY) maxY = y;
-        }
-        in.close();
-        file.close();
-        return new Pair<>(new Point2D(minX, minY), new Point2D(maxX, maxY));
+    private PointColumns[] newColumns() {
+        PointColumns[] points = new PointColumns[names.length];
+        for (int i = 0; i < points.length; i++) points[i] = new PointColumns();
+        return points;
+    }
+
+    /**
+     * Continues from a byte offset that was read some other way, such as
+     * the size of the file an {@link IndexFile} was built from
+     */
+    void seek(long position) {
+        this.position = position;
+        header = position == 0;
+    }
+
+    /**
+     * @return offset just past the last complete line read
+     */
+    long getPosition() {
+        return position;
+    }
+
+    /**
+     * Parses every line from {@code from} to the end of the file, or until
+     * {@link #rowLimit} rows are read
+     *
+     * @param lastLine whether to also parse a last line that has no newline
+     * @return offset just past the last line ending in a newline
+     */
+    private long parse(FileChannel channel, long from, boolean lastLine, PointColumns[] points)
+            throws IOException {
+        channel.position(from);
+        if (buffer == null) buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.clear();
+        byte[] bytes = buffer.array();
+        long consumed = from;
+        boolean eof = false;
+
+        while (!eof) {
+            eof = channel.read(buffer) < 0;
+            int limit = buffer.position();
+            int lineStart = 0;
+
+            // Parse every complete line in the buffer
+            for (int i = 0; i < limit; i++) {
+                if (bytes[i] != '\n') continue;
+                parseLineOrHeader(bytes, lineStart, i, points);
+                lineStart = i + 1;
+                if (rows >= rowLimit) return consumed + lineStart;
+            }
+            consumed += lineStart;
+
+            // Last line may not end with a newline
+            if (eof && lastLine && lineStart < limit) {
+                parseLineOrHeader(bytes, lineStart, limit, points);
+            }
+
+            // Carry the partial line over to the next read
+            if (lineStart == 0 && limit == bytes.length) {
+                buffer = ByteBuffer.allocate(bytes.length * 2).put(bytes, 0, limit);
+                bytes = buffer.array();
+            } else {
+                System.arraycopy(bytes, lineStart, bytes, 0, limit - lineStart);
+                buffer.position(limit - lineStart);
+            }
+        }
+        return consumed;
+    }
+
+    private void parseLineOrHeader(byte[] bytes, int from, int to, PointColumns[] points) {
+        if (header) header = false; // skip header
+        else parseLine(bytes, from, to, points);
+    }
+
+    /**
+     * Parses the line in {@code bytes[from, to)} and adds a point to the
+     * columns of each series with a numeric y
+     */
+    private void parseLine(byte[] bytes, int from, int to, PointColumns[] points) {
+        // Blank lines are not data
+        int end = to;
+        while (end > from && bytes[end - 1] <= ' ') end--;
+        if (end == from) return;
+
+        int comma = indexOf(bytes, ',', from, end);
+        if (comma < 0) {
+            malformed++;
+            return;
+        }
+        double x = parseDouble(bytes, from, comma);
+        if (parseError) {
+            malformed++;
+            return;
+        }
+
+        // Columns past the last series are ignored
+        int added = 0;
+        for (int series = 0, field = comma + 1; series < points.length && field <= end; series++) {
+            int next = indexOf(bytes, ',', field, end);
+            if (next < 0) next = end;
+            double y = parseDouble(bytes, field, next);
+            if (!parseError) {
+                points[series].add(x, y);
+                added++;
+            }
+            field = next + 1;
+        }
+        if (added == 0) {
+            malformed++;
+            return;
+        }
+        rows++;
+        if (!(x > lastX)) sorted = false;
+        lastX = x;
+    }
+
+    private static int indexOf(byte[] bytes, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == c) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a decimal number from {@code bytes[from, to)} without creating
+     * any objects. Numbers that cannot be converted exactly with a single
+     * multiplication or division fall back to {@link Double#parseDouble(String)}.
+     * Sets {@link #parseError} if the field is not a number.
+     */
+    private double parseDouble(byte[] bytes, int from, int to) {
+        parseError = false;
+
+        // Trim
+        while (from < to && bytes[from] <= ' ') from++;
+        while (to > from && bytes[to - 1] <= ' ') to--;
+        if (from == to) {
+            parseError = true;
+            return 0;
+        }
+
+        int i = from;
+        boolean negative = bytes[i] == '-';
+        if (negative || bytes[i] == '+') i++;
+
+        long mantissa = 0;
+        int exp = 0;
+        int digits = 0;
+        boolean exact = true;
+        boolean any = false;
+
+        // Integer part
+        for (; i < to && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (bytes[i] - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exp++;
+                exact = false;
+            }
+        }
+        // Fractional part
+        if (i < to && bytes[i] == '.') {
+            for (i++; i < to && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (bytes[i] - '0');
+                    if (mantissa != 0) digits++;
+                    exp--;
+                } else {
+                    exact = false;
+                }
+            }
+        }
+        // Exponent
+        if (any && i < to && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i++;
+            boolean negativeExp = i < to && bytes[i] == '-';
+            if (i < to && (negativeExp || bytes[i] == '+')) i++;
+            int e = 0;
+            boolean expDigits = false;
+            for (; i < to && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+                expDigits = true;
+                if (e < 100000) e = e * 10 + (bytes[i] - '0');
+            }
+            if (!expDigits) any = false;
+            exp += negativeExp ? -e : e;
+        }
+
+        // Anything unusual (NaN, hex, too many digits) goes through the slow path
+        if (!any || i != to || !exact || mantissa > (1L << 53)
+                || exp < -MAX_EXACT_EXP || exp > MAX_EXACT_EXP) {
+            try {
+                return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                parseError = true;
+                return 0;
+            }
+        }
+
+        double value = exp < 0 ? mantissa / POW10[-exp] : mantissa * POW10[exp];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Whether x strictly increased from each row to the next over every
+     * read so far, as it does in a time series. Such series can be indexed
+     * by a {@link SortedIndex}.
+     */
+    boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * @return number of rows read during the last {@link #read()} or {@link #readAppended()}
+     */
+    long getRowCount() {
+        return rows;
+    }
+
+    /**
+     * @return number of lines skipped during the last {@link #read()} or {@link #readAppended()}
+     */
+    long getMalformedCount() {
+        return malformed;
+    }
+
+    /**
+     * @return ingest throughput of the last {@link #read()} or {@link #readAppended()}
+     */
+    double getRowsPerSecond() {
+        return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos;
     }
 }
@@ -0,0 +1,641 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Read only copy of a {@link QuadTree} that stores coordinates as fixed
+ * point offsets within the cell of the node holding them, instead of as
+ * doubles. A node's cell is known from the path to it, so an offset of 16
+ * bits per axis locates a point to 1/65535 of its cell, and deep nodes with
+ * small cells need nothing more. Nodes whose cell is too large for 16 bits
+ * to meet the error bound store 32 bits per axis instead. The extent of
+ * each node's points is stored the same way in 16 bits, rounded outward so
+ * that it still contains them.
+ * <p>
+ * Nodes hold their points in one run of words and their children are
+ * numbered consecutively, so there are no links between points either. A
+ * point costs 4 bytes instead of the 20 a {@link QuadTree} spends on it,
+ * and a node 20 instead of 76.
+ * <p>
+ * Coordinates are decoded on the fly by every traversal. They differ from
+ * the originals by at most {@link #getErrorX()} and {@link #getErrorY()},
+ * which are measured while compacting. As long as the view does not zoom in
+ * so far that this error reaches half a pixel, points are drawn exactly
+ * where the originals would be. Queries and counts compare the decoded
+ * coordinates, and visitors are given the position of a point in the
+ * tree's storage as its index.
+ * <p>
+ * Points cannot be added: {@link #add} always returns {@code false}.
+ *
+ * @author Jean-Luc Thumm
+ */
+class CompactQuadTree implements PointIndex {
+
+    private static final int NONE = NodeColumns.NONE;
+    private static final int SHORT_MAX = 0xFFFF;        // largest 16-bit offset
+    private static final long INT_MAX = 0xFFFFFFFFL;    // largest 32-bit offset
+
+    private final Rectangle2D bounds;
+    private final long size;
+    private final int deepest;
+    private final double errorX;    // largest difference between a decoded and an original x
+    private final double errorY;
+
+    // Node i has children quads[i] .. quads[i] + 3 (ne, nw, sw, se), or NONE
+    // if it is a leaf. Nodes are numbered breadth first, and node i holds
+    // its own points in words[firstWord[i], firstWord[i + 1]): a word per
+    // point with the x offset in the high and the y offset in the low 16
+    // bits, or if the node is wide, two words per point, x then y.
+    private final int[] quads;
+    private final int[] counts;
+    private final int[] firstWord;
+    private final long[] wide;      // bit set of the nodes with 32-bit offsets
+    private final char[] extents;   // offsets of minX, minY, maxX, maxY of node i's points at 4 * i
+    private final int[] words;
+
+    /**
+     * Compacts the nodes and points of a tree, see {@link QuadTree#compact}
+     *
+     * @param maxErrorX largest difference allowed between a decoded and an
+     *                  original x, which picks 16 or 32 bits per node
+     * @param maxErrorY same for y
+     */
+    CompactQuadTree(Rectangle2D bounds, long size, NodeColumns nodes, PointColumns points, double maxErrorX,
+                    double maxErrorY) {
+        this.bounds = bounds;
+        this.size = size;
+        int nodeCount = nodes.size();
+        quads = new int[nodeCount];
+        counts = new int[nodeCount];
+        firstWord = new int[nodeCount + 1];
+        wide = new long[(nodeCount + 63) >>> 6];
+        extents = new char[4 * nodeCount];
+
+        // Cell of each node, and the node of the tree it copies
+        int[] sources = new int[nodeCount];
+        double[] cellMinXs = new double[nodeCount];
+        double[] cellMinYs = new double[nodeCount];
+        int[] depths = new int[nodeCount];
+        cellMinXs[0] = bounds.getMinX();
+        cellMinYs[0] = bounds.getMinY();
+
+        // Copy nodes breadth first, encoding the points of each
+        int[] words = new int[(int) Math.min(size + 16, Integer.MAX_VALUE - 8)];
+        int wordCount = 0;
+        int allocated = 1;
+        int deepest = -1;
+        double errorX = 0;
+        double errorY = 0;
+        for (int node = 0; node < allocated; node++) {
+            int source = sources[node];
+            double width = cellWidth(depths[node]);
+            double height = cellHeight(depths[node]);
+            double minX = cellMinXs[node];
+            double minY = cellMinYs[node];
+            boolean isWide = width / (2.0 * SHORT_MAX) > maxErrorX || height / (2.0 * SHORT_MAX) > maxErrorY;
+            if (isWide) wide[node >>> 6] |= 1L << node;
+            firstWord[node] = wordCount;
+            counts[node] = nodes.getCount(source);
+
+            for (int p = nodes.getData(source); p != NONE; p = nodes.getNext(p)) {
+                if (wordCount + 2 > words.length) words = Arrays.copyOf(words, words.length + (words.length >> 1));
+                double x = points.getX(p);
+                double y = points.getY(p);
+                long offsetX = encode(x, minX, width, isWide ? INT_MAX : SHORT_MAX);
+                long offsetY = encode(y, minY, height, isWide ? INT_MAX : SHORT_MAX);
+                if (isWide) {
+                    words[wordCount++] = (int) offsetX;
+                    words[wordCount++] = (int) offsetY;
+                } else {
+                    words[wordCount++] = (int) (offsetX << 16 | offsetY);
+                }
+                errorX = Math.max(errorX, Math.abs(decode(offsetX, minX, width, isWide ? INT_MAX : SHORT_MAX) - x));
+                errorY = Math.max(errorY, Math.abs(decode(offsetY, minY, height, isWide ? INT_MAX : SHORT_MAX) - y));
+                deepest = Math.max(deepest, depths[node]);
+            }
+
+            if (nodes.isLeaf(source)) {
+                quads[node] = NONE;
+                continue;
+            }
+            quads[node] = allocated;
+            int first = nodes.getQuads(source);
+            for (int quad = 0; quad < 4; quad++, allocated++) {
+                sources[allocated] = first + quad;
+                cellMinXs[allocated] = QuadTree.quadMinX(quad, minX, width / 2);
+                cellMinYs[allocated] = QuadTree.quadMinY(quad, minY, height / 2);
+                depths[allocated] = depths[node] + 1;
+            }
+        }
+        firstWord[allocated] = wordCount;
+        this.words = Arrays.copyOf(words, wordCount);
+        this.deepest = deepest;
+        this.errorX = errorX;
+        this.errorY = errorY;
+
+        // Extents from the decoded points, children before their parents
+        double[] minXs = new double[allocated];
+        double[] minYs = new double[allocated];
+        double[] maxXs = new double[allocated];
+        double[] maxYs = new double[allocated];
+        for (int node = allocated - 1; node >= 0; node--) {
+            double width = cellWidth(depths[node]);
+            double height = cellHeight(depths[node]);
+            double cellMinX = cellMinXs[node];
+            double cellMinY = cellMinYs[node];
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            boolean isWide = isWide(node);
+            for (int w = firstWord[node]; w < firstWord[node + 1]; w += isWide ? 2 : 1) {
+                double x = decodeX(w, isWide, cellMinX, width);
+                double y = decodeY(w, isWide, cellMinY, height);
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+            if (quads[node] != NONE) {
+                for (int child = quads[node]; child < quads[node] + 4; child++) {
+                    minX = Math.min(minX, minXs[child]);
+                    minY = Math.min(minY, minYs[child]);
+                    maxX = Math.max(maxX, maxXs[child]);
+                    maxY = Math.max(maxY, maxYs[child]);
+                }
+            }
+            minXs[node] = minX;
+            minYs[node] = minY;
+            maxXs[node] = maxX;
+            maxYs[node] = maxY;
+            if (counts[node] == 0) continue;
+            extents[4 * node] = lowerOffset(minX, cellMinX, width);
+            extents[4 * node + 1] = lowerOffset(minY, cellMinY, height);
+            extents[4 * node + 2] = upperOffset(maxX, cellMinX, width);
+            extents[4 * node + 3] = upperOffset(maxY, cellMinY, height);
+        }
+    }
+
+    /**
+     * @return width of the cells of nodes at a depth, halved the same way traversals halve it
+     */
+    private double cellWidth(int depth) {
+        double width = bounds.getWidth();
+        for (int i = 0; i < depth; i++) width /= 2;
+        return width;
+    }
+
+    private double cellHeight(int depth) {
+        double height = bounds.getHeight();
+        for (int i = 0; i < depth; i++) height /= 2;
+        return height;
+    }
+
+    /**
+     * @param max largest offset, {@link #SHORT_MAX} or {@link #INT_MAX}
+     * @return offset of the nearest step to a coordinate within a cell
+     */
+    private static long encode(double value, double cellMin, double cellSize, long max) {
+        return Math.max(0, Math.min(max, Math.round((value - cellMin) / cellSize * max)));
+    }
+
+    private static double decode(long offset, double cellMin, double cellSize, long max) {
+        return cellMin + offset * cellSize / max;
+    }
+
+    private double decodeX(int word, boolean isWide, double cellMinX, double width) {
+        if (isWide) return decode(words[word] & INT_MAX, cellMinX, width, INT_MAX);
+        return decode(words[word] >>> 16, cellMinX, width, SHORT_MAX);
+    }
+
+    private double decodeY(int word, boolean isWide, double cellMinY, double height) {
+        if (isWide) return decode(words[word + 1] & INT_MAX, cellMinY, height, INT_MAX);
+        return decode(words[word] & SHORT_MAX, cellMinY, height, SHORT_MAX);
+    }
+
+    /**
+     * @return largest offset that decodes to at most {@code value}, 0 standing for no lower limit
+     */
+    private static char lowerOffset(double value, double cellMin, double cellSize) {
+        long offset = Math.max(0, Math.min(SHORT_MAX, (long) Math.floor((value - cellMin) / cellSize * SHORT_MAX)));
+        while (offset > 0 && decode(offset, cellMin, cellSize, SHORT_MAX) > value) offset--;
+        return (char) offset;
+    }
+
+    /**
+     * @return smallest offset that decodes to at least {@code value}, {@link #SHORT_MAX} standing for no upper limit
+     */
+    private static char upperOffset(double value, double cellMin, double cellSize) {
+        long offset = Math.max(0, Math.min(SHORT_MAX, (long) Math.ceil((value - cellMin) / cellSize * SHORT_MAX)));
+        while (offset < SHORT_MAX && decode(offset, cellMin, cellSize, SHORT_MAX) < value) offset++;
+        return (char) offset;
+    }
+
+    // Extents decoded with open ends at the edges of the cell, where rounding could otherwise cut off a point
+    private double extentMin(int node, int field, double cellMin, double cellSize) {
+        int offset = extents[4 * node + field];
+        return offset == 0 ? Double.NEGATIVE_INFINITY : decode(offset, cellMin, cellSize, SHORT_MAX);
+    }
+
+    private double extentMax(int node, int field, double cellMin, double cellSize) {
+        int offset = extents[4 * node + field];
+        return offset == SHORT_MAX ? Double.POSITIVE_INFINITY : decode(offset, cellMin, cellSize, SHORT_MAX);
+    }
+
+    private boolean isWide(int node) {
+        return (wide[node >>> 6] & 1L << node) != 0;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public Rectangle2D getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public int getDepth() {
+        return deepest;
+    }
+
+    /**
+     * @return largest difference between a decoded and an original x
+     */
+    double getErrorX() {
+        return errorX;
+    }
+
+    /**
+     * @return largest difference between a decoded and an original y
+     */
+    double getErrorY() {
+        return errorY;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return 4L * quads.length + 4L * counts.length + 4L * firstWord.length + 8L * wide.length
+                + 2L * extents.length + 4L * words.length;
+    }
+
+    @Override
+    public double getBytesPerPoint() {
+        if (size == 0) return 0;
+        return (double) getMemoryBytes() / size;
+    }
+
+    /**
+     * The tree is read only
+     *
+     * @return {@code false}
+     */
+    @Override
+    public boolean add(double x, double y) {
+        return false;
+    }
+
+    @Override
+    public Rectangle2D takeDirtyRegion() {
+        return null;
+    }
+
+    /**
+     * Draws every node intersecting the view along with its points, decoded
+     * as they are drawn. Nodes smaller than the grain are drawn as their summary.
+     *
+     * @param grain     side in pixels below which nodes are summarized, 1 for full detail
+     * @param cancelled checked at every node, stops the traversal once it returns {@code true}
+     * @param stats     counts what the traversal visited and drew, added to what it holds
+     * @return {@code false} if the traversal was cancelled
+     */
+    @Override
+    public boolean graphPointsAndBoundaries(RenderTarget target, ZoomLevel level, Rectangle2D localBounds, int grain,
+                                            BooleanSupplier cancelled, TraversalStats stats) {
+        return graph(0, bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), bounds.getHeight(), target, level,
+                grain / level.getWidthRatio(), grain / level.getHeightRatio(), localBounds, cancelled, stats);
+    }
+
+    /**
+     * Recursive helper for {@link #graphPointsAndBoundaries}
+     *
+     * @return {@code false} if cancelled
+     */
+    private boolean graph(int node, double minX, double minY, double width, double height, RenderTarget target,
+                          ZoomLevel level, double pixelWidth, double pixelHeight, Rectangle2D localBounds,
+                          BooleanSupplier cancelled, TraversalStats stats) {
+        if (cancelled.getAsBoolean()) return false;
+        stats.visited++;
+        if (!QuadTree.isInView(minX, minY, width, height, level, localBounds)) {
+            stats.pruned++;
+            return true;
+        }
+
+        // Node is smaller than the grain -> its summary is all there is to see
+        if (width < pixelWidth && height < pixelHeight) {
+            if (counts[node] == 0) {
+                stats.pruned++;
+                return true;
+            }
+            double extentMinX = Math.max(minX, extentMin(node, 0, minX, width));
+            double extentMinY = Math.max(minY, extentMin(node, 1, minY, height));
+            double extentMaxX = Math.min(minX + width, extentMax(node, 2, minX, width));
+            double extentMaxY = Math.min(minY + height, extentMax(node, 3, minY, height));
+            target.summary(level.toLocalX(extentMinX), level.toLocalY(extentMinY),
+                    (extentMaxX - extentMinX) * level.getWidthRatio(),
+                    (extentMaxY - extentMinY) * level.getHeightRatio(), counts[node]);
+            stats.summarized++;
+            return true;
+        }
+
+        target.boundary(level.toLocalX(minX), level.toLocalY(minY),
+                width * level.getWidthRatio(), height * level.getHeightRatio());
+        boolean isWide = isWide(node);
+        for (int w = firstWord[node]; w < firstWord[node + 1]; w += isWide ? 2 : 1) {
+            target.point(level.toLocalX(decodeX(w, isWide, minX, width)),
+                    level.toLocalY(decodeY(w, isWide, minY, height)));
+            stats.points++;
+        }
+
+        if (quads[node] == NONE) return true;
+        double halfWidth = width / 2;
+        double halfHeight = height / 2;
+        for (int quad = 0; quad < 4; quad++) {
+            if (!graph(quads[node] + quad, QuadTree.quadMinX(quad, minX, halfWidth),
+                    QuadTree.quadMinY(quad, minY, halfHeight), halfWidth, halfHeight, target, level,
+                    pixelWidth, pixelHeight, localBounds, cancelled, stats)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Visits every point in a region. Subtrees whose points all lie outside
+     * it are skipped, and those whose points all lie inside are taken whole.
+     *
+     * @param bound region to search, edges included
+     */
+    @Override
+    public void query(Rectangle2D bound, PointVisitor visitor) {
+        query(0, bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), bounds.getHeight(), bound.getMinX(),
+                bound.getMinY(), bound.getMaxX(), bound.getMaxY(), false, visitor);
+    }
+
+    /**
+     * Recursive helper for {@link #query(Rectangle2D, PointVisitor)}
+     *
+     * @param covered whether the region is known to contain every point below the node
+     */
+    private void query(int node, double cellMinX, double cellMinY, double width, double height, double minX,
+                       double minY, double maxX, double maxY, boolean covered, PointVisitor visitor) {
+        if (counts[node] == 0) return;
+        if (!covered) {
+            double extentMinX = extentMin(node, 0, cellMinX, width);
+            double extentMinY = extentMin(node, 1, cellMinY, height);
+            double extentMaxX = extentMax(node, 2, cellMinX, width);
+            double extentMaxY = extentMax(node, 3, cellMinY, height);
+            if (extentMaxX < minX || extentMinX > maxX || extentMaxY < minY || extentMinY > maxY) return;
+            covered = extentMinX >= minX && extentMaxX <= maxX && extentMinY >= minY && extentMaxY <= maxY;
+        }
+
+        boolean isWide = isWide(node);
+        for (int w = firstWord[node]; w < firstWord[node + 1]; w += isWide ? 2 : 1) {
+            double x = decodeX(w, isWide, cellMinX, width);
+            double y = decodeY(w, isWide, cellMinY, height);
+            if (covered || x >= minX && x <= maxX && y >= minY && y <= maxY) visitor.visit(w, x, y);
+        }
+        if (quads[node] == NONE) return;
+        double halfWidth = width / 2;
+        double halfHeight = height / 2;
+        for (int quad = 0; quad < 4; quad++) {
+            query(quads[node] + quad, QuadTree.quadMinX(quad, cellMinX, halfWidth),
+                    QuadTree.quadMinY(quad, cellMinY, halfHeight), halfWidth, halfHeight, minX, minY, maxX, maxY,
+                    covered, visitor);
+        }
+    }
+
+    @Override
+    public void query(Rectangle2D bound, PointBuffer result) {
+        result.clear();
+        query(bound, (PointVisitor) result);
+    }
+
+    /**
+     * Counts the points in a region, taking the count of subtrees whose
+     * points all lie inside it without decoding them
+     *
+     * @param bound region to search, edges included
+     * @return SE
+     */
+    @Override
+    public long count(Rectangle2D bound) {
+        return count(0, bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), bounds.getHeight(), bound.getMinX(),
+                bound.getMinY(), bound.getMaxX(), bound.getMaxY());
+    }
+
+    /**
+     * Recursive helper for {@link #count(Rectangle2D)}
+     */
+    private long count(int node, double cellMinX, double cellMinY, double width, double height, double minX,
+                       double minY, double maxX, double maxY) {
+        if (counts[node] == 0) return 0;
+        double extentMinX = extentMin(node, 0, cellMinX, width);
+        double extentMinY = extentMin(node, 1, cellMinY, height);
+        double extentMaxX = extentMax(node, 2, cellMinX, width);
+        double extentMaxY = extentMax(node, 3, cellMinY, height);
+        if (extentMaxX < minX || extentMinX > maxX || extentMaxY < minY || extentMinY > maxY) return 0;
+        if (extentMinX >= minX && extentMaxX <= maxX && extentMinY >= minY && extentMaxY <= maxY) {
+            return counts[node];
+        }
+
+        long count = 0;
+        boolean isWide = isWide(node);
+        for (int w = firstWord[node]; w < firstWord[node + 1]; w += isWide ? 2 : 1) {
+            double x = decodeX(w, isWide, cellMinX, width);
+            double y = decodeY(w, isWide, cellMinY, height);
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) count++;
+        }
+        if (quads[node] == NONE) return count;
+        double halfWidth = width / 2;
+        double halfHeight = height / 2;
+        for (int quad = 0; quad < 4; quad++) {
+            count += count(quads[node] + quad, QuadTree.quadMinX(quad, cellMinX, halfWidth),
+                    QuadTree.quadMinY(quad, cellMinY, halfHeight), halfWidth, halfHeight, minX, minY, maxX, maxY);
+        }
+        return count;
+    }
+
+    /**
+     * Finds the {@code k} points nearest to a location, nearest first, with
+     * each axis scaled before measuring distance. Searches best first like
+     * {@link QuadTree#nearest(double, double, double, double, int, double, PointBuffer)}.
+     *
+     * @param scaleX      factor applied to x offsets
+     * @param scaleY      factor applied to y offsets
+     * @param maxDistance scaled distance beyond which points are ignored
+     * @param result      buffer to fill, reused between queries
+     */
+    @Override
+    public void nearest(double x, double y, double scaleX, double scaleY, int k, double maxDistance,
+                        PointBuffer result) {
+        result.clear();
+        if (k <= 0 || size == 0) return;
+        new NearestSearch(x, y, scaleX, scaleY, (int) Math.min(k, size), maxDistance).run(result);
+    }
+
+    /**
+     * State of a nearest neighbor search: a min-heap of nodes to visit by
+     * distance along with their cells, and the points found so far kept
+     * sorted nearest first, {@code k} being small
+     */
+    private final class NearestSearch {
+        private final double x;
+        private final double y;
+        private final double scaleX;
+        private final double scaleY;
+        private double limit; // squared distance a point must beat to be kept
+
+        private int[] queued = new int[64];
+        private double[] queuedDistances = new double[64];
+        private double[] queuedMinXs = new double[64];
+        private double[] queuedMinYs = new double[64];
+        private int[] queuedDepths = new int[64];
+        private int queueSize;
+
+        private final int[] foundWords;
+        private final double[] foundXs;
+        private final double[] foundYs;
+        private final double[] foundDistances;
+        private int foundSize;
+
+        NearestSearch(double x, double y, double scaleX, double scaleY, int k, double maxDistance) {
+            this.x = x;
+            this.y = y;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            limit = maxDistance * maxDistance;
+            foundWords = new int[k];
+            foundXs = new double[k];
+            foundYs = new double[k];
+            foundDistances = new double[k];
+        }
+
+        void run(PointBuffer result) {
+            offer(0, bounds.getMinX(), bounds.getMinY(), 0);
+            while (queueSize > 0 && queuedDistances[0] <= limit) {
+                int node = queued[0];
+                double minX = queuedMinXs[0];
+                double minY = queuedMinYs[0];
+                int depth = queuedDepths[0];
+                poll();
+                double width = cellWidth(depth);
+                double height = cellHeight(depth);
+                boolean isWide = isWide(node);
+                for (int w = firstWord[node]; w < firstWord[node + 1]; w += isWide ? 2 : 1) {
+                    consider(w, decodeX(w, isWide, minX, width), decodeY(w, isWide, minY, height));
+                }
+                if (quads[node] == NONE) continue;
+                for (int quad = 0; quad < 4; quad++) {
+                    offer(quads[node] + quad, QuadTree.quadMinX(quad, minX, width / 2),
+                            QuadTree.quadMinY(quad, minY, height / 2), depth + 1);
+                }
+            }
+            for (int i = 0; i < foundSize; i++) result.visit(foundWords[i], foundXs[i], foundYs[i]);
+        }
+
+        /**
+         * Queues a node by the squared scaled distance to the extent of its points, unless it is empty
+         */
+        private void offer(int node, double minX, double minY, int depth) {
+            if (counts[node] == 0) return;
+            double width = cellWidth(depth);
+            double height = cellHeight(depth);
+            double dx = Math.max(0, Math.max(extentMin(node, 0, minX, width) - x,
+                    x - extentMax(node, 2, minX, width)));
+            double dy = Math.max(0, Math.max(extentMin(node, 1, minY, height) - y,
+                    y - extentMax(node, 3, minY, height)));
+            double distance = dx * scaleX * dx * scaleX + dy * scaleY * dy * scaleY;
+            if (distance > limit) return;
+
+            if (queueSize == queued.length) {
+                int capacity = 2 * queueSize;
+                queued = Arrays.copyOf(queued, capacity);
+                queuedDistances = Arrays.copyOf(queuedDistances, capacity);
+                queuedMinXs = Arrays.copyOf(queuedMinXs, capacity);
+                queuedMinYs = Arrays.copyOf(queuedMinYs, capacity);
+                queuedDepths = Arrays.copyOf(queuedDepths, capacity);
+            }
+            int i = queueSize++;
+            while (i > 0 && queuedDistances[(i - 1) / 2] > distance) {
+                move((i - 1) / 2, i);
+                i = (i - 1) / 2;
+            }
+            set(i, node, distance, minX, minY, depth);
+        }
+
+        /**
+         * Removes the nearest node from the heap
+         */
+        private void poll() {
+            int last = --queueSize;
+            int node = queued[last];
+            double distance = queuedDistances[last];
+            double minX = queuedMinXs[last];
+            double minY = queuedMinYs[last];
+            int depth = queuedDepths[last];
+            int i = 0;
+            while (2 * i + 1 < queueSize) {
+                int child = 2 * i + 1;
+                if (child + 1 < queueSize && queuedDistances[child + 1] < queuedDistances[child]) child++;
+                if (queuedDistances[child] >= distance) break;
+                move(child, i);
+                i = child;
+            }
+            set(i, node, distance, minX, minY, depth);
+        }
+
+        private void move(int from, int to) {
+            set(to, queued[from], queuedDistances[from], queuedMinXs[from], queuedMinYs[from], queuedDepths[from]);
+        }
+
+        private void set(int i, int node, double distance, double minX, double minY, int depth) {
+            queued[i] = node;
+            queuedDistances[i] = distance;
+            queuedMinXs[i] = minX;
+            queuedMinYs[i] = minY;
+            queuedDepths[i] = depth;
+        }
+
+        private void consider(int word, double px, double py) {
+            double dx = (px - x) * scaleX;
+            double dy = (py - y) * scaleY;
+            double distance = dx * dx + dy * dy;
+            if (distance > limit || foundSize == foundXs.length && distance >= limit) return;
+
+            // Insert in order, dropping the farthest once full
+            int i = Math.min(foundSize, foundXs.length - 1);
+            while (i > 0 && foundDistances[i - 1] > distance) {
+                foundWords[i] = foundWords[i - 1];
+                foundXs[i] = foundXs[i - 1];
+                foundYs[i] = foundYs[i - 1];
+                foundDistances[i] = foundDistances[i - 1];
+                i--;
+            }
+            foundWords[i] = word;
+            foundXs[i] = px;
+            foundYs[i] = py;
+            foundDistances[i] = distance;
+            if (foundSize < foundXs.length) foundSize++;
+            if (foundSize == foundXs.length) limit = foundDistances[foundSize - 1];
+        }
+    }
+}
@@ -0,0 +1,812 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Quad tree that any number of threads may add points to at once, while
+ * any number of others draw and query it.
+ * <p>
+ * Leaves are immutable: adding a point builds a copy of its leaf with the
+ * point appended, or a small subtree if the leaf is full, and swaps it into
+ * the parent's slot with a compare-and-set. Whoever loses the race reads the
+ * slot again and retries, so no insert ever waits on a lock, and a point is
+ * checked for duplicates against exactly the leaf it replaces. Parents are
+ * never replaced, and only their summaries change after they are published:
+ * counts are {@link LongAdder}s, so that inserts all passing through the top
+ * of the tree do not contend on one counter, and extents only ever widen.
+ * Readers follow volatile slots down without locking, and so always see a
+ * whole leaf, from before or after any insert.
+ * <p>
+ * Parents hold no points, unlike in {@link QuadTree}, and cells are half
+ * open, their max edges excluded. Bounds are {@link PagedQuadTree#aligned},
+ * so growing the root by doubling is exact and done with one compare-and-set
+ * on the root, the old root becoming a quadrant of the new one. Summaries
+ * may lag behind inserts still in progress, never behind those that returned.
+ *
+ * @author Jean-Luc Thumm
+ */
+class ConcurrentQuadTree implements PointIndex {
+
+    private static final int DIRTY_STRIPES = 16;   // dirty regions kept apart by thread, a power of two
+    private static final long LEAF_BYTES = 56;     // estimated size of a leaf, besides its coordinates
+    private static final long PARENT_BYTES = 160;  // estimated size of a parent with its counter and slots
+    private static final Leaf EMPTY = new Leaf(new double[0], new double[0]);
+
+    private final int leafCapacity;
+    private final AtomicReference<Root> root;
+    private final LongAdder size = new LongAdder();
+    private final LongAdder memory = new LongAdder();
+    private final AtomicInteger deepest = new AtomicInteger(Integer.MIN_VALUE); // relative to the first root
+
+    // Region whose drawing changed since the last call to takeDirtyRegion(),
+    // striped by thread so that inserts on different threads do not contend
+    private final Dirty[] dirty = new Dirty[DIRTY_STRIPES];
+
+    /**
+     * @param bounds initial bounds, which grow to fit points outside them
+     */
+    ConcurrentQuadTree(Rectangle2D bounds) {
+        this(bounds, QuadTree.DEFAULT_LEAF_CAPACITY, QuadTree.DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param bounds       initial bounds, which grow to fit points outside them
+     * @param leafCapacity number of points a leaf holds before subdividing
+     * @param maxDepth     depth past which leaves never subdivide
+     */
+    ConcurrentQuadTree(Rectangle2D bounds, int leafCapacity, int maxDepth) {
+        this.leafCapacity = Math.max(leafCapacity, 1);
+        root = new AtomicReference<>(new Root(PagedQuadTree.aligned(QuadTree.growable(bounds)), new Parent(null, 0),
+                0, maxDepth));
+        memory.add(PARENT_BYTES);
+        for (int i = 0; i < dirty.length; i++) dirty[i] = new Dirty();
+    }
+
+    @Override
+    public long getSize() {
+        return size.sum();
+    }
+
+    @Override
+    public Rectangle2D getBounds() {
+        return root.get().bounds;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.sum() == 0;
+    }
+
+    /**
+     * Depth of the deepest point, the root being at depth 0
+     *
+     * @return SE, or -1 if the tree is empty
+     */
+    @Override
+    public int getDepth() {
+        int below = deepest.get();
+        return below == Integer.MIN_VALUE ? -1 : root.get().level + below;
+    }
+
+    /**
+     * Estimated memory held by nodes and coordinates, assuming compressed references
+     */
+    @Override
+    public long getMemoryBytes() {
+        return memory.sum();
+    }
+
+    @Override
+    public double getBytesPerPoint() {
+        long points = size.sum();
+        return points == 0 ? 0 : (double) memory.sum() / points;
+    }
+
+    /**
+     * Insertion operation, safe to call from any number of threads at once.
+     * Grows the tree if the point is out of bounds.
+     *
+     * @return {@code true} if the insertion was succesful,
+     * {@code false} if the point is not finite or already in the tree
+     */
+    @Override
+    public boolean add(double x, double y) {
+        if (!Double.isFinite(x) || !Double.isFinite(y)) return false;
+        Root r = rootFor(x, y);
+        if (r == null) return false;
+
+        while (true) {
+            // Find the leaf whose cell holds the point
+            Parent parent = r.node;
+            int depth = 1;
+            int quad;
+            double minX = r.bounds.getMinX();
+            double minY = r.bounds.getMinY();
+            double width = r.bounds.getWidth();
+            double height = r.bounds.getHeight();
+            Node node;
+            while (true) {
+                width /= 2;
+                height /= 2;
+                quad = QuadTree.quadrant(x, y, minX + width, minY + height);
+                minX = QuadTree.quadMinX(quad, minX, width);
+                minY = QuadTree.quadMinY(quad, minY, height);
+                node = parent.get(quad);
+                if (node instanceof Leaf) break;
+                parent = (Parent) node;
+                depth++;
+            }
+
+            Leaf leaf = (Leaf) node;
+            if (leaf.holds(x, y)) return false; // no duplicates
+            Node replacement;
+            if (leaf.size() < leafCapacity || depth >= r.maxDepth) {
+                replacement = leaf.with(x, y);
+            } else {
+                Leaf full = leaf.with(x, y);
+                replacement = build(full.xs, full.ys, depth, minX, minY, width, height, r.maxDepth);
+            }
+            if (!parent.replace(quad, leaf, replacement)) continue; // another insert got there first, look again
+
+            memory.add(measure(replacement, depth, r) - measure(leaf, depth, r));
+            summarize(r, parent, x, y);
+            size.increment();
+            markDirty(x, y, x, y);
+            if (replacement instanceof Parent) markDirty(minX, minY, minX + width, minY + height); // new boundaries
+            return true;
+        }
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    /**
+     * Gets the root to insert a point from, growing it until it contains the point
+     *
+     * @return SE, or {@code null} if the point can never fit
+     */
+    private Root rootFor(double x, double y) {
+        Root r = root.get();
+        while (!r.contains(x, y)) {
+            Root grown = r.grow(x, y);
+            if (grown == null) return null;
+            if (root.compareAndSet(r, grown)) {
+                memory.add(PARENT_BYTES);
+                markDirty(grown.bounds.getMinX(), grown.bounds.getMinY(), grown.bounds.getMaxX(),
+                        grown.bounds.getMaxY()); // new boundaries
+            }
+            r = root.get();
+        }
+        return r;
+    }
+
+    /**
+     * Builds the subtree replacing a full leaf, subdividing until every leaf fits
+     */
+    private Node build(double[] xs, double[] ys, int depth, double minX, double minY, double width, double height,
+                       int maxDepth) {
+        if (xs.length <= leafCapacity || depth >= maxDepth) return new Leaf(xs, ys);
+
+        double halfWidth = width / 2;
+        double halfHeight = height / 2;
+        int[] quads = new int[xs.length];
+        int[] counts = new int[4];
+        for (int i = 0; i < xs.length; i++) {
+            quads[i] = QuadTree.quadrant(xs[i], ys[i], minX + halfWidth, minY + halfHeight);
+            counts[quads[i]]++;
+        }
+        Parent parent = new Parent(null, 0);
+        for (int quad = 0; quad < 4; quad++) {
+            if (counts[quad] == 0) continue;
+            double[] quadXs = new double[counts[quad]];
+            double[] quadYs = new double[counts[quad]];
+            for (int i = 0, j = 0; i < xs.length; i++) {
+                if (quads[i] != quad) continue;
+                quadXs[j] = xs[i];
+                quadYs[j++] = ys[i];
+            }
+            parent.quads[quad] = build(quadXs, quadYs, depth + 1, QuadTree.quadMinX(quad, minX, halfWidth),
+                    QuadTree.quadMinY(quad, minY, halfHeight), halfWidth, halfHeight, maxDepth);
+        }
+        for (int i = 0; i < xs.length; i++) parent.include(xs[i], ys[i]); // not yet published
+        return parent;
+    }
+
+    /**
+     * Estimates the memory of a subtree built by an insert, and notes how deep its points are
+     *
+     * @param depth depth of the subtree's root below {@code r}
+     */
+    private long measure(Node node, int depth, Root r) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            if (leaf.size() > 0) deepest.accumulateAndGet(depth - r.level, Math::max);
+            return LEAF_BYTES + 2L * Double.BYTES * leaf.size();
+        }
+        long bytes = PARENT_BYTES;
+        for (int quad = 0; quad < 4; quad++) {
+            Node child = ((Parent) node).get(quad);
+            if (child != EMPTY) bytes += measure(child, depth + 1, r);
+        }
+        return bytes;
+    }
+
+    /**
+     * Adds an inserted point to the summaries of the parents from a root down
+     * to the parent whose slot took it. A root grown around an older one only
+     * counts points outside it, the older root's summary counting the rest.
+     */
+    private void summarize(Root r, Parent last, double x, double y) {
+        Parent parent = r.node;
+        double minX = r.bounds.getMinX();
+        double minY = r.bounds.getMinY();
+        double width = r.bounds.getWidth();
+        double height = r.bounds.getHeight();
+        while (true) {
+            width /= 2;
+            height /= 2;
+            int quad = QuadTree.quadrant(x, y, minX + width, minY + height);
+            if (parent.inner == null || quad != parent.innerQuad) parent.include(x, y);
+            if (parent == last) return;
+            minX = QuadTree.quadMinX(quad, minX, width);
+            minY = QuadTree.quadMinY(quad, minY, height);
+            parent = (Parent) parent.get(quad);
+        }
+    }
+
+    /**
+     * Checks whether a point is in the tree
+     *
+     * @return {@code true} if an insert of the point has returned, and maybe if one is in progress
+     */
+    boolean contains(double x, double y) {
+        Root r = root.get();
+        if (!r.contains(x, y)) return false;
+        Node node = r.node;
+        double minX = r.bounds.getMinX();
+        double minY = r.bounds.getMinY();
+        double width = r.bounds.getWidth();
+        double height = r.bounds.getHeight();
+        while (node instanceof Parent) {
+            width /= 2;
+            height /= 2;
+            int quad = QuadTree.quadrant(x, y, minX + width, minY + height);
+            minX = QuadTree.quadMinX(quad, minX, width);
+            minY = QuadTree.quadMinY(quad, minY, height);
+            node = ((Parent) node).get(quad);
+        }
+        return ((Leaf) node).holds(x, y);
+    }
+
+    /**
+     * Gets the region whose drawing changed since the last call, and starts
+     * over. Covers every point added and every node subdivided or grown to
+     * make room for them, by inserts that returned.
+     *
+     * @return SE, or {@code null} if nothing changed
+     */
+    @Override
+    public Rectangle2D takeDirtyRegion() {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (Dirty stripe : dirty) {
+            synchronized (stripe) {
+                minX = Math.min(minX, stripe.minX);
+                minY = Math.min(minY, stripe.minY);
+                maxX = Math.max(maxX, stripe.maxX);
+                maxY = Math.max(maxY, stripe.maxY);
+                stripe.clear();
+            }
+        }
+        if (minX > maxX) return null;
+        return new Rectangle2D(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    private void markDirty(double minX, double minY, double maxX, double maxY) {
+        Dirty stripe = dirty[(int) Thread.currentThread().getId() & (DIRTY_STRIPES - 1)];
+        synchronized (stripe) {
+            if (minX < stripe.minX) stripe.minX = minX;
+            if (minY < stripe.minY) stripe.minY = minY;
+            if (maxX > stripe.maxX) stripe.maxX = maxX;
+            if (maxY > stripe.maxY) stripe.maxY = maxY;
+        }
+    }
+
+    /**
+     * Draws every node intersecting the view along with its points. Nodes
+     * smaller than the grain are drawn as their summary instead of descending
+     * into them. Never waits on inserts running at the same time.
+     *
+     * @param grain     side in pixels below which nodes are summarized, 1 for full detail
+     * @param cancelled checked at every node, stops the traversal once it returns {@code true}
+     * @param stats     counts what the traversal visited and drew, added to what it holds
+     * @return {@code false} if the traversal was cancelled
+     */
+    @Override
+    public boolean graphPointsAndBoundaries(RenderTarget target, ZoomLevel level, Rectangle2D localBounds, int grain,
+                                            BooleanSupplier cancelled, TraversalStats stats) {
+        Root r = root.get();
+        return graphPointsAndBoundaries(r.node, r.bounds.getMinX(), r.bounds.getMinY(), r.bounds.getWidth(),
+                r.bounds.getHeight(), target, level, grain / level.getWidthRatio(), grain / level.getHeightRatio(),
+                localBounds, cancelled, stats);
+    }
+
+    /**
+     * Recursive helper for {@link #graphPointsAndBoundaries(RenderTarget, ZoomLevel, Rectangle2D, int,
+     * BooleanSupplier, TraversalStats)}
+     *
+     * @return {@code false} if cancelled
+     */
+    private boolean graphPointsAndBoundaries(Node node, double minX, double minY, double width, double height,
+                                             RenderTarget target, ZoomLevel level, double pixelWidth,
+                                             double pixelHeight, Rectangle2D localBounds,
+                                             BooleanSupplier cancelled, TraversalStats stats) {
+        if (cancelled.getAsBoolean()) return false;
+        stats.visited++;
+        if (!QuadTree.isInView(minX, minY, width, height, level, localBounds)) {
+            stats.pruned++;
+            return true;
+        }
+
+        // Node is smaller than the grain -> its summary is all there is to see
+        if (width < pixelWidth && height < pixelHeight) {
+            long count = node.getCount();
+            if (count == 0) {
+                stats.pruned++;
+                return true;
+            }
+            double extentMinX = node.getMinX();
+            double extentMinY = node.getMinY();
+            target.summary(level.toLocalX(extentMinX), level.toLocalY(extentMinY),
+                    (node.getMaxX() - extentMinX) * level.getWidthRatio(),
+                    (node.getMaxY() - extentMinY) * level.getHeightRatio(), (int) Math.min(count, Integer.MAX_VALUE));
+            stats.summarized++;
+            return true;
+        }
+
+        target.boundary(level.toLocalX(minX), level.toLocalY(minY),
+                width * level.getWidthRatio(), height * level.getHeightRatio());
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            for (int i = 0; i < leaf.size(); i++) {
+                target.point(level.toLocalX(leaf.xs[i]), level.toLocalY(leaf.ys[i]));
+                stats.points++;
+            }
+            return true;
+        }
+        Parent parent = (Parent) node;
+        double halfWidth = width / 2;
+        double halfHeight = height / 2;
+        for (int quad = 0; quad < 4; quad++) {
+            if (!graphPointsAndBoundaries(parent.get(quad), QuadTree.quadMinX(quad, minX, halfWidth),
+                    QuadTree.quadMinY(quad, minY, halfHeight), halfWidth, halfHeight, target, level, pixelWidth,
+                    pixelHeight, localBounds, cancelled, stats)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Visits every point in a region. Points have no index, so visitors are given -1.
+     *
+     * @param bound region to search, edges included
+     */
+    @Override
+    public void query(Rectangle2D bound, PointVisitor visitor) {
+        query(root.get().node, bound, false, visitor);
+    }
+
+    @Override
+    public void query(Rectangle2D bound, PointBuffer result) {
+        result.clear();
+        query(bound, (PointVisitor) result);
+    }
+
+    /**
+     * Recursive helper for {@link #query(Rectangle2D, PointVisitor)}
+     *
+     * @param inside whether the node is already known to lie inside the region
+     */
+    private void query(Node node, Rectangle2D bound, boolean inside, PointVisitor visitor) {
+        if (!inside) {
+            if (node.getCount() == 0 || !overlaps(node, bound)) return;
+            inside = covers(node, bound);
+        }
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            for (int i = 0; i < leaf.size(); i++) {
+                if (inside || bound.contains(leaf.xs[i], leaf.ys[i])) visitor.visit(-1, leaf.xs[i], leaf.ys[i]);
+            }
+            return;
+        }
+        for (int quad = 0; quad < 4; quad++) {
+            query(((Parent) node).get(quad), bound, inside, visitor);
+        }
+    }
+
+    @Override
+    public long count(Rectangle2D bound) {
+        return count(root.get().node, bound);
+    }
+
+    /**
+     * Recursive helper for {@link #count(Rectangle2D)}
+     */
+    private long count(Node node, Rectangle2D bound) {
+        if (node.getCount() == 0 || !overlaps(node, bound)) return 0;
+        if (covers(node, bound)) return node.getCount();
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            long count = 0;
+            for (int i = 0; i < leaf.size(); i++) {
+                if (bound.contains(leaf.xs[i], leaf.ys[i])) count++;
+            }
+            return count;
+        }
+        long count = 0;
+        for (int quad = 0; quad < 4; quad++) {
+            count += count(((Parent) node).get(quad), bound);
+        }
+        return count;
+    }
+
+    private static boolean overlaps(Node node, Rectangle2D bound) {
+        return node.getMinX() <= bound.getMaxX() && node.getMaxX() >= bound.getMinX()
+                && node.getMinY() <= bound.getMaxY() && node.getMaxY() >= bound.getMinY();
+    }
+
+    private static boolean covers(Node node, Rectangle2D bound) {
+        return node.getMinX() >= bound.getMinX() && node.getMaxX() <= bound.getMaxX()
+                && node.getMinY() >= bound.getMinY() && node.getMaxY() <= bound.getMaxY();
+    }
+
+    /**
+     * Finds the {@code k} points nearest to a location, nearest first, with
+     * each axis scaled before measuring distance. Searches depth first,
+     * nearer quadrants first, skipping those whose points all lie farther
+     * than the {@code k}th point found so far. Points have no index, so the
+     * buffer is given -1.
+     */
+    @Override
+    public void nearest(double x, double y, double scaleX, double scaleY, int k, double maxDistance,
+                        PointBuffer result) {
+        result.clear();
+        if (k <= 0 || isEmpty()) return;
+        NearestSearch search = new NearestSearch(x, y, scaleX, scaleY, k, maxDistance);
+        search.visit(root.get().node);
+        for (int i = 0; i < search.found; i++) result.visit(-1, search.xs[i], search.ys[i]);
+    }
+
+    /**
+     * State of one {@link #nearest} search: the points found so far, nearest first
+     */
+    private static final class NearestSearch {
+        private final double x;
+        private final double y;
+        private final double scaleX;
+        private final double scaleY;
+        private final double[] distances;
+        private final double[] xs;
+        private final double[] ys;
+        private int found;
+        private double limit; // squared distance a point must beat to be kept
+
+        NearestSearch(double x, double y, double scaleX, double scaleY, int k, double maxDistance) {
+            this.x = x;
+            this.y = y;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            distances = new double[k];
+            xs = new double[k];
+            ys = new double[k];
+            limit = maxDistance * maxDistance;
+        }
+
+        void visit(Node node) {
+            if (node.getCount() == 0 || distance2(node) > limit) return;
+            if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                for (int i = 0; i < leaf.size(); i++) offer(leaf.xs[i], leaf.ys[i]);
+                return;
+            }
+
+            // Nearer quadrants first, so that farther ones are more likely skipped
+            Parent parent = (Parent) node;
+            Node[] quads = new Node[4];
+            double[] quadDistances = new double[4];
+            for (int quad = 0; quad < 4; quad++) {
+                Node child = parent.get(quad);
+                double distance = child.getCount() == 0 ? Double.POSITIVE_INFINITY : distance2(child);
+                int i = quad;
+                for (; i > 0 && quadDistances[i - 1] > distance; i--) {
+                    quads[i] = quads[i - 1];
+                    quadDistances[i] = quadDistances[i - 1];
+                }
+                quads[i] = child;
+                quadDistances[i] = distance;
+            }
+            for (int i = 0; i < 4 && quadDistances[i] <= limit; i++) visit(quads[i]);
+        }
+
+        private void offer(double pointX, double pointY) {
+            double dx = (pointX - x) * scaleX;
+            double dy = (pointY - y) * scaleY;
+            double distance = dx * dx + dy * dy;
+            if (distance > limit) return;
+            int i = Math.min(found, distances.length - 1);
+            if (found < distances.length) found++;
+            for (; i > 0 && distances[i - 1] > distance; i--) {
+                distances[i] = distances[i - 1];
+                xs[i] = xs[i - 1];
+                ys[i] = ys[i - 1];
+            }
+            distances[i] = distance;
+            xs[i] = pointX;
+            ys[i] = pointY;
+            if (found == distances.length) limit = Math.min(limit, distances[found - 1]);
+        }
+
+        /**
+         * Squared scaled distance from the location to the extent of a node's points
+         */
+        private double distance2(Node node) {
+            double dx = Math.max(0, Math.max(node.getMinX() - x, x - node.getMaxX())) * scaleX;
+            double dy = Math.max(0, Math.max(node.getMinY() - y, y - node.getMaxY())) * scaleY;
+            return dx * dx + dy * dy;
+        }
+    }
+
+    /**
+     * A root and the cell it covers. Replaced whole when the tree grows.
+     */
+    private static final class Root {
+        final Rectangle2D bounds;
+        final Parent node;
+        final int level;    // times the tree grew before this root
+        final int maxDepth; // depth below this root past which leaves never subdivide
+
+        Root(Rectangle2D bounds, Parent node, int level, int maxDepth) {
+            this.bounds = bounds;
+            this.node = node;
+            this.level = level;
+            this.maxDepth = maxDepth;
+        }
+
+        boolean contains(double x, double y) {
+            return x >= bounds.getMinX() && x < bounds.getMaxX() && y >= bounds.getMinY() && y < bounds.getMaxY();
+        }
+
+        /**
+         * Doubles the bounds toward a point, this root becoming a quadrant of the new one
+         *
+         * @return SE, or {@code null} if the bounds cannot double exactly
+         */
+        Root grow(double x, double y) {
+            double width = bounds.getWidth();
+            double height = bounds.getHeight();
+            double minX = x < bounds.getMinX() ? bounds.getMinX() - width : bounds.getMinX();
+            double minY = y < bounds.getMinY() ? bounds.getMinY() - height : bounds.getMinY();
+            if (!Double.isFinite(minX + 2 * width) || !Double.isFinite(minY + 2 * height)) return null;
+            int quad = QuadTree.quadrant(bounds.getMinX(), bounds.getMinY(), minX + width, minY + height);
+            if (QuadTree.quadMinX(quad, minX, width) != bounds.getMinX()
+                    || QuadTree.quadMinY(quad, minY, height) != bounds.getMinY()) return null;
+
+            Parent grown = new Parent(node, quad);
+            grown.quads[quad] = node;
+            return new Root(new Rectangle2D(minX, minY, 2 * width, 2 * height), grown, level + 1, maxDepth + 1);
+        }
+    }
+
+    /**
+     * Node of the tree with a summary of the points under it
+     */
+    private abstract static class Node {
+        abstract long getCount();
+
+        abstract double getMinX();
+
+        abstract double getMinY();
+
+        abstract double getMaxX();
+
+        abstract double getMaxY();
+    }
+
+    /**
+     * Immutable leaf, replaced whole by inserts
+     */
+    private static final class Leaf extends Node {
+        final double[] xs;
+        final double[] ys;
+        private final double minX;
+        private final double minY;
+        private final double maxX;
+        private final double maxY;
+
+        Leaf(double[] xs, double[] ys) {
+            this.xs = xs;
+            this.ys = ys;
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < xs.length; i++) {
+                minX = Math.min(minX, xs[i]);
+                minY = Math.min(minY, ys[i]);
+                maxX = Math.max(maxX, xs[i]);
+                maxY = Math.max(maxY, ys[i]);
+            }
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        int size() {
+            return xs.length;
+        }
+
+        boolean holds(double x, double y) {
+            for (int i = 0; i < xs.length; i++) {
+                if (xs[i] == x && ys[i] == y) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return copy of this leaf with a point appended
+         */
+        Leaf with(double x, double y) {
+            double[] grownXs = Arrays.copyOf(xs, xs.length + 1);
+            double[] grownYs = Arrays.copyOf(ys, ys.length + 1);
+            grownXs[xs.length] = x;
+            grownYs[ys.length] = y;
+            return new Leaf(grownXs, grownYs);
+        }
+
+        @Override
+        long getCount() {
+            return xs.length;
+        }
+
+        @Override
+        double getMinX() {
+            return minX;
+        }
+
+        @Override
+        double getMinY() {
+            return minY;
+        }
+
+        @Override
+        double getMaxX() {
+            return maxX;
+        }
+
+        @Override
+        double getMaxY() {
+            return maxY;
+        }
+    }
+
+    /**
+     * Parent whose slots are swapped by compare-and-set and whose summary is
+     * widened in place. Points never live in parents.
+     */
+    private static final class Parent extends Node {
+        private static final VarHandle QUADS = MethodHandles.arrayElementVarHandle(Node[].class);
+        private static final VarHandle MIN_X;
+        private static final VarHandle MIN_Y;
+        private static final VarHandle MAX_X;
+        private static final VarHandle MAX_Y;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                MIN_X = lookup.findVarHandle(Parent.class, "minX", double.class);
+                MIN_Y = lookup.findVarHandle(Parent.class, "minY", double.class);
+                MAX_X = lookup.findVarHandle(Parent.class, "maxX", double.class);
+                MAX_Y = lookup.findVarHandle(Parent.class, "maxY", double.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final Node[] quads = {EMPTY, EMPTY, EMPTY, EMPTY};
+        final Parent inner; // root this one grew around, or null
+        final int innerQuad;
+        private final LongAdder count = new LongAdder(); // points under it, besides those of inner
+        private volatile double minX = Double.POSITIVE_INFINITY;
+        private volatile double minY = Double.POSITIVE_INFINITY;
+        private volatile double maxX = Double.NEGATIVE_INFINITY;
+        private volatile double maxY = Double.NEGATIVE_INFINITY;
+
+        Parent(Parent inner, int innerQuad) {
+            this.inner = inner;
+            this.innerQuad = innerQuad;
+        }
+
+        Node get(int quad) {
+            return (Node) QUADS.getVolatile(quads, quad);
+        }
+
+        boolean replace(int quad, Node expected, Node replacement) {
+            return QUADS.compareAndSet(quads, quad, expected, replacement);
+        }
+
+        /**
+         * Adds a point to the summary, widening the extent before counting it,
+         * so that a counted point is always inside the extent
+         */
+        void include(double x, double y) {
+            widen(MIN_X, x, true);
+            widen(MIN_Y, y, true);
+            widen(MAX_X, x, false);
+            widen(MAX_Y, y, false);
+            count.increment();
+        }
+
+        private void widen(VarHandle field, double value, boolean lower) {
+            double current = (double) field.getVolatile(this);
+            while ((lower ? value < current : value > current) && !field.compareAndSet(this, current, value)) {
+                current = (double) field.getVolatile(this);
+            }
+        }
+
+        @Override
+        long getCount() {
+            return count.sum() + (inner == null ? 0 : inner.getCount());
+        }
+
+        @Override
+        double getMinX() {
+            return inner == null ? minX : Math.min(minX, inner.getMinX());
+        }
+
+        @Override
+        double getMinY() {
+            return inner == null ? minY : Math.min(minY, inner.getMinY());
+        }
+
+        @Override
+        double getMaxX() {
+            return inner == null ? maxX : Math.max(maxX, inner.getMaxX());
+        }
+
+        @Override
+        double getMaxY() {
+            return inner == null ? maxY : Math.max(maxY, inner.getMaxY());
+        }
+    }
+
+    /**
+     * One stripe of the dirty region, guarded by its own monitor. Empty if minX > maxX.
+     */
+    private static final class Dirty {
+        double minX;
+        double minY;
+        double maxX;
+        double maxY;
+
+        Dirty() {
+            clear();
+        }
+
+        void clear() {
+            minX = minY = Double.POSITIVE_INFINITY;
+            maxX = maxY = Double.NEGATIVE_INFINITY;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package me.jeanlucthumm;
+
+import javafx.scene.canvas.GraphicsContext;
+
+import java.util.Arrays;
+
+/**
+ * {@link RenderTarget} that records what is drawn into primitive arrays so
+ * that it can be built on any thread and replayed onto a
+ * {@link GraphicsContext} on the JavaFX application thread. The
+ * {@link Renderer} clears and reuses lists, so recording into one allocates
+ * nothing once it has grown to the busiest tile.
+ *
+ * @author Jean-Luc Thumm
+ */
+class DrawList implements RenderTarget {
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final double BOUNDARY_WIDTH = 0.5;
+    private static final double SUMMARY_ALPHA = 0.25; // opacity of a summary per decade of points
+
+    // x, y of every point
+    private double[] points = new double[2 * INITIAL_CAPACITY];
+    private int pointCount;
+
+    // x, y, width, height of every boundary
+    private double[] boundaries = new double[4 * INITIAL_CAPACITY];
+    private int boundaryCount;
+
+    // x, y, width, height, alpha of every summary
+    private double[] summaries = new double[5 * INITIAL_CAPACITY];
+    private int summaryCount;
+
+    @Override
+    public void point(double x, double y) {
+        if (2 * pointCount == points.length) points = Arrays.copyOf(points, 2 * points.length);
+        int i = 2 * pointCount++;
+        points[i] = x;
+        points[i + 1] = y;
+    }
+
+    @Override
+    public void boundary(double x, double y, double width, double height) {
+        if (4 * boundaryCount == boundaries.length) boundaries = Arrays.copyOf(boundaries, 2 * boundaries.length);
+        int i = 4 * boundaryCount++;
+        boundaries[i] = x;
+        boundaries[i + 1] = y;
+        boundaries[i + 2] = width;
+        boundaries[i + 3] = height;
+    }
+
+    @Override
+    public void summary(double x, double y, double width, double height, int count) {
+        if (5 * summaryCount == summaries.length) summaries = Arrays.copyOf(summaries, 2 * summaries.length);
+        int i = 5 * summaryCount++;
+        summaries[i] = x;
+        summaries[i + 1] = y;
+        summaries[i + 2] = width;
+        summaries[i + 3] = height;
+        summaries[i + 4] = Math.min(1, SUMMARY_ALPHA * (1 + Math.log10(count)));
+    }
+
+    /**
+     * Empties the list, keeping its capacity
+     */
+    void clear() {
+        pointCount = 0;
+        boundaryCount = 0;
+        summaryCount = 0;
+    }
+
+    /**
+     * @return number of points, boundaries and summaries recorded
+     */
+    int size() {
+        return pointCount + boundaryCount + summaryCount;
+    }
+
+    /**
+     * Replays everything recorded onto {@code gc} with its current fill and stroke
+     */
+    void draw(GraphicsContext gc) {
+        double lineWidth = gc.getLineWidth();
+        gc.setLineWidth(BOUNDARY_WIDTH);
+        for (int i = 0; i < 4 * boundaryCount; i += 4) {
+            gc.strokeRect(boundaries[i], boundaries[i + 1], boundaries[i + 2], boundaries[i + 3]);
+        }
+        gc.setLineWidth(lineWidth);
+
+        double diameter = 2 * Main.POINT_RAD;
+        for (int i = 0; i < 2 * pointCount; i += 2) {
+            gc.fillOval(points[i] - Main.POINT_RAD, points[i + 1] - Main.POINT_RAD, diameter, diameter);
+        }
+
+        // Summaries are point sized marks over the extent of a node's points
+        double alpha = gc.getGlobalAlpha();
+        for (int i = 0; i < 5 * summaryCount; i += 5) {
+            gc.setGlobalAlpha(summaries[i + 4]);
+            gc.fillRect(summaries[i] - Main.POINT_RAD, summaries[i + 1] - Main.POINT_RAD,
+                    summaries[i + 2] + diameter, summaries[i + 3] + diameter);
+        }
+        gc.setGlobalAlpha(alpha);
+    }
+}
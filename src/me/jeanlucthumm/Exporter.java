@@ -0,0 +1,238 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+/**
+ * Renders a viewport of the data to a PNG image without a window, for
+ * images far larger than the screen. Run it through {@link Main} with
+ * {@code export} as the first argument, or on its own:
+ * <pre>
+ * export --input data.csv --view 0,0,100,50 --size 20000x10000 --out graph.png
+ * </pre>
+ * The image is rendered in strips one tile high, each split into tiles
+ * rendered in parallel on every core, the same way {@link Renderer} renders
+ * them. A finished strip is encoded while the next one renders, so only two
+ * strips of the image are ever in memory.
+ *
+ * @author Jean-Luc Thumm
+ */
+class Exporter {
+
+    static final String COMMAND = "export";
+    private static final int TILE_SIZE = Renderer.TILE_SIZE;
+    private static final int BACKGROUND = 0xFFFFFFFF;
+    private static final int BOUNDARY_COLOR = 0xFF000000;
+    private static final int MAX_SIDE = 1 << 16; // pixels per side of the largest image
+
+    private String input = Main.PATH;
+    private Rectangle2D view;   // region of the data to render, or null for all of it
+    private int width = 600;
+    private int height = 600;
+    private Path out = Paths.get("graph.png");
+    private boolean densityShaded;
+    private boolean boundaries;
+
+    private Series[] series;
+    private int[] colors;       // ARGB color of each series
+    private double widthRatio;  // pixels per unit
+    private double heightRatio;
+
+    /**
+     * Options:
+     * <ul>
+     * <li>{@code --input path} CSV file, or a single index file ending in {@value IndexFile#EXTENSION}
+     * or {@value PagedQuadTree#EXTENSION}</li>
+     * <li>{@code --view minX,minY,maxX,maxY} region of the data to render, all of it by default</li>
+     * <li>{@code --size WIDTHxHEIGHT} of the image in pixels, 600x600 by default</li>
+     * <li>{@code --out path} of the image, {@code graph.png} by default</li>
+     * <li>{@code --density} shades points by how many land on a pixel</li>
+     * <li>{@code --boundaries} also draws the outline of tree nodes</li>
+     * </ul>
+     */
+    public static void main(String[] args) throws IOException {
+        Exporter exporter = new Exporter();
+        exporter.parse(args);
+        exporter.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--input":
+                    input = args[++i];
+                    break;
+                case "--view":
+                    String[] corners = args[++i].split(",");
+                    if (corners.length != 4) throw new IllegalArgumentException("View needs minX,minY,maxX,maxY");
+                    double minX = Double.parseDouble(corners[0]);
+                    double minY = Double.parseDouble(corners[1]);
+                    view = new Rectangle2D(minX, minY, Double.parseDouble(corners[2]) - minX,
+                            Double.parseDouble(corners[3]) - minY);
+                    break;
+                case "--size":
+                    String[] sides = args[++i].toLowerCase().split("x");
+                    if (sides.length != 2) throw new IllegalArgumentException("Size needs WIDTHxHEIGHT");
+                    width = Integer.parseInt(sides[0]);
+                    height = Integer.parseInt(sides[1]);
+                    break;
+                case "--out":
+                    out = Paths.get(args[++i]);
+                    break;
+                case "--density":
+                    densityShaded = true;
+                    break;
+                case "--boundaries":
+                    boundaries = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (width <= 0 || height <= 0 || width > MAX_SIDE || height > MAX_SIDE) {
+            throw new IllegalArgumentException("Size must be between 1 and " + MAX_SIDE + " pixels per side");
+        }
+        if (view != null && (view.getWidth() <= 0 || view.getHeight() <= 0)) {
+            throw new IllegalArgumentException("View must have a width and a height");
+        }
+    }
+
+    private void run() throws IOException {
+        long start = System.nanoTime();
+        series = load();
+        if (series == null) return;
+        if (view == null) view = getBounds();
+        widthRatio = width / view.getWidth();
+        heightRatio = height / view.getHeight();
+        colors = new int[series.length];
+        for (int s = 0; s < series.length; s++) colors[s] = Renderer.argb(series[s].getColor());
+
+        // Strips go from the top of the image down, the next one rendering while one is written
+        int strips = (height + TILE_SIZE - 1) / TILE_SIZE;
+        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(out), 1 << 16);
+             PngWriter png = new PngWriter(stream, width, height)) {
+            CompletableFuture<int[]> next = CompletableFuture.supplyAsync(() -> renderStrip(0));
+            for (int strip = 0; strip < strips; strip++) {
+                int[] pixels = next.join();
+                int following = strip + 1;
+                if (following < strips) next = CompletableFuture.supplyAsync(() -> renderStrip(following));
+
+                // Rows of a strip are stored bottom up, as the canvas has its origin in the bottom left
+                int rows = stripHeight(strip);
+                for (int row = rows - 1; row >= 0; row--) png.writeRow(pixels, row * width);
+            }
+        }
+        System.out.printf("Exported %dx%d image to %s in %.1f s%n", width, height, out,
+                (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Reads the series of a CSV file, or opens a single index file
+     *
+     * @return SE, or {@code null} if there is no data
+     */
+    private Series[] load() throws IOException {
+        if (input.endsWith(PagedQuadTree.EXTENSION)) {
+            PagedQuadTree tree = PagedQuadTree.open(Paths.get(input), null, Main.PAGE_CACHE_BYTES);
+            if (tree == null) {
+                System.err.println(IndexFile.IOERROR_MSG + input);
+                return null;
+            }
+            return new Series[]{new Series(Paths.get(input).getFileName().toString(), tree, 0)};
+        }
+        if (input.endsWith(IndexFile.EXTENSION)) {
+            QuadTree tree = IndexFile.load(Paths.get(input));
+            if (tree == null) {
+                System.err.println(IndexFile.IOERROR_MSG + input);
+                return null;
+            }
+            return new Series[]{new Series(Paths.get(input).getFileName().toString(), tree, 0)};
+        }
+        return Series.load(input, new CSVReader(input), new Metrics());
+    }
+
+    /**
+     * @return bounds of every series that has points together
+     */
+    private Rectangle2D getBounds() {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (Series s : series) {
+            if (s.getIndex().isEmpty()) continue;
+            Rectangle2D b = s.getIndex().getBounds();
+            minX = Math.min(minX, b.getMinX());
+            minY = Math.min(minY, b.getMinY());
+            maxX = Math.max(maxX, b.getMaxX());
+            maxY = Math.max(maxY, b.getMaxY());
+        }
+        if (minX > maxX) return new Rectangle2D(0, 0, 1, 1);
+        return new Rectangle2D(minX, minY, Math.max(maxX - minX, Double.MIN_NORMAL),
+                Math.max(maxY - minY, Double.MIN_NORMAL));
+    }
+
+    /**
+     * @return rows of a strip, the bottom one holding what is left over
+     */
+    private int stripHeight(int strip) {
+        return Math.min(TILE_SIZE, height - strip * TILE_SIZE);
+    }
+
+    /**
+     * Renders a strip of the image, its tiles in parallel. The indexes are
+     * only read, so any number of tiles may traverse them at once.
+     *
+     * @return pixels of the strip, rows bottom up
+     */
+    private int[] renderStrip(int strip) {
+        int rows = stripHeight(strip);
+        int bottom = height - strip * TILE_SIZE - rows; // canvas y of the strip's bottom row
+        int[] pixels = new int[width * rows];
+        int tiles = (width + TILE_SIZE - 1) / TILE_SIZE;
+        IntStream.range(0, tiles).parallel().forEach(tile -> renderTile(tile * TILE_SIZE, bottom, rows, pixels));
+        return pixels;
+    }
+
+    /**
+     * Renders every series into one tile of a strip, over the background
+     *
+     * @param left   canvas x of the tile's left column
+     * @param bottom canvas y of the tile's bottom row
+     * @param pixels of the strip, written only where the tile lies
+     */
+    private void renderTile(int left, int bottom, int rows, int[] pixels) {
+        int columns = Math.min(TILE_SIZE, width - left);
+        ZoomLevel level = new ZoomLevel(view.getMinX() + left / widthRatio, view.getMinY() + bottom / heightRatio,
+                widthRatio, heightRatio);
+
+        // Drawn with some margin so that points on the tile's edges are not cut off
+        Rectangle2D bounds = new Rectangle2D(-Main.POINT_RAD, -Main.POINT_RAD, columns + 2 * Main.POINT_RAD,
+                rows + 2 * Main.POINT_RAD);
+        TraversalStats stats = new TraversalStats();
+        for (int row = 0; row < rows; row++) {
+            int offset = row * width + left;
+            for (int x = 0; x < columns; x++) pixels[offset + x] = BACKGROUND;
+        }
+        for (int s = 0; s < series.length; s++) {
+            PixelRaster raster = new PixelRaster(columns, rows, colors[s],
+                    boundaries ? BOUNDARY_COLOR : 0, densityShaded);
+            series[s].getIndex().graphPointsAndBoundaries(raster, level, bounds, () -> false, stats);
+            int[] drawn = raster.getPixels();
+            for (int row = 0; row < rows; row++) {
+                int offset = row * width + left;
+                for (int x = 0; x < columns; x++) {
+                    pixels[offset + x] = PixelRaster.blend(drawn[row * columns + x], pixels[offset + x]);
+                }
+            }
+        }
+    }
+}
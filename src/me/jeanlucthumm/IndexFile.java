@@ -0,0 +1,179 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary index file holding a built {@link QuadTree} next to the CSV file it
+ * was built from. Loading maps the file's columns into memory and hands them
+ * to the tree as is, so a tree of any size is ready as soon as the file is
+ * opened. Pages are read in by the OS as traversals touch them.
+ * <p>
+ * Layout: a fixed size little-endian header followed by the point columns
+ * and the node columns, each padded to 8 bytes. The header records the size
+ * and modification time of the CSV file so that an index gone stale is
+ * rebuilt rather than used.
+ *
+ * @author Jean-Luc Thumm
+ */
+class IndexFile {
+
+    static final String IOERROR_MSG = "Could not use index ";
+    static final String EXTENSION = ".qtree";
+    private static final int MAGIC = 0x51545245; // "QTRE"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 128;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * @param series position of the series among the CSV file's y columns
+     * @return path of the index file for a series of a CSV file, which for
+     * the first series is the CSV file's path with {@link #EXTENSION} added
+     */
+    static Path pathFor(String csvPath, int series) {
+        return Paths.get(series == 0 ? csvPath + EXTENSION : csvPath + "." + series + EXTENSION);
+    }
+
+    /**
+     * Maps the index of a series of a CSV file
+     *
+     * @return the tree, or {@code null} if there is no index or it is stale
+     * @throws IOException if the index could not be read
+     */
+    static QuadTree load(String csvPath, int series) throws IOException {
+        return load(pathFor(csvPath, series), Paths.get(csvPath));
+    }
+
+    /**
+     * Maps an index file on its own, such as one kept after its CSV file was
+     * moved away. Whether it is stale cannot be checked.
+     *
+     * @return the tree, or {@code null} if the file is not an index
+     * @throws IOException if the index could not be read
+     */
+    static QuadTree load(Path path) throws IOException {
+        return load(path, null);
+    }
+
+    /**
+     * @param csv CSV file the index must have been built from, or {@code null} to not check
+     */
+    private static QuadTree load(Path path, Path csv) throws IOException {
+        if (!Files.exists(path)) return null;
+
+        // Private mappings need a writable channel even though the file is never written
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_SIZE) return null;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+            channel.read(header, 0);
+            header.flip();
+
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) return null;
+            long csvSize = header.getLong();
+            long csvModified = header.getLong();
+            if (csv != null && (csvSize != Files.size(csv)
+                    || csvModified != Files.getLastModifiedTime(csv).toMillis())) return null;
+
+            int leafCapacity = header.getInt();
+            int maxDepth = header.getInt();
+            double minX = header.getDouble();
+            double minY = header.getDouble();
+            double width = header.getDouble();
+            double height = header.getDouble();
+            long size = header.getLong();
+            int pointCount = header.getInt();
+            int nodeCount = header.getInt();
+
+            // Mappings stay valid after the channel is closed
+            channel.position(HEADER_SIZE);
+            PointColumns points = PointColumns.map(channel, pointCount);
+            NodeColumns nodes = NodeColumns.map(channel, nodeCount, pointCount);
+            return new QuadTree(new Rectangle2D(minX, minY, width, height),
+                    leafCapacity, maxDepth, size, points, nodes);
+        }
+    }
+
+    /**
+     * Writes the index of a series of a CSV file. The file is written under a
+     * temporary name and moved into place, so a reader never sees half an index.
+     *
+     * @throws IOException if the index could not be written
+     */
+    static void save(QuadTree tree, String csvPath, int series) throws IOException {
+        Path path = pathFor(csvPath, series);
+        Path tmp = Paths.get(path + ".tmp");
+        Path csv = Paths.get(csvPath);
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+            header.putInt(MAGIC).putInt(VERSION);
+            header.putLong(Files.size(csv)).putLong(Files.getLastModifiedTime(csv).toMillis());
+            tree.writeHeader(header);
+            header.clear();
+            channel.write(header, 0);
+
+            channel.position(HEADER_SIZE);
+            tree.writeColumns(channel);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the first {@code count} elements of a column at the channel's
+     * position, padded to 8 bytes
+     */
+    static void write(FileChannel channel, Buffer column, int count) throws IOException {
+        int width = column instanceof IntBuffer ? Integer.BYTES : Double.BYTES;
+        long bytes = (long) count * width;
+        if (bytes > 0) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, channel.position(), bytes).order(ORDER);
+            if (column instanceof IntBuffer) {
+                mapped.asIntBuffer().put(((IntBuffer) column).duplicate().position(0).limit(count));
+            } else {
+                mapped.asDoubleBuffer().put(((DoubleBuffer) column).duplicate().position(0).limit(count));
+            }
+        }
+        channel.position(channel.position() + padded(bytes));
+    }
+
+    /**
+     * Maps {@code count} ints at the channel's position and moves past them
+     */
+    static IntBuffer mapInts(FileChannel channel, int count) throws IOException {
+        return map(channel, (long) count * Integer.BYTES).asIntBuffer();
+    }
+
+    /**
+     * Maps {@code count} doubles at the channel's position and moves past them
+     */
+    static DoubleBuffer mapDoubles(FileChannel channel, int count) throws IOException {
+        return map(channel, (long) count * Double.BYTES).asDoubleBuffer();
+    }
+
+    /**
+     * Maps a section privately: writes, such as new points added to a loaded
+     * tree, stay in memory and never reach the file
+     */
+    private static ByteBuffer map(FileChannel channel, long bytes) throws IOException {
+        ByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE, channel.position(), bytes).order(ORDER);
+        channel.position(channel.position() + padded(bytes));
+        return mapped;
+    }
+
+    private static long padded(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
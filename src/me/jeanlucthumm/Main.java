@@ -1,6 +1,8 @@
 package me.jeanlucthumm;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Bounds;
 import javafx.geometry.Point2D;
 import javafx.geometry.Rectangle2D;
@@ -8,18 +10,25 @@ import javafx.scene.Group;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.input.ScrollEvent;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Rectangle;
+import javafx.scene.text.Text;
 import javafx.scene.transform.Scale;
 import javafx.scene.transform.Translate;
 import javafx.stage.Stage;
-import javafx.util.Pair;
 
 import java.io.FileNotFoundException;
 import java.io.IOError;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Demonstration of quad tree insert and find, with visual feedback on subdivisions and
@@ -33,21 +42,53 @@ public class Main extends Application {
     public static final int POINT_RAD = 2;          // radius of points graphed
     public static final String PATH = "data.csv";   // path to data file (csv)
     public static final double ZOOM_INC = 0.1;        // amount of zoomLevel per scroll in percent
+    public static final double HOVER_RAD = 3 * POINT_RAD; // pixels from the cursor a hovered point may be
+    public static final Renderer.Backend BACKEND = Renderer.Backend.PIXELS; // how tiles are rasterized
+    public static final long METRICS_LOG_INTERVAL = 10;    // seconds between metrics printed to standard out
+    public static final long OVERLAY_INTERVAL = 250_000_000; // nanoseconds between metrics overlay updates
+    public static final long PAGE_CACHE_BYTES = 2L << 30;    // memory for pages of indexes kept on disk
+    public static final double COMPACT_ERROR = 0; // error allowed in stored coordinates, as a fraction of the
+                                                  // data's extent, or 0 to keep them exact
+    public static final int WINDOW_ROWS = 0;      // most recent rows of each series kept, or 0 to keep every row
+    public static final long WINDOW_SECONDS = 0;  // seconds a row is kept after it is read, or 0 to keep it
+    public static final boolean CONCURRENT_INSERTS = false; // index with trees that take rows on every core at once
+    public static final long FRAME_BUDGET = 8_000_000; // nanoseconds of rendering between frames shown while tiles
+                                                       // are refined, or 0 to show only finished tiles
 
     // Controls
     public static final MouseButton PAN_BUTTON = MouseButton.PRIMARY;
     public static final MouseButton SELECT_BUTTON = MouseButton.SECONDARY;
     public static final MouseButton RESET_ZOOM_BUTTON = MouseButton.MIDDLE;
+    public static final KeyCode DENSITY_KEY = KeyCode.D;
+    public static final KeyCode FOLLOW_KEY = KeyCode.F;
+    public static final KeyCode METRICS_KEY = KeyCode.M;
+    public static final KeyCode METRICS_LOG_KEY = KeyCode.L;
+    // Digit keys toggle the first ten series, 1 being the first and 0 the tenth
 
     private Group root;             // holds all other nodes
     private Canvas canvas;          // where graphing will occur
     private GraphicsContext gc;     // gc of canvas
-    private QuadTree tree;          // contains points for logn access times
+    private Series[] series;        // one per y column, each with a tree for logn access times
+    private Text[] legend;          // name of each series in its color
+    private Renderer renderer;      // renders trees off the application thread
+    private CSVReader reader;       // reader positioned after the rows in the trees
+    private Tailer tailer;          // follows rows appended to the data file
+    private final RegionStats selected = new RegionStats(); // last selection, used on the render worker
+    private final PointBuffer hovered = new PointBuffer(1); // point under the cursor, used on the render worker
+    private final AtomicLong hoverGeneration = new AtomicLong(); // bumped by each mouse move
+    private Text readout;           // coordinates of the point under the cursor
+    private final Metrics metrics = new Metrics();
+    private Text overlay;           // metrics shown over the graph
+    private AnimationTimer overlayTimer; // refreshes the overlay while it is shown
     private Point2D selecAnchor;    // stores anchor of each selection rectangle
-    private Point2D panAnchor;      // stores anchor of each pan
+    private double panAnchorX;      // stores anchor of each pan
+    private double panAnchorY;
     private Rectangle selecRec;     // actual selection rectangle
+    private Text selecStats;        // statistics of the points in the last selection
     private ZoomLevel initZoom;     // standard zoomLevel level
     private ZoomLevel zoomLevel;    // current zoomLevel level
+    private double maxWidthRatio = Double.POSITIVE_INFINITY;  // zoom past which compacted points would be
+    private double maxHeightRatio = Double.POSITIVE_INFINITY; // drawn half a pixel or more off
     private Rectangle2D localBounds;    // local bounds of canvas, does not change
 
     @Override
@@ -68,6 +109,34 @@ public class Main extends Application {
         canvas.getTransforms().add(new Scale(1, -1));
         root.getChildren().add(canvas);
 
+        // Set up hover readout, above the canvas and out of the way of the mouse
+        readout = new Text();
+        readout.setMouseTransparent(true);
+        readout.setVisible(false);
+        root.getChildren().add(readout);
+
+        // Set up selection statistics, shown where the last selection was
+        selecStats = new Text();
+        selecStats.setMouseTransparent(true);
+        selecStats.setVisible(false);
+        root.getChildren().add(selecStats);
+
+        // Set up metrics overlay in the top left corner
+        overlay = new Text(5, 15, "");
+        overlay.setMouseTransparent(true);
+        overlay.setVisible(false);
+        root.getChildren().add(overlay);
+        overlayTimer = new AnimationTimer() {
+            private long last;
+
+            @Override
+            public void handle(long now) {
+                if (now - last < OVERLAY_INTERVAL) return;
+                last = now;
+                overlay.setText(metrics.toString());
+            }
+        };
+
         // Get local bounds of canvas as rectangle for reference
         Bounds cBounds = canvas.getBoundsInLocal();
         localBounds = new Rectangle2D(cBounds.getMinX(), cBounds.getMinY(),
@@ -80,33 +149,42 @@ public class Main extends Application {
         canvas.setOnScroll(this::zoom);
         canvas.setOnMousePressed(this::handleCanvasClick);
         canvas.setOnMouseDragged(this::dragPan);
+        canvas.setOnMouseMoved(this::hover);
+        scene.setOnKeyPressed(this::handleKey);
 
-        // Generate and populate tree
-        CSVReader reader = new CSVReader(PATH);
+        // Generate and populate trees
         try {
+            reader = new CSVReader(PATH);
+            series = Series.load(PATH, reader, metrics);
+            if (series == null) return;
+
+            for (Series s : series) {
+                PointIndex index = s.getIndex();
+                System.out.printf("Series %s: %d points, %.1f bytes per point%n", s.getName(), index.getSize(),
+                        index.getBytesPerPoint());
+            }
+            if (series.length == 1 && series[0].getIndex() instanceof QuadTree) {
+                System.out.print("Tree shape\n" + ((QuadTree) series[0].getIndex()).getHistogram());
+            }
+            for (Series s : series) {
+                if (!(s.getIndex() instanceof CompactQuadTree)) continue;
+                CompactQuadTree compact = (CompactQuadTree) s.getIndex();
+                maxWidthRatio = Math.min(maxWidthRatio, 0.5 / compact.getErrorX());
+                maxHeightRatio = Math.min(maxHeightRatio, 0.5 / compact.getErrorY());
+            }
+
             // Create initial zoomLevel level
-            System.out.println("Getting bounds...");
-            Pair<Point2D, Point2D> corners = reader.getMinMax();
-            Point2D min = corners.getKey();
-            Point2D max = corners.getValue();
-            double initWidth = max.getX() - min.getX();
-            double initHeight = max.getY() - min.getY();
-            initZoom = new ZoomLevel(min, scene.getWidth() / initWidth, scene.getHeight() / initHeight);
-
-            // Create tree
-            System.out.println("Initializing tree...");
-            Rectangle2D bounds = new Rectangle2D(min.getX(), min.getY(), initWidth, initHeight);
-            tree = new QuadTree(bounds);
-            reader.readData(tree);
-
-            System.out.println("Size of tree " + tree.getSize());
+            Rectangle2D bounds = getBounds();
+            Point2D min = new Point2D(bounds.getMinX(), bounds.getMinY());
+            initZoom = new ZoomLevel(min, scene.getWidth() / bounds.getWidth(),
+                    scene.getHeight() / bounds.getHeight());
 
             // Zoom out a little for padding on the edges
             Point2D source = new Point2D(canvas.getWidth() / 2, canvas.getHeight() / 2); // zoom out evenly
-            initZoom.setZoom(source, tree.getBounds(), -0.05);
+            initZoom.setZoom(source, bounds, -0.05);
             zoomLevel = new ZoomLevel(initZoom);
 
-        } catch (FileNotFoundException e) {
+        } catch (FileNotFoundException | NoSuchFileException e) {
             System.err.println(CSVReader.NOFIND_MSG + PATH);
             return;
         } catch (IOError e) {
@@ -114,26 +192,53 @@ public class Main extends Application {
             return;
         }
 
-        gc.setFill(Color.BLUE);
+        // Set up legend in the top right corner
+        legend = new Text[series.length];
+        for (int i = 0; i < series.length; i++) {
+            legend[i] = new Text(scene.getWidth() - 120, 15 * (i + 1), series[i].getName());
+            legend[i].setFill(series[i].getColor());
+            legend[i].setMouseTransparent(true);
+            root.getChildren().add(legend[i]);
+        }
+
+        renderer = new Renderer(series, gc, localBounds, BACKEND, metrics);
+        tailer = new Tailer(reader, PATH, series, renderer, metrics);
 
         // Display to user
         primaryStage.show();
         clearAndGraph();
     }
 
+    /**
+     * @return bounds of every series that has points together
+     */
+    private Rectangle2D getBounds() {
+        Rectangle2D bounds = null;
+        for (Series s : series) {
+            if (s.getIndex().getSize() == 0) continue;
+            Rectangle2D b = s.getIndex().getBounds();
+            if (bounds == null) {
+                bounds = b;
+                continue;
+            }
+            double minX = Math.min(bounds.getMinX(), b.getMinX());
+            double minY = Math.min(bounds.getMinY(), b.getMinY());
+            bounds = new Rectangle2D(minX, minY, Math.max(bounds.getMaxX(), b.getMaxX()) - minX,
+                    Math.max(bounds.getMaxY(), b.getMaxY()) - minY);
+        }
+        return bounds != null ? bounds : series[0].getIndex().getBounds();
+    }
+
     private void clearAndGraph() {
-        gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
-        tree.graphPointsAndBoundaries(gc, zoomLevel, localBounds);
+        renderer.request(zoomLevel);
     }
 
     private void zoom(ScrollEvent event) {
         if (event.getDeltaY() > 0) { // Zoom in
-            Point2D source = new Point2D(event.getX(), event.getY());
-            zoomLevel.setZoom(source, tree.getBounds(), ZOOM_INC);
+            zoomLevel.setZoom(event.getX(), event.getY(), ZOOM_INC, maxWidthRatio, maxHeightRatio);
             clearAndGraph();
         } else if (event.getDeltaY() < 0){ // Zoom out
-            Point2D source = new Point2D(event.getX(), event.getY());
-            zoomLevel.setZoom(source, tree.getBounds(), -ZOOM_INC);
+            zoomLevel.setZoom(event.getX(), event.getY(), -ZOOM_INC);
             clearAndGraph();
         }
     }
@@ -142,7 +247,8 @@ public class Main extends Application {
     private void handleCanvasClick(MouseEvent event) {
         if (event.getButton() == PAN_BUTTON) {
             // Capture panAnchor
-            panAnchor = new Point2D(event.getX(), event.getY());
+            panAnchorX = event.getX();
+            panAnchorY = event.getY();
 
         } else if (event.getButton() == RESET_ZOOM_BUTTON) {
             // Reset zoom
@@ -151,22 +257,105 @@ public class Main extends Application {
         }
     }
 
+    private void handleKey(KeyEvent event) {
+        if (event.getCode() == DENSITY_KEY) {
+            // Toggle density shading
+            renderer.setDensityShaded(!renderer.isDensityShaded());
+            clearAndGraph();
+        } else if (event.getCode() == FOLLOW_KEY) {
+            // Toggle following rows appended to the data file
+            if (tailer.isRunning()) {
+                tailer.stop();
+                System.out.printf("Stopped following %s: %d rows read, %d points dropped, %d expired%n", PATH,
+                        tailer.getRowCount(), tailer.getDroppedCount(), tailer.getExpiredCount());
+            } else {
+                tailer.start();
+                System.out.println("Following " + PATH);
+            }
+        } else if (event.getCode() == METRICS_KEY) {
+            // Toggle metrics overlay
+            overlay.setVisible(!overlay.isVisible());
+            if (overlay.isVisible()) overlayTimer.start();
+            else overlayTimer.stop();
+            updateMetricsEnabled();
+        } else if (event.getCode() == METRICS_LOG_KEY) {
+            // Toggle printing metrics periodically
+            if (metrics.isLogging()) metrics.stopLogging();
+            else metrics.startLogging(METRICS_LOG_INTERVAL, TimeUnit.SECONDS);
+            updateMetricsEnabled();
+        } else if (event.getCode().isDigitKey()) {
+            // Toggle a series
+            String name = event.getCode().name();
+            int digit = name.charAt(name.length() - 1) - '0';
+            int index = digit == 0 ? 9 : digit - 1;
+            if (index >= series.length) return;
+            Series toggled = series[index];
+            toggled.setVisible(!toggled.isVisible());
+            legend[index].setText(toggled.getName() + (toggled.isVisible() ? "" : " (hidden)"));
+            clearAndGraph();
+        }
+    }
+
+    /** Records metrics only while something shows them */
+    private void updateMetricsEnabled() {
+        boolean enabled = overlay.isVisible() || metrics.isLogging();
+        if (enabled == metrics.isEnabled()) return;
+        metrics.setEnabled(enabled);
+        if (enabled) renderer.submit(() -> metrics.recordTrees(series)); // trees as of now, not the next render
+    }
+
     private void dragPan(MouseEvent event) {
         if (event.getButton() != PAN_BUTTON) return;
 
-        // Convert delta to original coordinates
-        Point2D delta = panAnchor.subtract(new Point2D(event.getX(), event.getY()));
-        delta = zoomLevel.convertDeltaToOriginal(delta);
-
-        zoomLevel.setPanDelta(delta);
+        // Delta is converted to original coordinates by the zoom level
+        zoomLevel.panByLocal(panAnchorX - event.getX(), panAnchorY - event.getY());
         clearAndGraph();
-        panAnchor = new Point2D(event.getX(), event.getY());
+        panAnchorX = event.getX();
+        panAnchorY = event.getY();
+    }
+
+    /** Shows the coordinates of the visible point under the cursor, if any */
+    private void hover(MouseEvent event) {
+        double x = zoomLevel.toOriginalX(event.getX());
+        double y = zoomLevel.toOriginalY(event.getY());
+        double scaleX = zoomLevel.getWidthRatio();
+        double scaleY = zoomLevel.getHeightRatio();
+        double sceneX = event.getSceneX();
+        double sceneY = event.getSceneY();
+
+        // Search on the render worker, skipping moves already superseded by the next one
+        long generation = hoverGeneration.incrementAndGet();
+        renderer.submit(() -> {
+            if (hoverGeneration.get() != generation) return;
+            String text = null;
+            double nearest = Double.POSITIVE_INFINITY;
+            for (Series s : series) {
+                if (!s.isVisible()) continue;
+                s.getIndex().nearest(x, y, scaleX, scaleY, 1, HOVER_RAD, hovered);
+                if (hovered.isEmpty()) continue;
+                double dx = (hovered.getX(0) - x) * scaleX;
+                double dy = (hovered.getY(0) - y) * scaleY;
+                if (dx * dx + dy * dy >= nearest) continue;
+                nearest = dx * dx + dy * dy;
+                text = String.format("%s (%g, %g)", s.getName(), hovered.getX(0), hovered.getY(0));
+            }
+            String found = text;
+            Platform.runLater(() -> {
+                if (hoverGeneration.get() != generation) return;
+                readout.setVisible(found != null);
+                if (found == null) return;
+                readout.setText(found);
+                readout.setX(sceneX + HOVER_RAD);
+                readout.setY(sceneY - HOVER_RAD);
+            });
+        });
     }
 
     /** Captures root point for selection rectangle */
     private void captureSelectionAnchor(MouseEvent event) {
         // Create selection rectangle and prep for dragging
         if (event.getButton() != SELECT_BUTTON) return;
+        selecStats.setVisible(false);
         selecAnchor = new Point2D(event.getX(), event.getY());
         selecRec = new Rectangle(selecAnchor.getX(), selecAnchor.getY(), 0, 0);
         selecRec.setStroke(Color.BLACK);
@@ -197,20 +386,65 @@ public class Main extends Application {
         }
     }
 
-    /** Removes selection triangle and delegates to tree to find points */
+    /** Removes selection triangle and shows statistics of the points of visible series inside it */
     private void endSelection(MouseEvent event) {
         // Convert to canvas coordinates
         if (event.getButton() != SELECT_BUTTON) return;
-        Point2D canvasPt = canvas.parentToLocal(selecRec.getX(), selecRec.getY());
-        Rectangle2D selection = new Rectangle2D(canvasPt.getX(), canvasPt.getY(),
-                selecRec.getWidth(), selecRec.getHeight());
+        Point2D first = canvas.parentToLocal(selecRec.getX(), selecRec.getY());
+        Point2D second = canvas.parentToLocal(selecRec.getX() + selecRec.getWidth(),
+                selecRec.getY() + selecRec.getHeight());
+        Rectangle2D selection = new Rectangle2D(Math.min(first.getX(), second.getX()),
+                Math.min(first.getY(), second.getY()), Math.abs(second.getX() - first.getX()),
+                Math.abs(second.getY() - first.getY()));
 
-        // Get rid of selection rectangle
+        // Get rid of selection rectangle, statistics go in its top left corner
+        double statsX = selecRec.getX() + 3;
+        double statsY = selecRec.getY() + 15;
         root.getChildren().remove(selecRec);
         selecRec = null;
+
+        // Aggregate on the render worker, where the trees do not change underneath
+        Rectangle2D region = zoomLevel.convertToOriginal(selection);
+        renderer.submit(() -> {
+            StringBuilder text = new StringBuilder();
+            long start = System.nanoTime();
+            for (Series s : series) {
+                if (!s.isVisible()) continue;
+                s.getIndex().aggregate(region, selected);
+                if (text.length() > 0) text.append(System.lineSeparator());
+                text.append(s.getName()).append(": ").append(selected);
+            }
+            if (text.length() > 0) {
+                text.append(System.lineSeparator())
+                        .append(String.format("in %.1f ms", (System.nanoTime() - start) / 1e6));
+            }
+            String stats = text.toString();
+            Platform.runLater(() -> {
+                if (selecRec != null) return; // a newer selection is being drawn
+                selecStats.setText(stats);
+                selecStats.setX(statsX);
+                selecStats.setY(statsY);
+                selecStats.setVisible(!stats.isEmpty());
+            });
+        });
     }
 
-    public static void main(String[] args) {
+    @Override
+    public void stop() {
+        if (tailer != null) tailer.stop();
+        metrics.stopLogging();
+        if (renderer != null) renderer.shutdown();
+    }
+
+    /**
+     * Opens the graph window, or with {@value Exporter#COMMAND} as the first
+     * argument renders an image without one, see {@link Exporter#main}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals(Exporter.COMMAND)) {
+            Exporter.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         launch(args);
     }
 }
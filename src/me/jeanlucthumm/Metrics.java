@@ -0,0 +1,291 @@
+package me.jeanlucthumm;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rendering and ingest instrumentation: frame times, what render traversals
+ * visited and drew, ingest throughput and the size of the tree. Read it
+ * through {@link #toString()}, as the on-screen overlay and the periodic log
+ * do, or record it with Flight Recorder, which gets custom events for every
+ * frame, render pass and ingested batch.
+ * <p>
+ * Recording is off until {@link #setEnabled} turns it on, and then costs a
+ * few counter updates per frame. Flight Recorder events are independent of
+ * it and cost nothing unless a recording is running.
+ *
+ * @author Jean-Luc Thumm
+ */
+class Metrics {
+
+    private static final int FRAME_BUCKETS = 12; // frame time buckets, the last one open ended
+
+    private volatile boolean enabled;
+    private ScheduledExecutorService logger;
+
+    // Frames presented, bucket i counting those that took under 2^i ms
+    private final AtomicLongArray frameTimes = new AtomicLongArray(FRAME_BUCKETS);
+    private final LongAdder frames = new LongAdder();
+    private volatile long lastFrameNanos;
+
+    // Render passes, and the traversal of the last one
+    private final LongAdder renders = new LongAdder();
+    private final LongAdder tilesRendered = new LongAdder();
+    private final LongAdder nodesVisited = new LongAdder();
+    private final LongAdder nodesPruned = new LongAdder();
+    private final LongAdder pointsDrawn = new LongAdder();
+    private volatile TraversalStats lastTraversal = new TraversalStats();
+
+    // Ingest
+    private final LongAdder rowsIngested = new LongAdder();
+    private final LongAdder ingestNanos = new LongAdder();
+
+    // Indexes of every series together, as of the last render or update
+    private volatile long treeSize;
+    private volatile int treeDepth;
+    private volatile long treeBytes;
+
+    /**
+     * Turns recording on or off. Counts gathered so far are kept.
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records a frame put on screen
+     *
+     * @param nanos time since the frame was requested
+     * @param tiles number of tiles the frame is made of
+     */
+    void recordFrame(long nanos, int tiles) {
+        FrameEvent event = new FrameEvent();
+        if (event.shouldCommit()) {
+            event.latency = nanos;
+            event.tiles = tiles;
+            event.commit();
+        }
+        if (!enabled) return;
+
+        int bucket = 0;
+        for (long millis = nanos / 1_000_000; millis > 0 && bucket < FRAME_BUCKETS - 1; millis >>= 1) bucket++;
+        frameTimes.incrementAndGet(bucket);
+        frames.increment();
+        lastFrameNanos = nanos;
+    }
+
+    /**
+     * Records a render pass. Call on the thread that ran the traversal.
+     *
+     * @param tiles     number of tiles rendered
+     * @param traversal what rendering them visited and drew
+     * @param event     begun when rendering started
+     */
+    void recordRender(int tiles, TraversalStats traversal, boolean cancelled, RenderEvent event) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.tiles = tiles;
+            event.nodesVisited = traversal.visited;
+            event.nodesPruned = traversal.pruned;
+            event.nodesSummarized = traversal.summarized;
+            event.pointsDrawn = traversal.points;
+            event.cancelled = cancelled;
+            event.commit();
+        }
+        if (!enabled) return;
+
+        renders.increment();
+        tilesRendered.add(tiles);
+        nodesVisited.add(traversal.visited);
+        nodesPruned.add(traversal.pruned);
+        pointsDrawn.add(traversal.points);
+        TraversalStats last = new TraversalStats();
+        last.visited = traversal.visited;
+        last.pruned = traversal.pruned;
+        last.summarized = traversal.summarized;
+        last.points = traversal.points;
+        lastTraversal = last;
+    }
+
+    /**
+     * Records rows read from the data file. Counted even while recording is
+     * off, being recorded once per batch.
+     *
+     * @param nanos time spent reading and parsing them
+     */
+    void recordIngest(long rows, long nanos) {
+        rowsIngested.add(rows);
+        ingestNanos.add(nanos);
+    }
+
+    /**
+     * Records the size of the indexes of every series. Call on the thread that changes them.
+     */
+    void recordTrees(Series[] series) {
+        if (!enabled) return;
+        long size = 0;
+        int depth = -1;
+        long bytes = 0;
+        for (Series s : series) {
+            size += s.getIndex().getSize();
+            depth = Math.max(depth, s.getIndex().getDepth());
+            bytes += s.getIndex().getMemoryBytes();
+        }
+        treeSize = size;
+        treeDepth = depth;
+        treeBytes = bytes;
+    }
+
+    /**
+     * Time under which a fraction of frames were presented, to the resolution of the histogram
+     *
+     * @param fraction between 0 and 1
+     * @return SE in milliseconds, or 0 if there were no frames
+     */
+    long getFrameTime(double fraction) {
+        long total = frames.sum();
+        if (total == 0) return 0;
+        long seen = 0;
+        for (int bucket = 0; bucket < FRAME_BUCKETS; bucket++) {
+            seen += frameTimes.get(bucket);
+            if (seen >= fraction * total) return 1L << bucket;
+        }
+        return 1L << (FRAME_BUCKETS - 1);
+    }
+
+    /**
+     * @return rows parsed per second while ingesting, or 0 if none were
+     */
+    double getRowsPerSecond() {
+        long nanos = ingestNanos.sum();
+        return nanos == 0 ? 0 : rowsIngested.sum() * 1e9 / nanos;
+    }
+
+    /**
+     * Starts printing the metrics to standard out periodically, if not already
+     */
+    void startLogging(long period, TimeUnit unit) {
+        if (logger != null) return;
+        logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.scheduleAtFixedRate(() -> System.out.print("Metrics\n" + this), period, period, unit);
+    }
+
+    void stopLogging() {
+        if (logger == null) return;
+        logger.shutdownNow();
+        logger = null;
+    }
+
+    boolean isLogging() {
+        return logger != null;
+    }
+
+    /**
+     * @return a few lines of text with every metric, each line ending with a line feed
+     */
+    @Override
+    public String toString() {
+        StringBuilder histogram = new StringBuilder();
+        for (int bucket = 0; bucket < FRAME_BUCKETS; bucket++) {
+            long count = frameTimes.get(bucket);
+            if (count == 0) continue;
+            histogram.append(bucket < FRAME_BUCKETS - 1 ? " <" : " >=")
+                    .append(1L << (bucket < FRAME_BUCKETS - 1 ? bucket : bucket - 1))
+                    .append("ms:").append(count);
+        }
+        TraversalStats last = lastTraversal;
+        return String.format("Frames %d, last %.1f ms, p50 < %d ms, p99 < %d ms\n", frames.sum(),
+                lastFrameNanos / 1e6, getFrameTime(0.5), getFrameTime(0.99))
+                + "Frame times" + (histogram.length() == 0 ? " none" : histogram) + "\n"
+                + String.format("Rendered %d tiles in %d passes, nodes visited %d, pruned %d, points drawn %d\n",
+                tilesRendered.sum(), renders.sum(), nodesVisited.sum(), nodesPruned.sum(), pointsDrawn.sum())
+                + String.format("Last pass visited %d nodes, pruned %d, summarized %d, drew %d points\n",
+                last.visited, last.pruned, last.summarized, last.points)
+                + String.format("Ingested %d rows at %.0f rows/s\n", rowsIngested.sum(), getRowsPerSecond())
+                + String.format("Indexes of %d points, depth %d, %.1f MB\n", treeSize, treeDepth, treeBytes / 1e6);
+    }
+
+    /**
+     * Flight Recorder event for a frame put on screen
+     */
+    @Name("me.jeanlucthumm.Frame")
+    @Label("Frame")
+    @Category("CSVGrapher")
+    static final class FrameEvent extends Event {
+        @Label("Latency")
+        @Timespan
+        long latency;
+
+        @Label("Tiles")
+        int tiles;
+    }
+
+    /**
+     * Flight Recorder event for a render pass of the worker, from start to finish
+     */
+    @Name("me.jeanlucthumm.Render")
+    @Label("Render")
+    @Category("CSVGrapher")
+    static final class RenderEvent extends Event {
+        @Label("Tiles Rendered")
+        int tiles;
+
+        @Label("Nodes Visited")
+        long nodesVisited;
+
+        @Label("Nodes Pruned")
+        long nodesPruned;
+
+        @Label("Nodes Summarized")
+        long nodesSummarized;
+
+        @Label("Points Drawn")
+        long pointsDrawn;
+
+        @Label("Cancelled")
+        boolean cancelled;
+    }
+
+    /**
+     * Flight Recorder event for a batch of rows appended to the data file
+     * being inserted into the tree
+     */
+    @Name("me.jeanlucthumm.Ingest")
+    @Label("Ingest")
+    @Category("CSVGrapher")
+    static final class IngestEvent extends Event {
+        @Label("Rows")
+        int rows;
+
+        @Label("Dropped")
+        int dropped;
+
+        @Label("Expired")
+        int expired;
+
+        @Label("Tree Size")
+        long treeSize;
+
+        @Label("Tree Memory")
+        @DataAmount
+        long treeBytes;
+    }
+}
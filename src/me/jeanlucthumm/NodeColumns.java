@@ -0,0 +1,347 @@
+package me.jeanlucthumm;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Growable primitive columns holding the nodes of a {@link QuadTree}, along
+ * with the links that chain the points held by each node. Columns are NIO
+ * buffers so that they can live on the heap or be mapped straight from an
+ * {@link IndexFile} without being read into objects.
+ *
+ * @author Jean-Luc Thumm
+ */
+class NodeColumns {
+
+    static final int NONE = -1;
+
+    // Node i has children quads[i] .. quads[i] + 3 (ne, nw, sw, se), or NONE if
+    // it is a leaf, and holds the chain of points starting at data[i], or NONE
+    private IntBuffer quads;
+    private IntBuffer data;
+
+    // Summary of node i's subtree: number of points and their extent
+    private IntBuffer counts;
+    private DoubleBuffer minXs;
+    private DoubleBuffer minYs;
+    private DoubleBuffer maxXs;
+    private DoubleBuffer maxYs;
+
+    // ... and the mean of their coordinates with the sum of squared deviations
+    // from it, merged as RegionStats merges them
+    private DoubleBuffer meanXs;
+    private DoubleBuffer meanYs;
+    private DoubleBuffer m2Xs;
+    private DoubleBuffer m2Ys;
+
+    // next[p] is the point after p in its node's chain, or NONE
+    private IntBuffer next;
+
+    private int size;
+
+    /**
+     * @param capacity     initial number of nodes that can be held before growing
+     * @param linkCapacity initial number of points that can be chained
+     */
+    NodeColumns(int capacity, int linkCapacity) {
+        capacity = Math.max(capacity, 1);
+        quads = IntBuffer.allocate(capacity);
+        data = IntBuffer.allocate(capacity);
+        counts = IntBuffer.allocate(capacity);
+        minXs = DoubleBuffer.allocate(capacity);
+        minYs = DoubleBuffer.allocate(capacity);
+        maxXs = DoubleBuffer.allocate(capacity);
+        maxYs = DoubleBuffer.allocate(capacity);
+        meanXs = DoubleBuffer.allocate(capacity);
+        meanYs = DoubleBuffer.allocate(capacity);
+        m2Xs = DoubleBuffer.allocate(capacity);
+        m2Ys = DoubleBuffer.allocate(capacity);
+        next = IntBuffer.allocate(Math.max(linkCapacity, 1));
+        size = 0;
+    }
+
+    private NodeColumns(int size) {
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Appends an empty leaf
+     *
+     * @return index of the new node
+     */
+    int newNode() {
+        if (size == quads.capacity()) ensureCapacity(size + (size >> 1) + 4);
+        quads.put(size, NONE);
+        data.put(size, NONE);
+        clearSummary(size);
+        return size++;
+    }
+
+    /**
+     * Makes room for at least {@code capacity} nodes
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity <= quads.capacity()) return;
+        quads = grow(quads, size, capacity);
+        data = grow(data, size, capacity);
+        counts = grow(counts, size, capacity);
+        minXs = grow(minXs, size, capacity);
+        minYs = grow(minYs, size, capacity);
+        maxXs = grow(maxXs, size, capacity);
+        maxYs = grow(maxYs, size, capacity);
+        meanXs = grow(meanXs, size, capacity);
+        meanYs = grow(meanYs, size, capacity);
+        m2Xs = grow(m2Xs, size, capacity);
+        m2Ys = grow(m2Ys, size, capacity);
+    }
+
+    /**
+     * Makes room to chain at least {@code capacity} points
+     */
+    void ensureLinks(int capacity) {
+        if (capacity <= next.capacity()) return;
+        next = grow(next, next.capacity(), Math.max(capacity, next.capacity() + (next.capacity() >> 1)));
+    }
+
+    boolean isLeaf(int node) {
+        return quads.get(node) == NONE; // all children are created at once
+    }
+
+    int getQuads(int node) {
+        return quads.get(node);
+    }
+
+    void setQuads(int node, int first) {
+        quads.put(node, first);
+    }
+
+    int getData(int node) {
+        return data.get(node);
+    }
+
+    void setData(int node, int point) {
+        data.put(node, point);
+    }
+
+    int getNext(int point) {
+        return next.get(point);
+    }
+
+    void setNext(int point, int following) {
+        next.put(point, following);
+    }
+
+    int getCount(int node) {
+        return counts.get(node);
+    }
+
+    double getMinX(int node) {
+        return minXs.get(node);
+    }
+
+    double getMinY(int node) {
+        return minYs.get(node);
+    }
+
+    double getMaxX(int node) {
+        return maxXs.get(node);
+    }
+
+    double getMaxY(int node) {
+        return maxYs.get(node);
+    }
+
+    double getMeanX(int node) {
+        return meanXs.get(node);
+    }
+
+    double getMeanY(int node) {
+        return meanYs.get(node);
+    }
+
+    /**
+     * @return sum of the squared deviations of the x of a node's points from their mean
+     */
+    double getM2X(int node) {
+        return m2Xs.get(node);
+    }
+
+    /**
+     * @return sum of the squared deviations of the y of a node's points from their mean
+     */
+    double getM2Y(int node) {
+        return m2Ys.get(node);
+    }
+
+    /**
+     * Resets a node's summary to that of an empty subtree
+     */
+    void clearSummary(int node) {
+        counts.put(node, 0);
+        minXs.put(node, Double.POSITIVE_INFINITY);
+        minYs.put(node, Double.POSITIVE_INFINITY);
+        maxXs.put(node, Double.NEGATIVE_INFINITY);
+        maxYs.put(node, Double.NEGATIVE_INFINITY);
+        meanXs.put(node, 0);
+        meanYs.put(node, 0);
+        m2Xs.put(node, 0);
+        m2Ys.put(node, 0);
+    }
+
+    /**
+     * Adds a point to a node's summary
+     */
+    void include(int node, double x, double y) {
+        include(node, 1, x, y, x, y, x, y, 0, 0);
+    }
+
+    /**
+     * Adds the summary of {@code from}'s node {@code fromNode} to a node's summary
+     */
+    void include(int node, NodeColumns from, int fromNode) {
+        include(node, from.getCount(fromNode), from.getMinX(fromNode), from.getMinY(fromNode),
+                from.getMaxX(fromNode), from.getMaxY(fromNode), from.getMeanX(fromNode), from.getMeanY(fromNode),
+                from.getM2X(fromNode), from.getM2Y(fromNode));
+    }
+
+    /**
+     * Adds a group of points to a node's summary
+     *
+     * @see RegionStats#add(long, double, double, double, double, double, double, double, double)
+     */
+    private void include(int node, int added, double minX, double minY, double maxX, double maxY,
+                         double meanX, double meanY, double m2X, double m2Y) {
+        if (added == 0) return;
+        int had = counts.get(node);
+        extend(node, had + added, minX, minY, maxX, maxY);
+        m2Xs.put(node, RegionStats.mergeM2(had, meanXs.get(node), m2Xs.get(node), added, meanX, m2X));
+        m2Ys.put(node, RegionStats.mergeM2(had, meanYs.get(node), m2Ys.get(node), added, meanY, m2Y));
+        meanXs.put(node, RegionStats.mergeMean(had, meanXs.get(node), added, meanX));
+        meanYs.put(node, RegionStats.mergeMean(had, meanYs.get(node), added, meanY));
+    }
+
+    /**
+     * Takes a point out of a node's count, mean and deviations. The extent
+     * is left as is, so a point on its edge needs the summary recomputed instead.
+     */
+    void exclude(int node, double x, double y) {
+        int count = counts.get(node) - 1;
+        counts.put(node, count);
+        if (count == 0) {
+            clearSummary(node);
+            return;
+        }
+        double oldMeanX = meanXs.get(node);
+        double oldMeanY = meanYs.get(node);
+        double meanX = oldMeanX - (x - oldMeanX) / count;
+        double meanY = oldMeanY - (y - oldMeanY) / count;
+        meanXs.put(node, meanX);
+        meanYs.put(node, meanY);
+        m2Xs.put(node, Math.max(0, m2Xs.get(node) - (x - meanX) * (x - oldMeanX))); // rounding can go below 0
+        m2Ys.put(node, Math.max(0, m2Ys.get(node) - (y - meanY) * (y - oldMeanY)));
+    }
+
+    /**
+     * Sets a node's count and widens its extent
+     */
+    private void extend(int node, int count, double minX, double minY, double maxX, double maxY) {
+        counts.put(node, count);
+        if (minX < minXs.get(node)) minXs.put(node, minX);
+        if (minY < minYs.get(node)) minYs.put(node, minY);
+        if (maxX > maxXs.get(node)) maxXs.put(node, maxX);
+        if (maxY > maxYs.get(node)) maxYs.put(node, maxY);
+    }
+
+    /**
+     * Copies node {@code fromNode} of {@code from} into {@code node}, moving
+     * its child reference by {@code shift}. Chain links are not copied.
+     */
+    void copy(NodeColumns from, int fromNode, int node, int shift) {
+        int first = from.getQuads(fromNode);
+        quads.put(node, first == NONE ? NONE : first + shift);
+        data.put(node, from.getData(fromNode));
+        clearSummary(node);
+        include(node, from, fromNode);
+    }
+
+    /**
+     * Claims {@code count} nodes that are about to be written with
+     * {@link #copy} instead of {@link #newNode()}
+     *
+     * @return index of the first node claimed
+     */
+    int claim(int count) {
+        ensureCapacity(size + count);
+        int first = size;
+        size += count;
+        return first;
+    }
+
+    /**
+     * @return bytes allocated for the columns, including spare capacity
+     */
+    long getMemoryBytes() {
+        return (long) quads.capacity() * (3 * Integer.BYTES + 8 * Double.BYTES)
+                + (long) next.capacity() * Integer.BYTES;
+    }
+
+    /**
+     * Writes the nodes in use and the links of the first {@code points} points
+     * at the channel's position
+     */
+    void write(FileChannel channel, int points) throws IOException {
+        IndexFile.write(channel, quads, size);
+        IndexFile.write(channel, data, size);
+        IndexFile.write(channel, counts, size);
+        IndexFile.write(channel, minXs, size);
+        IndexFile.write(channel, minYs, size);
+        IndexFile.write(channel, maxXs, size);
+        IndexFile.write(channel, maxYs, size);
+        IndexFile.write(channel, meanXs, size);
+        IndexFile.write(channel, meanYs, size);
+        IndexFile.write(channel, m2Xs, size);
+        IndexFile.write(channel, m2Ys, size);
+        IndexFile.write(channel, next, points);
+    }
+
+    /**
+     * Maps columns written by {@link #write} at the channel's position
+     *
+     * @param size   number of nodes written
+     * @param points number of links written
+     */
+    static NodeColumns map(FileChannel channel, int size, int points) throws IOException {
+        NodeColumns nodes = new NodeColumns(size);
+        nodes.quads = IndexFile.mapInts(channel, size);
+        nodes.data = IndexFile.mapInts(channel, size);
+        nodes.counts = IndexFile.mapInts(channel, size);
+        nodes.minXs = IndexFile.mapDoubles(channel, size);
+        nodes.minYs = IndexFile.mapDoubles(channel, size);
+        nodes.maxXs = IndexFile.mapDoubles(channel, size);
+        nodes.maxYs = IndexFile.mapDoubles(channel, size);
+        nodes.meanXs = IndexFile.mapDoubles(channel, size);
+        nodes.meanYs = IndexFile.mapDoubles(channel, size);
+        nodes.m2Xs = IndexFile.mapDoubles(channel, size);
+        nodes.m2Ys = IndexFile.mapDoubles(channel, size);
+        nodes.next = IndexFile.mapInts(channel, points);
+        return nodes;
+    }
+
+    private static IntBuffer grow(IntBuffer buffer, int used, int capacity) {
+        IntBuffer grown = IntBuffer.allocate(capacity);
+        grown.put(buffer.duplicate().position(0).limit(used));
+        return grown.clear();
+    }
+
+    private static DoubleBuffer grow(DoubleBuffer buffer, int used, int capacity) {
+        DoubleBuffer grown = DoubleBuffer.allocate(capacity);
+        grown.put(buffer.duplicate().position(0).limit(used));
+        return grown.clear();
+    }
+}
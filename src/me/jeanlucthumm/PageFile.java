@@ -0,0 +1,171 @@
+package me.jeanlucthumm;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * File read and written in fixed size pages through a bounded least
+ * recently used cache, for data far larger than the heap. Pages are read on
+ * first use, changed in memory, and written back when evicted or flushed.
+ * Pages past the end of the file read as zeros.
+ * <p>
+ * A page handed out stays valid to read after it is evicted, but changes
+ * made to it after that are lost: write to a page right after getting it,
+ * before getting any other.
+ * <p>
+ * I/O errors are thrown as {@link IOError}, callers having no way to recover
+ * from a page that cannot be read in the middle of a traversal.
+ *
+ * @author Jean-Luc Thumm
+ */
+class PageFile implements AutoCloseable {
+
+    static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final long maxBytes;
+    private final LinkedHashMap<Long, Page> pages = new LinkedHashMap<>(16, 0.75f, true); // access order
+
+    // Counters
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Opens a file, creating it if it does not exist
+     *
+     * @param maxBytes memory the cached pages may use before the least
+     *                 recently used ones are evicted
+     */
+    PageFile(Path path, int pageSize, long maxBytes) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.pageSize = pageSize;
+        this.maxBytes = maxBytes;
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Gets a page to read
+     */
+    synchronized ByteBuffer read(long page) {
+        return get(page).buffer;
+    }
+
+    /**
+     * Gets a page to change, which is written back once evicted or flushed
+     */
+    synchronized ByteBuffer write(long page) {
+        Page cached = get(page);
+        cached.dirty = true;
+        return cached.buffer;
+    }
+
+    private Page get(long page) {
+        Page cached = pages.get(page);
+        if (cached != null) {
+            hits++;
+            return cached;
+        }
+        misses++;
+        cached = new Page(ByteBuffer.allocate(pageSize).order(ORDER));
+        try {
+            long position = page * pageSize;
+            int read;
+            do {
+                read = channel.read(cached.buffer, position + cached.buffer.position());
+            } while (read > 0 && cached.buffer.hasRemaining());
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        cached.buffer.clear();
+        pages.put(page, cached);
+
+        // Evict least recently used pages until back under budget, always keeping the new one
+        for (Iterator<Map.Entry<Long, Page>> it = pages.entrySet().iterator();
+             (long) pages.size() * pageSize > maxBytes && pages.size() > 1; ) {
+            Map.Entry<Long, Page> eldest = it.next();
+            writeBack(eldest.getKey(), eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+        return cached;
+    }
+
+    private void writeBack(long page, Page cached) {
+        if (!cached.dirty) return;
+        try {
+            ByteBuffer buffer = cached.buffer.duplicate().clear();
+            long position = page * pageSize;
+            while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        cached.dirty = false;
+    }
+
+    /**
+     * Writes every changed page back to the file and forces it to storage
+     */
+    synchronized void flush() throws IOException {
+        try {
+            for (Map.Entry<Long, Page> entry : pages.entrySet()) writeBack(entry.getKey(), entry.getValue());
+        } catch (IOError e) {
+            throw (IOException) e.getCause();
+        }
+        channel.force(false);
+    }
+
+    /**
+     * @return memory held by cached pages
+     */
+    synchronized long getMemoryBytes() {
+        return (long) pages.size() * pageSize;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Flushes and closes the file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+            pages.clear();
+        }
+    }
+
+    private static final class Page {
+        final ByteBuffer buffer;
+        boolean dirty;
+
+        Page(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
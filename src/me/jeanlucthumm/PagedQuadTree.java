@@ -0,0 +1,887 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Quad tree kept on disk, for data sets larger than the heap. Nodes and the
+ * points of leaves live in fixed size pages of two files, read through
+ * {@link PageFile}s whose least recently used pages are evicted once a
+ * memory budget is reached. Inserts, queries and the render traversal read
+ * the pages they touch on demand, so the budget and not the data set sets
+ * how much memory the tree needs.
+ * <p>
+ * Nodes are records of {@link #NODE_BYTES} bytes holding their first child,
+ * the number and extent of the points below them, and for leaves the
+ * bucket holding their points. The four children of a node are created
+ * together and are consecutive. Buckets are {@link #BUCKET_BYTES} bytes
+ * and hold up to {@link #BUCKET_POINTS} points; a leaf that fills its bucket
+ * subdivides, unless it is at the maximum depth and chains another bucket.
+ * Counts and indices are longs, so the number of points is not limited to
+ * what an int holds. For that reason visitors are given -1 for the index of
+ * a point.
+ * <p>
+ * The nodes file starts with a header page recording the root bounds and
+ * sizes, and the CSV file the tree was built from. The header is only
+ * valid once {@link #save} has written it, so an interrupted build is
+ * rebuilt rather than used.
+ *
+ * @author Jean-Luc Thumm
+ */
+class PagedQuadTree implements PointIndex, AutoCloseable {
+
+    static final String EXTENSION = ".pqtree";
+    private static final String POINTS_EXTENSION = ".points";
+    private static final int MAGIC = 0x50515452; // "PQTR"
+    private static final int VERSION = 1;
+    private static final long NONE = -1;
+
+    private static final int PAGE_SIZE = 1 << 16;
+    static final int NODE_BYTES = 64;
+    private static final int NODES_PER_PAGE = PAGE_SIZE / NODE_BYTES;
+    static final int BUCKET_BYTES = 1 << 12;
+    private static final int BUCKETS_PER_PAGE = PAGE_SIZE / BUCKET_BYTES;
+    static final int BUCKET_POINTS = (BUCKET_BYTES - 16) / 16;
+
+    // Offsets of the fields of a node record
+    private static final int CHILDREN = 0;  // first of four children, or NONE for a leaf
+    private static final int COUNT = 8;     // points below the node
+    private static final int MIN_X = 16;    // extent of the points below the node
+    private static final int MIN_Y = 24;
+    private static final int MAX_X = 32;
+    private static final int MAX_Y = 40;
+    private static final int BUCKET = 48;   // first bucket of a leaf's points, or NONE
+
+    // Offsets of the fields of a bucket
+    private static final int NEXT = 0;      // next bucket of the same leaf, or NONE
+    private static final int SIZE = 8;      // points held
+    private static final int POINTS = 16;   // x and y of each point
+
+    private final PageFile nodes;
+    private final PageFile buckets;
+    private Rectangle2D bounds;
+    private long size;
+    private long nodeCount;
+    private long bucketCount;
+    private long freeBucket = NONE; // bucket freed by the last subdivision, reused by the next allocation
+    private int maxDepth;           // depth at which leaves stop subdividing and chain buckets instead
+    private int deepest = -1;       // depth of the deepest point, or -1 if empty
+    private long[] path;            // parents visited by the current insert
+
+    private double dirtyMinX = Double.POSITIVE_INFINITY;
+    private double dirtyMinY = Double.POSITIVE_INFINITY;
+    private double dirtyMaxX = Double.NEGATIVE_INFINITY;
+    private double dirtyMaxY = Double.NEGATIVE_INFINITY;
+
+    private PagedQuadTree(Path path, long cacheBytes) throws IOException {
+        // Nodes are read by every traversal, points only when zoomed in, so each gets half the budget
+        nodes = new PageFile(path, PAGE_SIZE, cacheBytes / 2);
+        buckets = new PageFile(Paths.get(path + POINTS_EXTENSION), PAGE_SIZE, cacheBytes / 2);
+    }
+
+    /**
+     * Creates an empty tree, replacing any tree already at the path
+     *
+     * @param bounds     initial bounds, which grow as points fall outside them
+     * @param cacheBytes memory the tree's pages may use
+     */
+    static PagedQuadTree create(Path path, Rectangle2D bounds, long cacheBytes) throws IOException {
+        delete(path);
+        PagedQuadTree tree = new PagedQuadTree(path, cacheBytes);
+        tree.bounds = aligned(QuadTree.growable(bounds));
+        tree.maxDepth = QuadTree.DEFAULT_MAX_DEPTH;
+        tree.path = new long[tree.maxDepth + 1];
+        tree.newNode();
+        return tree;
+    }
+
+    /**
+     * Opens a tree saved by {@link #save}
+     *
+     * @param csv        CSV file the tree must have been built from, or
+     *                   {@code null} to not check
+     * @param cacheBytes memory the tree's pages may use
+     * @return the tree, or {@code null} if there is none or it is stale
+     * @throws IOException if the tree could not be read
+     */
+    static PagedQuadTree open(Path path, Path csv, long cacheBytes) throws IOException {
+        if (!Files.exists(path) || !Files.exists(Paths.get(path + POINTS_EXTENSION))) return null;
+        PagedQuadTree tree = new PagedQuadTree(path, cacheBytes);
+        ByteBuffer header = tree.nodes.read(0).duplicate().order(PageFile.ORDER);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION
+                || csv != null && (header.getLong() != Files.size(csv)
+                || header.getLong() != Files.getLastModifiedTime(csv).toMillis())) {
+            tree.close();
+            return null;
+        }
+        header.position(24);
+        tree.bounds = new Rectangle2D(header.getDouble(), header.getDouble(), header.getDouble(),
+                header.getDouble());
+        tree.size = header.getLong();
+        tree.nodeCount = header.getLong();
+        tree.bucketCount = header.getLong();
+        tree.freeBucket = header.getLong();
+        tree.maxDepth = header.getInt();
+        tree.deepest = header.getInt();
+        tree.path = new long[tree.maxDepth + 1];
+        return tree;
+    }
+
+    /**
+     * Deletes the files of a tree, if there are any
+     */
+    static void delete(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(Paths.get(path + POINTS_EXTENSION));
+    }
+
+    /**
+     * @param series position of the series among the CSV file's y columns
+     * @return path of the tree of a series of a CSV file, named like an {@link IndexFile}
+     */
+    static Path pathFor(String csvPath, int series) {
+        return Paths.get(series == 0 ? csvPath + EXTENSION : csvPath + "." + series + EXTENSION);
+    }
+
+    /**
+     * Writes the header and every changed page, after which the tree can be opened again
+     *
+     * @param csv CSV file the tree was built from, whose size and modification time are recorded
+     */
+    void save(Path csv) throws IOException {
+        ByteBuffer header = nodes.write(0).duplicate().order(PageFile.ORDER);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putLong(Files.size(csv)).putLong(Files.getLastModifiedTime(csv).toMillis());
+        header.putDouble(bounds.getMinX()).putDouble(bounds.getMinY())
+                .putDouble(bounds.getWidth()).putDouble(bounds.getHeight());
+        header.putLong(size).putLong(nodeCount).putLong(bucketCount).putLong(freeBucket);
+        header.putInt(maxDepth).putInt(deepest);
+        buckets.flush();
+        nodes.flush();
+    }
+
+    /**
+     * Writes changed pages and closes the files. Changes since the last
+     * {@link #save} are not recorded in the header.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            buckets.close();
+        } finally {
+            nodes.close();
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public Rectangle2D getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public int getDepth() {
+        return deepest;
+    }
+
+    /**
+     * Memory held by cached pages, which the budget bounds however large the tree
+     */
+    @Override
+    public long getMemoryBytes() {
+        return nodes.getMemoryBytes() + buckets.getMemoryBytes();
+    }
+
+    @Override
+    public double getBytesPerPoint() {
+        if (size == 0) return 0;
+        return (double) getMemoryBytes() / size;
+    }
+
+    /**
+     * @return fraction of page reads served from memory, or 0 before any
+     */
+    double getCacheHitRate() {
+        long hits = nodes.getHits() + buckets.getHits();
+        long total = hits + nodes.getMisses() + buckets.getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private ByteBuffer readNode(long node) {
+        return nodes.read(1 + node / NODES_PER_PAGE);
+    }
+
+    private ByteBuffer writeNode(long node) {
+        return nodes.write(1 + node / NODES_PER_PAGE);
+    }
+
+    private static int at(long node) {
+        return (int) (node % NODES_PER_PAGE) * NODE_BYTES;
+    }
+
+    private ByteBuffer readBucket(long bucket) {
+        return buckets.read(bucket / BUCKETS_PER_PAGE);
+    }
+
+    private ByteBuffer writeBucket(long bucket) {
+        return buckets.write(bucket / BUCKETS_PER_PAGE);
+    }
+
+    private static int atBucket(long bucket) {
+        return (int) (bucket % BUCKETS_PER_PAGE) * BUCKET_BYTES;
+    }
+
+    private boolean isLeaf(long node) {
+        return readNode(node).getLong(at(node) + CHILDREN) == NONE;
+    }
+
+    /**
+     * Appends an empty leaf
+     *
+     * @return its id
+     */
+    private long newNode() {
+        long node = nodeCount++;
+        ByteBuffer page = writeNode(node);
+        int at = at(node);
+        page.putLong(at + CHILDREN, NONE);
+        page.putLong(at + COUNT, 0);
+        page.putDouble(at + MIN_X, Double.POSITIVE_INFINITY);
+        page.putDouble(at + MIN_Y, Double.POSITIVE_INFINITY);
+        page.putDouble(at + MAX_X, Double.NEGATIVE_INFINITY);
+        page.putDouble(at + MAX_Y, Double.NEGATIVE_INFINITY);
+        page.putLong(at + BUCKET, NONE);
+        return node;
+    }
+
+    /**
+     * @param next bucket to chain after the new one
+     * @return id of an empty bucket
+     */
+    private long newBucket(long next) {
+        long bucket = freeBucket != NONE ? freeBucket : bucketCount++;
+        freeBucket = NONE;
+        ByteBuffer page = writeBucket(bucket);
+        int at = atBucket(bucket);
+        page.putLong(at + NEXT, next);
+        page.putInt(at + SIZE, 0);
+        return bucket;
+    }
+
+    /**
+     * Counts a point in a node's summary
+     */
+    private void include(long node, double x, double y) {
+        ByteBuffer page = writeNode(node);
+        int at = at(node);
+        page.putLong(at + COUNT, page.getLong(at + COUNT) + 1);
+        if (x < page.getDouble(at + MIN_X)) page.putDouble(at + MIN_X, x);
+        if (y < page.getDouble(at + MIN_Y)) page.putDouble(at + MIN_Y, y);
+        if (x > page.getDouble(at + MAX_X)) page.putDouble(at + MAX_X, x);
+        if (y > page.getDouble(at + MAX_Y)) page.putDouble(at + MAX_Y, y);
+    }
+
+    /**
+     * Insertion operation. Grows the tree if the point is out of bounds.
+     *
+     * @return {@code true} if the insertion was succesful, {@code false} if
+     * the point is not finite, already in the tree, or could not be fitted
+     * in bounds grown by doubling
+     */
+    @Override
+    public boolean add(double x, double y) {
+        if (!bounds.contains(x, y) && !grow(x, y)) return false;
+
+        long node = 0;
+        int depth = 0;
+        double minX = bounds.getMinX();
+        double minY = bounds.getMinY();
+        double width = bounds.getWidth();
+        double height = bounds.getHeight();
+
+        // Parent node -> recur into the quadrant containing the point
+        long children;
+        while ((children = readNode(node).getLong(at(node) + CHILDREN)) != NONE) {
+            path[depth++] = node;
+            width /= 2;
+            height /= 2;
+            int quad = QuadTree.quadrant(x, y, minX + width, minY + height);
+            minX = QuadTree.quadMinX(quad, minX, width);
+            minY = QuadTree.quadMinY(quad, minY, height);
+            node = children + quad;
+        }
+        if (holds(node, x, y)) return false; // no duplicates
+
+        // Point is new -> summarize it along the path and add it to the leaf
+        for (int i = 0; i < depth; i++) include(path[i], x, y);
+        include(node, x, y);
+        append(node, depth, minX, minY, width, height, x, y);
+        size++;
+        markDirty(x, y, x, y);
+        return true;
+    }
+
+    /**
+     * Inserts a batch of points in Morton order, so that consecutive inserts
+     * land in the same leaves and pages rather than all over the files. The
+     * bounds first grow to fit the whole batch.
+     *
+     * @return number of points added
+     */
+    long addAll(PointColumns points) {
+        if (points.size() == 0) return 0;
+        Rectangle2D batch = points.getBounds();
+        if (!bounds.contains(batch.getMinX(), batch.getMinY())) grow(batch.getMinX(), batch.getMinY());
+        if (!bounds.contains(batch.getMaxX(), batch.getMaxY())) grow(batch.getMaxX(), batch.getMaxY());
+
+        // Code in the high half, index in the low half
+        double minX = bounds.getMinX();
+        double minY = bounds.getMinY();
+        double scaleX = (1 << QuadTree.MORTON_BITS) / bounds.getWidth();
+        double scaleY = (1 << QuadTree.MORTON_BITS) / bounds.getHeight();
+        int max = (1 << QuadTree.MORTON_BITS) - 1;
+        long[] keys = new long[points.size()];
+        for (int i = 0; i < keys.length; i++) {
+            int cellX = (int) Math.min(max, Math.max(0, (points.getX(i) - minX) * scaleX));
+            int cellY = (int) Math.min(max, Math.max(0, (points.getY(i) - minY) * scaleY));
+            keys[i] = (QuadTree.spread(cellX) | QuadTree.spread(cellY) << 1) << 32 | i;
+        }
+        Arrays.sort(keys);
+
+        long added = 0;
+        for (long key : keys) {
+            int i = (int) key;
+            if (add(points.getX(i), points.getY(i))) added++;
+        }
+        return added;
+    }
+
+    /**
+     * @return whether a leaf holds a point at {@code (x, y)}
+     */
+    private boolean holds(long leaf, double x, double y) {
+        for (long bucket = readNode(leaf).getLong(at(leaf) + BUCKET); bucket != NONE; ) {
+            ByteBuffer page = readBucket(bucket);
+            int at = atBucket(bucket);
+            int count = page.getInt(at + SIZE);
+            for (int i = 0, p = at + POINTS; i < count; i++, p += 16) {
+                if (page.getDouble(p) == x && page.getDouble(p + 8) == y) return true;
+            }
+            bucket = page.getLong(at + NEXT);
+        }
+        return false;
+    }
+
+    /**
+     * Puts a point already summarized by a leaf in the leaf's bucket,
+     * subdividing the leaf if the bucket is full
+     */
+    private void append(long leaf, int depth, double minX, double minY, double width, double height,
+                        double x, double y) {
+        if (depth > deepest) deepest = depth;
+        long head = readNode(leaf).getLong(at(leaf) + BUCKET);
+        if (head != NONE) {
+            ByteBuffer page = writeBucket(head);
+            int at = atBucket(head);
+            int count = page.getInt(at + SIZE);
+            if (count < BUCKET_POINTS) {
+                page.putDouble(at + POINTS + 16 * count, x);
+                page.putDouble(at + POINTS + 16 * count + 8, y);
+                page.putInt(at + SIZE, count + 1);
+                return;
+            }
+        }
+
+        // No room -> subdivide, or chain a new bucket once subdividing no longer helps
+        if (head != NONE && depth < maxDepth) {
+            subdivide(leaf, depth, minX, minY, width, height);
+            insertBelow(leaf, depth, minX, minY, width, height, x, y);
+            return;
+        }
+        long bucket = newBucket(head);
+        writeNode(leaf).putLong(at(leaf) + BUCKET, bucket);
+        ByteBuffer page = writeBucket(bucket);
+        int at = atBucket(bucket);
+        page.putDouble(at + POINTS, x);
+        page.putDouble(at + POINTS + 8, y);
+        page.putInt(at + SIZE, 1);
+    }
+
+    /**
+     * Turns a leaf with a full bucket into a parent of four leaves and moves its points down
+     */
+    private void subdivide(long leaf, int depth, double minX, double minY, double width, double height) {
+        long bucket = readNode(leaf).getLong(at(leaf) + BUCKET);
+        ByteBuffer page = readBucket(bucket);
+        int at = atBucket(bucket);
+        int count = page.getInt(at + SIZE);
+        double[] xs = new double[count];
+        double[] ys = new double[count];
+        for (int i = 0, p = at + POINTS; i < count; i++, p += 16) {
+            xs[i] = page.getDouble(p);
+            ys[i] = page.getDouble(p + 8);
+        }
+        freeBucket = bucket;
+
+        long first = newNode();
+        newNode();
+        newNode();
+        newNode();
+        ByteBuffer node = writeNode(leaf);
+        node.putLong(at(leaf) + CHILDREN, first);
+        node.putLong(at(leaf) + BUCKET, NONE);
+        for (int i = 0; i < count; i++) insertBelow(leaf, depth, minX, minY, width, height, xs[i], ys[i]);
+        markDirty(minX, minY, minX + width, minY + height); // new boundaries
+    }
+
+    /**
+     * Inserts a point below a parent that already summarizes it
+     */
+    private void insertBelow(long node, int depth, double minX, double minY, double width, double height,
+                             double x, double y) {
+        while (true) {
+            long children = readNode(node).getLong(at(node) + CHILDREN);
+            width /= 2;
+            height /= 2;
+            int quad = QuadTree.quadrant(x, y, minX + width, minY + height);
+            minX = QuadTree.quadMinX(quad, minX, width);
+            minY = QuadTree.quadMinY(quad, minY, height);
+            node = children + quad;
+            depth++;
+            include(node, x, y);
+            if (isLeaf(node)) {
+                append(node, depth, minX, minY, width, height, x, y);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Grows the root upward until it contains a point, the old root becoming
+     * a quadrant of the new one. An empty tree moves its bounds instead.
+     * Bounds are {@link #aligned}, so doubling them is exact.
+     *
+     * @return {@code false} if the point is not finite, or the bounds could
+     * not grow without rebuilding the tree, which is left to a new build
+     */
+    private boolean grow(double x, double y) {
+        if (!Double.isFinite(x) || !Double.isFinite(y)) return false;
+        if (size == 0) {
+            bounds = aligned(new Rectangle2D(x - bounds.getWidth() / 2, y - bounds.getHeight() / 2,
+                    bounds.getWidth(), bounds.getHeight()));
+            return bounds.contains(x, y);
+        }
+        while (!bounds.contains(x, y)) {
+            double width = bounds.getWidth();
+            double height = bounds.getHeight();
+            double minX = x < bounds.getMinX() ? bounds.getMinX() - width : bounds.getMinX();
+            double minY = y < bounds.getMinY() ? bounds.getMinY() - height : bounds.getMinY();
+            if (!Double.isFinite(minX + 2 * width) || !Double.isFinite(minY + 2 * height)) return false;
+
+            // Old node bounds must follow exactly from the new root, or points
+            // on dividing lines could end up in the wrong quadrant
+            int quad = QuadTree.quadrant(bounds.getMinX(), bounds.getMinY(), minX + width, minY + height);
+            if (QuadTree.quadMinX(quad, minX, width) != bounds.getMinX()
+                    || QuadTree.quadMinY(quad, minY, height) != bounds.getMinY()) return false;
+
+            long first = newNode();
+            newNode();
+            newNode();
+            newNode();
+            byte[] root = new byte[NODE_BYTES];
+            readNode(0).get(at(0), root);
+            writeNode(first + quad).put(at(first + quad), root);
+            ByteBuffer page = writeNode(0);
+            page.putLong(at(0) + CHILDREN, first);
+            page.putLong(at(0) + BUCKET, NONE);
+
+            bounds = new Rectangle2D(minX, minY, 2 * width, 2 * height);
+            maxDepth++;
+            path = new long[maxDepth + 1];
+            if (deepest >= 0) deepest++; // everything moved one level down
+        }
+        markDirty(bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY()); // new boundaries
+        return true;
+    }
+
+    /**
+     * Covers bounds with sides that are powers of two and corners that are
+     * multiples of half a side, so that doubling and halving them never rounds
+     */
+    static Rectangle2D aligned(Rectangle2D bounds) {
+        double width = alignedSide(bounds.getMinX(), bounds.getMaxX());
+        double height = alignedSide(bounds.getMinY(), bounds.getMaxY());
+        if (!Double.isFinite(width) || !Double.isFinite(height)) return bounds; // too wide to align
+        return new Rectangle2D(alignedMin(bounds.getMinX(), width), alignedMin(bounds.getMinY(), height), width,
+                height);
+    }
+
+    private static double alignedSide(double min, double max) {
+        double side = Math.scalb(1.0, Math.getExponent(max - min));
+        while (alignedMin(min, side) + side <= max) side *= 2;
+        return side;
+    }
+
+    private static double alignedMin(double min, double side) {
+        return Math.floor(min / (side / 2)) * (side / 2);
+    }
+
+    @Override
+    public Rectangle2D takeDirtyRegion() {
+        if (dirtyMinX > dirtyMaxX) return null;
+        Rectangle2D dirty = new Rectangle2D(dirtyMinX, dirtyMinY, dirtyMaxX - dirtyMinX, dirtyMaxY - dirtyMinY);
+        dirtyMinX = dirtyMinY = Double.POSITIVE_INFINITY;
+        dirtyMaxX = dirtyMaxY = Double.NEGATIVE_INFINITY;
+        return dirty;
+    }
+
+    private void markDirty(double minX, double minY, double maxX, double maxY) {
+        if (minX < dirtyMinX) dirtyMinX = minX;
+        if (minY < dirtyMinY) dirtyMinY = minY;
+        if (maxX > dirtyMaxX) dirtyMaxX = maxX;
+        if (maxY > dirtyMaxY) dirtyMaxY = maxY;
+    }
+
+    /**
+     * Draws every node intersecting the view along with its points, reading
+     * pages as it reaches them. Nodes smaller than the grain are drawn as
+     * their summary, so however much data is in view, only the pages down
+     * to grain sized nodes are read.
+     *
+     * @param grain     side in pixels below which nodes are summarized, 1 for full detail
+     * @param cancelled checked at every node, stops the traversal once it returns {@code true}
+     * @param stats     counts what the traversal visited and drew, added to what it holds
+     * @return {@code false} if the traversal was cancelled
+     */
+    @Override
+    public boolean graphPointsAndBoundaries(RenderTarget target, ZoomLevel level, Rectangle2D localBounds, int grain,
+                                            BooleanSupplier cancelled, TraversalStats stats) {
+        return graph(0, bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), bounds.getHeight(), target, level,
+                grain / level.getWidthRatio(), grain / level.getHeightRatio(), localBounds, cancelled, stats);
+    }
+
+    /**
+     * Recursive helper for {@link #graphPointsAndBoundaries}
+     *
+     * @return {@code false} if cancelled
+     */
+    private boolean graph(long node, double minX, double minY, double width, double height, RenderTarget target,
+                          ZoomLevel level, double pixelWidth, double pixelHeight, Rectangle2D localBounds,
+                          BooleanSupplier cancelled, TraversalStats stats) {
+        if (cancelled.getAsBoolean()) return false;
+        stats.visited++;
+        if (!QuadTree.isInView(minX, minY, width, height, level, localBounds)) {
+            stats.pruned++;
+            return true;
+        }
+
+        ByteBuffer page = readNode(node);
+        int at = at(node);
+        long count = page.getLong(at + COUNT);
+
+        // Node is smaller than the grain -> its summary is all there is to see
+        if (width < pixelWidth && height < pixelHeight) {
+            if (count == 0) {
+                stats.pruned++;
+                return true;
+            }
+            double extentMinX = page.getDouble(at + MIN_X);
+            double extentMinY = page.getDouble(at + MIN_Y);
+            target.summary(level.toLocalX(extentMinX), level.toLocalY(extentMinY),
+                    (page.getDouble(at + MAX_X) - extentMinX) * level.getWidthRatio(),
+                    (page.getDouble(at + MAX_Y) - extentMinY) * level.getHeightRatio(),
+                    (int) Math.min(count, Integer.MAX_VALUE));
+            stats.summarized++;
+            return true;
+        }
+
+        target.boundary(level.toLocalX(minX), level.toLocalY(minY),
+                width * level.getWidthRatio(), height * level.getHeightRatio());
+
+        long children = page.getLong(at + CHILDREN);
+        if (children == NONE) {
+            for (long bucket = page.getLong(at + BUCKET); bucket != NONE; ) {
+                ByteBuffer points = readBucket(bucket);
+                int atBucket = atBucket(bucket);
+                int size = points.getInt(atBucket + SIZE);
+                for (int i = 0, p = atBucket + POINTS; i < size; i++, p += 16) {
+                    target.point(level.toLocalX(points.getDouble(p)), level.toLocalY(points.getDouble(p + 8)));
+                    stats.points++;
+                }
+                bucket = points.getLong(atBucket + NEXT);
+            }
+            return true;
+        }
+
+        double halfWidth = width / 2;
+        double halfHeight = height / 2;
+        for (int quad = 0; quad < 4; quad++) {
+            if (!graph(children + quad, QuadTree.quadMinX(quad, minX, halfWidth),
+                    QuadTree.quadMinY(quad, minY, halfHeight), halfWidth, halfHeight, target, level,
+                    pixelWidth, pixelHeight, localBounds, cancelled, stats)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Visits every point in a region. Subtrees whose points all lie outside
+     * it are skipped, and those whose points all lie inside are taken whole.
+     *
+     * @param bound region to search, edges included
+     */
+    @Override
+    public void query(Rectangle2D bound, PointVisitor visitor) {
+        query(0, bound.getMinX(), bound.getMinY(), bound.getMaxX(), bound.getMaxY(), false, visitor);
+    }
+
+    /**
+     * Recursive helper for {@link #query(Rectangle2D, PointVisitor)}
+     *
+     * @param covered whether the region is known to contain every point below the node
+     */
+    private void query(long node, double minX, double minY, double maxX, double maxY, boolean covered,
+                       PointVisitor visitor) {
+        ByteBuffer page = readNode(node);
+        int at = at(node);
+        if (page.getLong(at + COUNT) == 0) return;
+        if (!covered) {
+            double extentMinX = page.getDouble(at + MIN_X);
+            double extentMinY = page.getDouble(at + MIN_Y);
+            double extentMaxX = page.getDouble(at + MAX_X);
+            double extentMaxY = page.getDouble(at + MAX_Y);
+            if (extentMaxX < minX || extentMinX > maxX || extentMaxY < minY || extentMinY > maxY) return;
+            covered = extentMinX >= minX && extentMaxX <= maxX && extentMinY >= minY && extentMaxY <= maxY;
+        }
+
+        long children = page.getLong(at + CHILDREN);
+        if (children == NONE) {
+            for (long bucket = page.getLong(at + BUCKET); bucket != NONE; ) {
+                ByteBuffer points = readBucket(bucket);
+                int atBucket = atBucket(bucket);
+                int size = points.getInt(atBucket + SIZE);
+                for (int i = 0, p = atBucket + POINTS; i < size; i++, p += 16) {
+                    double x = points.getDouble(p);
+                    double y = points.getDouble(p + 8);
+                    if (covered || x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                        visitor.visit((int) NONE, x, y);
+                    }
+                }
+                bucket = points.getLong(atBucket + NEXT);
+            }
+            return;
+        }
+        for (int quad = 0; quad < 4; quad++) query(children + quad, minX, minY, maxX, maxY, covered, visitor);
+    }
+
+    @Override
+    public void query(Rectangle2D bound, PointBuffer result) {
+        result.clear();
+        query(bound, (PointVisitor) result);
+    }
+
+    /**
+     * Counts the points in a region, taking the count of subtrees whose
+     * points all lie inside it without reading their leaves
+     *
+     * @param bound region to search, edges included
+     * @return number of points in the region
+     */
+    @Override
+    public long count(Rectangle2D bound) {
+        return count(0, bound.getMinX(), bound.getMinY(), bound.getMaxX(), bound.getMaxY());
+    }
+
+    /**
+     * Recursive helper for {@link #count(Rectangle2D)}
+     */
+    private long count(long node, double minX, double minY, double maxX, double maxY) {
+        ByteBuffer page = readNode(node);
+        int at = at(node);
+        long count = page.getLong(at + COUNT);
+        if (count == 0) return 0;
+        double extentMinX = page.getDouble(at + MIN_X);
+        double extentMinY = page.getDouble(at + MIN_Y);
+        double extentMaxX = page.getDouble(at + MAX_X);
+        double extentMaxY = page.getDouble(at + MAX_Y);
+        if (extentMaxX < minX || extentMinX > maxX || extentMaxY < minY || extentMinY > maxY) return 0;
+        if (extentMinX >= minX && extentMaxX <= maxX && extentMinY >= minY && extentMaxY <= maxY) return count;
+
+        long children = page.getLong(at + CHILDREN);
+        if (children != NONE) {
+            long found = 0;
+            for (int quad = 0; quad < 4; quad++) found += count(children + quad, minX, minY, maxX, maxY);
+            return found;
+        }
+        long found = 0;
+        for (long bucket = page.getLong(at + BUCKET); bucket != NONE; ) {
+            ByteBuffer points = readBucket(bucket);
+            int atBucket = atBucket(bucket);
+            int size = points.getInt(atBucket + SIZE);
+            for (int i = 0, p = atBucket + POINTS; i < size; i++, p += 16) {
+                double x = points.getDouble(p);
+                double y = points.getDouble(p + 8);
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY) found++;
+            }
+            bucket = points.getLong(atBucket + NEXT);
+        }
+        return found;
+    }
+
+    /**
+     * Finds the {@code k} points nearest to a location, nearest first, with
+     * each axis scaled before measuring distance. Searches best first like
+     * {@link QuadTree#nearest(double, double, double, double, int, double, PointBuffer)},
+     * so only the pages around the location are read.
+     *
+     * @param scaleX      factor applied to x offsets
+     * @param scaleY      factor applied to y offsets
+     * @param maxDistance scaled distance beyond which points are ignored
+     * @param result      buffer to fill, reused between queries
+     */
+    @Override
+    public void nearest(double x, double y, double scaleX, double scaleY, int k, double maxDistance,
+                        PointBuffer result) {
+        result.clear();
+        if (k <= 0 || size == 0) return;
+        new NearestSearch(x, y, scaleX, scaleY, (int) Math.min(k, size), maxDistance).run(result);
+    }
+
+    /**
+     * State of a nearest neighbor search: a min-heap of nodes to visit by
+     * distance, and the points found so far kept sorted nearest first,
+     * {@code k} being small
+     */
+    private final class NearestSearch {
+        private final double x;
+        private final double y;
+        private final double scaleX;
+        private final double scaleY;
+        private double limit; // squared distance a point must beat to be kept
+
+        private long[] queued = new long[64];
+        private double[] queuedDistances = new double[64];
+        private int queueSize;
+
+        private final double[] foundXs;
+        private final double[] foundYs;
+        private final double[] foundDistances;
+        private int foundSize;
+
+        NearestSearch(double x, double y, double scaleX, double scaleY, int k, double maxDistance) {
+            this.x = x;
+            this.y = y;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            limit = maxDistance * maxDistance;
+            foundXs = new double[k];
+            foundYs = new double[k];
+            foundDistances = new double[k];
+        }
+
+        void run(PointBuffer result) {
+            offer(0);
+            while (queueSize > 0 && queuedDistances[0] <= limit) {
+                long node = poll();
+                ByteBuffer page = readNode(node);
+                int at = at(node);
+                long children = page.getLong(at + CHILDREN);
+                if (children != NONE) {
+                    for (int quad = 0; quad < 4; quad++) offer(children + quad);
+                    continue;
+                }
+                for (long bucket = page.getLong(at + BUCKET); bucket != NONE; ) {
+                    ByteBuffer points = readBucket(bucket);
+                    int atBucket = atBucket(bucket);
+                    int size = points.getInt(atBucket + SIZE);
+                    for (int i = 0, p = atBucket + POINTS; i < size; i++, p += 16) {
+                        consider(points.getDouble(p), points.getDouble(p + 8));
+                    }
+                    bucket = points.getLong(atBucket + NEXT);
+                }
+            }
+            for (int i = 0; i < foundSize; i++) result.visit((int) NONE, foundXs[i], foundYs[i]);
+        }
+
+        /**
+         * Queues a node by the squared scaled distance to the extent of its points, unless it is empty
+         */
+        private void offer(long node) {
+            ByteBuffer page = readNode(node);
+            int at = at(node);
+            if (page.getLong(at + COUNT) == 0) return;
+            double dx = Math.max(0, Math.max(page.getDouble(at + MIN_X) - x, x - page.getDouble(at + MAX_X)));
+            double dy = Math.max(0, Math.max(page.getDouble(at + MIN_Y) - y, y - page.getDouble(at + MAX_Y)));
+            double distance = dx * scaleX * dx * scaleX + dy * scaleY * dy * scaleY;
+            if (distance > limit) return;
+
+            if (queueSize == queued.length) {
+                queued = Arrays.copyOf(queued, 2 * queueSize);
+                queuedDistances = Arrays.copyOf(queuedDistances, 2 * queueSize);
+            }
+            int i = queueSize++;
+            while (i > 0 && queuedDistances[(i - 1) / 2] > distance) {
+                int parent = (i - 1) / 2;
+                queued[i] = queued[parent];
+                queuedDistances[i] = queuedDistances[parent];
+                i = parent;
+            }
+            queued[i] = node;
+            queuedDistances[i] = distance;
+        }
+
+        private long poll() {
+            long top = queued[0];
+            long last = queued[--queueSize];
+            double lastDistance = queuedDistances[queueSize];
+            int i = 0;
+            while (2 * i + 1 < queueSize) {
+                int child = 2 * i + 1;
+                if (child + 1 < queueSize && queuedDistances[child + 1] < queuedDistances[child]) child++;
+                if (queuedDistances[child] >= lastDistance) break;
+                queued[i] = queued[child];
+                queuedDistances[i] = queuedDistances[child];
+                i = child;
+            }
+            queued[i] = last;
+            queuedDistances[i] = lastDistance;
+            return top;
+        }
+
+        private void consider(double px, double py) {
+            double dx = (px - x) * scaleX;
+            double dy = (py - y) * scaleY;
+            double distance = dx * dx + dy * dy;
+            if (distance > limit || foundSize == foundXs.length && distance >= limit) return;
+
+            // Insert in order, dropping the farthest once full
+            int i = Math.min(foundSize, foundXs.length - 1);
+            while (i > 0 && foundDistances[i - 1] > distance) {
+                foundXs[i] = foundXs[i - 1];
+                foundYs[i] = foundYs[i - 1];
+                foundDistances[i] = foundDistances[i - 1];
+                i--;
+            }
+            foundXs[i] = px;
+            foundYs[i] = py;
+            foundDistances[i] = distance;
+            if (foundSize < foundXs.length) foundSize++;
+            if (foundSize == foundXs.length) limit = foundDistances[foundSize - 1];
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package me.jeanlucthumm;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+
+import java.util.Arrays;
+
+/**
+ * {@link RenderTarget} that stamps what is drawn straight into an
+ * {@code int[]} of ARGB pixels, which is then pushed to an image with a
+ * single {@link PixelWriter#setPixels} call. Drawing a point costs a few
+ * array writes instead of a canvas command, so frame time stays flat however
+ * many points are visible, and rasterizing can run on any thread.
+ * <p>
+ * With density shading, points and summaries add to a per pixel count
+ * instead of painting over each other, and each pixel's opacity follows the
+ * number of points that landed on it.
+ *
+ * @author Jean-Luc Thumm
+ */
+class PixelRaster implements RenderTarget {
+
+    private static final double BOUNDARY_ALPHA = 0.5;
+    private static final double DENSITY_ALPHA = 0.25; // opacity per decade of points
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+    private int[] density; // points per pixel, or null without density shading
+    private int pointColor;
+    private final int boundaryColor;
+
+    /**
+     * @param pointColor    ARGB color of points and summaries
+     * @param boundaryColor ARGB color of node boundaries
+     * @param densityShaded whether to shade points by how many land on a pixel
+     */
+    PixelRaster(int width, int height, int pointColor, int boundaryColor, boolean densityShaded) {
+        this.width = width;
+        this.height = height;
+        this.pointColor = pointColor;
+        this.boundaryColor = boundaryColor;
+        pixels = new int[width * height];
+        density = densityShaded ? new int[width * height] : null;
+    }
+
+    @Override
+    public void point(double x, double y) {
+        // Cover every pixel whose center is within the radius, like fillOval would
+        double r = Main.POINT_RAD;
+        int minX = Math.max(0, (int) Math.floor(x - r));
+        int maxX = Math.min(width - 1, (int) Math.ceil(x + r) - 1);
+        int minY = Math.max(0, (int) Math.floor(y - r));
+        int maxY = Math.min(height - 1, (int) Math.ceil(y + r) - 1);
+        for (int py = minY; py <= maxY; py++) {
+            double dy = py + 0.5 - y;
+            int row = py * width;
+            for (int px = minX; px <= maxX; px++) {
+                double dx = px + 0.5 - x;
+                if (dx * dx + dy * dy > r * r) continue;
+                if (density != null) density[row + px]++;
+                else pixels[row + px] = pointColor;
+            }
+        }
+    }
+
+    @Override
+    public void boundary(double x, double y, double width, double height) {
+        int minX = (int) Math.round(x);
+        int minY = (int) Math.round(y);
+        int maxX = (int) Math.round(x + width);
+        int maxY = (int) Math.round(y + height);
+        int color = withAlpha(boundaryColor, BOUNDARY_ALPHA);
+        horizontal(minY, minX, maxX, color);
+        horizontal(maxY, minX, maxX, color);
+        vertical(minX, minY + 1, maxY - 1, color);
+        vertical(maxX, minY + 1, maxY - 1, color);
+    }
+
+    @Override
+    public void summary(double x, double y, double width, double height, int count) {
+        // Point sized mark over the extent of the node's points
+        double r = Main.POINT_RAD;
+        int minX = Math.max(0, (int) Math.round(x - r));
+        int minY = Math.max(0, (int) Math.round(y - r));
+        int maxX = Math.min(this.width, (int) Math.round(x + width + r));
+        int maxY = Math.min(this.height, (int) Math.round(y + height + r));
+        if (minX >= maxX || minY >= maxY) return;
+
+        if (density != null) {
+            // Spread the points over the pixels they cover
+            int share = Math.max(1, count / ((maxX - minX) * (maxY - minY)));
+            for (int py = minY; py < maxY; py++) {
+                int row = py * this.width;
+                for (int px = minX; px < maxX; px++) density[row + px] += share;
+            }
+            return;
+        }
+        int color = withAlpha(pointColor, alphaOf(count));
+        for (int py = minY; py < maxY; py++) {
+            int row = py * this.width;
+            for (int px = minX; px < maxX; px++) pixels[row + px] = blend(color, pixels[row + px]);
+        }
+    }
+
+    /**
+     * Empties the raster
+     */
+    void clear() {
+        Arrays.fill(pixels, 0);
+        if (density != null) Arrays.fill(density, 0);
+    }
+
+    /**
+     * Empties the raster and changes the color and shading it draws with,
+     * so that it can be reused for another tile
+     *
+     * @see #PixelRaster(int, int, int, int, boolean)
+     */
+    void reset(int pointColor, boolean densityShaded) {
+        this.pointColor = pointColor;
+        if (!densityShaded) density = null;
+        else if (density == null) density = new int[width * height];
+        clear();
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Finished ARGB pixels, row by row. With density shading, call after
+     * everything is drawn: boundaries end up over the shaded points.
+     *
+     * @return SE, not a copy
+     */
+    int[] getPixels() {
+        if (density != null) {
+            for (int i = 0; i < pixels.length; i++) {
+                if (density[i] == 0) continue;
+                pixels[i] = blend(pixels[i], withAlpha(pointColor, alphaOf(density[i])));
+                density[i] = 0;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Pushes the raster to the top left corner of {@code writer} in one call
+     */
+    void writeTo(PixelWriter writer) {
+        writer.setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), getPixels(), 0, width);
+    }
+
+    private void horizontal(int y, int minX, int maxX, int color) {
+        if (y < 0 || y >= height) return;
+        int row = y * width;
+        for (int x = Math.max(0, minX); x <= Math.min(width - 1, maxX); x++) {
+            pixels[row + x] = blend(color, pixels[row + x]);
+        }
+    }
+
+    private void vertical(int x, int minY, int maxY, int color) {
+        if (x < 0 || x >= width) return;
+        for (int y = Math.max(0, minY); y <= Math.min(height - 1, maxY); y++) {
+            pixels[y * width + x] = blend(color, pixels[y * width + x]);
+        }
+    }
+
+    /**
+     * Opacity of {@code count} points on top of each other
+     */
+    private static double alphaOf(int count) {
+        return Math.min(1, DENSITY_ALPHA * (1 + Math.log10(count)));
+    }
+
+    private static int withAlpha(int color, double alpha) {
+        return (int) Math.round(alpha * (color >>> 24)) << 24 | (color & 0xFFFFFF);
+    }
+
+    /**
+     * Draws non-premultiplied ARGB {@code src} over {@code dst}
+     */
+    static int blend(int src, int dst) {
+        int srcA = src >>> 24;
+        if (srcA == 255) return src;
+        if (srcA == 0) return dst;
+        int dstA = dst >>> 24;
+        int outA = srcA + dstA * (255 - srcA) / 255;
+        if (outA == 0) return 0;
+        int color = outA << 24;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int s = src >>> shift & 0xFF;
+            int d = dst >>> shift & 0xFF;
+            int c = (s * srcA + d * dstA * (255 - srcA) / 255) / outA;
+            color |= c << shift;
+        }
+        return color;
+    }
+}
@@ -0,0 +1,193 @@
+package me.jeanlucthumm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8-bit RGB PNG image one row at a time, so an image of any size
+ * is encoded while holding a single row of it. Each row is filtered with
+ * whichever of the None, Sub, Up and Paeth filters leaves the smallest
+ * residuals, then deflated into IDAT chunks of bounded size.
+ *
+ * @author Jean-Luc Thumm
+ */
+class PngWriter implements AutoCloseable {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int CHUNK_SIZE = 1 << 16; // bytes of compressed data per IDAT chunk
+    private static final int NONE = 0;
+    private static final int SUB = 1;
+    private static final int UP = 2;
+    private static final int PAETH = 4;
+    private static final int[] FILTERS = {NONE, SUB, UP, PAETH};
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 crc = new CRC32();
+
+    private byte[] row;             // RGB of the current row
+    private byte[] previous;        // RGB of the row above, zeros for the first
+    private final byte[] filtered;  // filter type followed by the filtered row
+    private final byte[] best;
+    private final byte[] chunk = new byte[CHUNK_SIZE]; // compressed data not yet written
+    private int chunkLength;
+    private int rows;
+
+    /**
+     * Writes the signature and header of the image
+     *
+     * @param out where the image is written, left open on {@link #close()}
+     */
+    PngWriter(OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Empty image " + width + "x" + height);
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        row = new byte[3 * width];
+        previous = new byte[3 * width];
+        filtered = new byte[3 * width + 1];
+        best = new byte[3 * width + 1];
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // bits per channel
+        header[9] = 2; // truecolor
+        writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * Writes the next row, top to bottom. Alpha is ignored.
+     *
+     * @param argb   pixels of the row, left to right
+     * @param offset index of the row's first pixel in {@code argb}
+     */
+    void writeRow(int[] argb, int offset) throws IOException {
+        if (rows == height) throw new IllegalStateException("Image already has " + height + " rows");
+        for (int x = 0, i = 0; x < width; x++) {
+            int pixel = argb[offset + x];
+            row[i++] = (byte) (pixel >>> 16);
+            row[i++] = (byte) (pixel >>> 8);
+            row[i++] = (byte) pixel;
+        }
+
+        // Keep the filter whose residuals are smallest, a good guess at what compresses best
+        long bestSum = Long.MAX_VALUE;
+        for (int filter : FILTERS) {
+            long sum = filter(filter);
+            if (sum < bestSum) {
+                bestSum = sum;
+                System.arraycopy(filtered, 0, best, 0, filtered.length);
+            }
+        }
+        deflater.setInput(best);
+        deflate();
+
+        byte[] swap = previous;
+        previous = row;
+        row = swap;
+        rows++;
+    }
+
+    /**
+     * Filters the current row into {@link #filtered}
+     *
+     * @return sum of the residuals as signed bytes
+     */
+    private long filter(int type) {
+        filtered[0] = (byte) type;
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+            int left = i >= 3 ? row[i - 3] & 0xFF : 0;
+            int up = previous[i] & 0xFF;
+            int upLeft = i >= 3 ? previous[i - 3] & 0xFF : 0;
+            int predicted;
+            switch (type) {
+                case SUB:
+                    predicted = left;
+                    break;
+                case UP:
+                    predicted = up;
+                    break;
+                case PAETH:
+                    predicted = paeth(left, up, upLeft);
+                    break;
+                default:
+                    predicted = 0;
+            }
+            byte residual = (byte) (row[i] - predicted);
+            filtered[i + 1] = residual;
+            sum += Math.abs(residual);
+        }
+        return sum;
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int p = left + up - upLeft;
+        int toLeft = Math.abs(p - left);
+        int toUp = Math.abs(p - up);
+        int toUpLeft = Math.abs(p - upLeft);
+        if (toLeft <= toUp && toLeft <= toUpLeft) return left;
+        return toUp <= toUpLeft ? up : upLeft;
+    }
+
+    /**
+     * Compresses what the deflater was given, writing a chunk each time one fills up
+     */
+    private void deflate() throws IOException {
+        int read;
+        while ((read = deflater.deflate(chunk, chunkLength, chunk.length - chunkLength)) > 0) {
+            chunkLength += read;
+            if (chunkLength < chunk.length) continue;
+            writeChunk("IDAT", chunk, chunkLength);
+            chunkLength = 0;
+        }
+    }
+
+    /**
+     * Finishes the image once every row is written, then releases the
+     * compressor. The stream is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rows != height) throw new IllegalStateException("Image has " + rows + " of " + height + " rows");
+            deflater.finish();
+            while (!deflater.finished()) deflate();
+            if (chunkLength > 0) writeChunk("IDAT", chunk, chunkLength);
+            writeChunk("IEND", chunk, 0);
+            out.flush();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] header = new byte[8];
+        putInt(header, 0, length);
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(name, 0, header, 4, 4);
+        crc.reset();
+        crc.update(name);
+        crc.update(data, 0, length);
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) crc.getValue());
+
+        out.write(header);
+        out.write(data, 0, length);
+        out.write(trailer);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
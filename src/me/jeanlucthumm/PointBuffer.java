@@ -0,0 +1,99 @@
+package me.jeanlucthumm;
+
+import java.util.Arrays;
+
+/**
+ * Reusable primitive buffer of query results. Clearing keeps the arrays, so
+ * a buffer that is queried into again and again stops allocating once it
+ * has grown to the largest result.
+ *
+ * @author Jean-Luc Thumm
+ */
+class PointBuffer implements PointVisitor {
+
+    private static final int DEFAULT_CAPACITY = 1 << 10;
+
+    private int[] indices;
+    private double[] xs;
+    private double[] ys;
+    private int size;
+
+    PointBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity initial number of points that can be held before growing
+     */
+    PointBuffer(int capacity) {
+        capacity = Math.max(capacity, 1);
+        indices = new int[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+    }
+
+    @Override
+    public void visit(int index, double x, double y) {
+        if (size == xs.length) ensureCapacity(size + (size >> 1) + 1);
+        indices[size] = index;
+        xs[size] = x;
+        ys[size] = y;
+        size++;
+    }
+
+    /**
+     * Resizes the buffer to hold exactly {@code size} points, growing it if
+     * needed, so that slices of it can be filled with {@link #set}
+     */
+    void setSize(int size) {
+        ensureCapacity(size);
+        this.size = size;
+    }
+
+    /**
+     * Overwrites the point at a position below {@link #size()}
+     */
+    void set(int i, int index, double x, double y) {
+        indices[i] = index;
+        xs[i] = x;
+        ys[i] = y;
+    }
+
+    /**
+     * Makes room for at least {@code capacity} points
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity <= xs.length) return;
+        capacity = Math.max(capacity, xs.length + (xs.length >> 1));
+        indices = Arrays.copyOf(indices, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+    }
+
+    /**
+     * Empties the buffer, keeping its capacity
+     */
+    void clear() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int getIndex(int i) {
+        return indices[i];
+    }
+
+    double getX(int i) {
+        return xs[i];
+    }
+
+    double getY(int i) {
+        return ys[i];
+    }
+}
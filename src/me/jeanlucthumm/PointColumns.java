@@ -0,0 +1,168 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Growable primitive columns of x and y values. Keeps track of the bounds
+ * of everything added so that a single pass over the input is enough to
+ * both gather the points and size the tree that will index them. Columns are
+ * NIO buffers so that they can live on the heap or be mapped straight from
+ * an {@link IndexFile}.
+ *
+ * @author Jean-Luc Thumm
+ */
+class PointColumns {
+
+    private static final int DEFAULT_CAPACITY = 1 << 10;
+
+    private DoubleBuffer xs;
+    private DoubleBuffer ys;
+    private int size;
+
+    private double minX = Double.POSITIVE_INFINITY;
+    private double maxX = Double.NEGATIVE_INFINITY;
+    private double minY = Double.POSITIVE_INFINITY;
+    private double maxY = Double.NEGATIVE_INFINITY;
+
+    PointColumns() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity initial number of points that can be held before growing
+     */
+    PointColumns(int capacity) {
+        xs = DoubleBuffer.allocate(Math.max(capacity, 1));
+        ys = DoubleBuffer.allocate(xs.capacity());
+        size = 0;
+    }
+
+    private PointColumns(DoubleBuffer xs, DoubleBuffer ys, int size) {
+        this.xs = xs;
+        this.ys = ys;
+        this.size = size;
+    }
+
+    /**
+     * Appends a point to the columns
+     *
+     * @return index of the point
+     */
+    int add(double x, double y) {
+        if (size == xs.capacity()) grow();
+        xs.put(size, x);
+        ys.put(size, y);
+        include(x, y);
+        return size++;
+    }
+
+    /**
+     * Overwrites the point at an index, such as the slot of a point removed
+     * from a tree. Bounds still cover the point overwritten.
+     */
+    void set(int index, double x, double y) {
+        xs.put(index, x);
+        ys.put(index, y);
+        include(x, y);
+    }
+
+    /**
+     * Widens the bounds to cover a point
+     */
+    private void include(double x, double y) {
+        if (x < minX) minX = x;
+        if (x > maxX) maxX = x;
+        if (y < minY) minY = y;
+        if (y > maxY) maxY = y;
+    }
+
+    double getX(int index) {
+        return xs.get(index);
+    }
+
+    double getY(int index) {
+        return ys.get(index);
+    }
+
+    /**
+     * @return number of points that can be held before growing
+     */
+    int capacity() {
+        return xs.capacity();
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return bytes allocated for the columns, including spare capacity
+     */
+    long getMemoryBytes() {
+        return (long) (xs.capacity() + ys.capacity()) * Double.BYTES;
+    }
+
+    /**
+     * Smallest rectangle containing every point added or set so far
+     *
+     * @return SE, or {@link Rectangle2D#EMPTY} if there are no points
+     */
+    Rectangle2D getBounds() {
+        if (size == 0) return Rectangle2D.EMPTY;
+        return new Rectangle2D(minX, minY, span(minX, maxX), span(minY, maxY));
+    }
+
+    /**
+     * Distance from min to max, rounded up so that min + span reaches max
+     */
+    private static double span(double min, double max) {
+        double span = max - min;
+        while (min + span < max) span = Math.nextUp(span);
+        return span;
+    }
+
+    /**
+     * Writes the bounds and the points at the channel's position
+     */
+    void write(FileChannel channel) throws IOException {
+        IndexFile.write(channel, DoubleBuffer.wrap(new double[]{minX, minY, maxX, maxY}), 4);
+        IndexFile.write(channel, xs, size);
+        IndexFile.write(channel, ys, size);
+    }
+
+    /**
+     * Maps columns written by {@link #write} at the channel's position
+     *
+     * @param size number of points written
+     */
+    static PointColumns map(FileChannel channel, int size) throws IOException {
+        DoubleBuffer bounds = IndexFile.mapDoubles(channel, 4);
+        PointColumns points = new PointColumns(IndexFile.mapDoubles(channel, size),
+                IndexFile.mapDoubles(channel, size), size);
+        points.minX = bounds.get(0);
+        points.minY = bounds.get(1);
+        points.maxX = bounds.get(2);
+        points.maxY = bounds.get(3);
+        return points;
+    }
+
+    private void grow() {
+        int capacity = xs.capacity() + (xs.capacity() >> 1) + 1;
+        xs = grow(xs, capacity);
+        ys = grow(ys, capacity);
+    }
+
+    private DoubleBuffer grow(DoubleBuffer column, int capacity) {
+        DoubleBuffer grown = DoubleBuffer.allocate(capacity);
+        grown.put(column.duplicate().position(0).limit(size));
+        return grown.clear();
+    }
+}
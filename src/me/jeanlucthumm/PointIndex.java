@@ -0,0 +1,140 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Index over the points of a series, which renders them at any zoom and
+ * answers queries without looking at every point. {@link QuadTree} indexes
+ * points in any order; {@link SortedIndex} is the faster and smaller choice
+ * for series whose x only increases, such as time series.
+ * <p>
+ * Implementations are not thread safe unless {@link #isConcurrent()}:
+ * changes are made on one thread at a time, which is the render worker once
+ * rendering starts. Drawing and queries only read, so any number of threads
+ * may run them at once while nothing changes the index, as {@link Exporter}
+ * does.
+ *
+ * @author Jean-Luc Thumm
+ */
+interface PointIndex {
+
+    long getSize();
+
+    /**
+     * @return region every point lies in
+     */
+    Rectangle2D getBounds();
+
+    boolean isEmpty();
+
+    /**
+     * @return levels of detail below the coarsest, such as the depth of a tree, or -1 if empty
+     */
+    int getDepth();
+
+    /**
+     * @return memory held by the index and its points, including spare capacity
+     */
+    long getMemoryBytes();
+
+    /**
+     * @return bytes used per point, or 0 if the index is empty
+     */
+    double getBytesPerPoint();
+
+    /**
+     * Adds a point
+     *
+     * @return {@code false} if the point was rejected, such as a duplicate
+     */
+    boolean add(double x, double y);
+
+    /**
+     * @return whether points may be added from any number of threads at once,
+     * even while others draw and query, as {@link ConcurrentQuadTree} allows
+     */
+    default boolean isConcurrent() {
+        return false;
+    }
+
+    /**
+     * Gets the region whose drawing changed since the last call, and starts over
+     *
+     * @return SE, or {@code null} if nothing changed
+     */
+    Rectangle2D takeDirtyRegion();
+
+    /**
+     * Draws the points in view, standing in a summary for those too dense
+     * to draw one by one
+     *
+     * @param cancelled checked regularly, stops drawing once it returns {@code true}
+     * @param stats     counts what drawing visited and drew, added to what it holds
+     * @return {@code false} if drawing was cancelled
+     */
+    default boolean graphPointsAndBoundaries(RenderTarget target, ZoomLevel level, Rectangle2D localBounds,
+                                             BooleanSupplier cancelled, TraversalStats stats) {
+        return graphPointsAndBoundaries(target, level, localBounds, 1, cancelled, stats);
+    }
+
+    /**
+     * Draws the points in view at a coarser level of detail: whatever fits
+     * in a square of {@code grain} pixels is drawn as its summary. Costs
+     * about a quarter as much every time the grain doubles, so a coarse
+     * preview is drawn long before the full detail.
+     *
+     * @param grain     side in pixels of the smallest detail drawn, a power of two, 1 for full detail
+     * @param cancelled checked regularly, stops drawing once it returns {@code true}
+     * @param stats     counts what drawing visited and drew, added to what it holds
+     * @return {@code false} if drawing was cancelled
+     */
+    boolean graphPointsAndBoundaries(RenderTarget target, ZoomLevel level, Rectangle2D localBounds, int grain,
+                                     BooleanSupplier cancelled, TraversalStats stats);
+
+    /**
+     * Visits every point in a region
+     *
+     * @param bound region to search, edges included
+     */
+    void query(Rectangle2D bound, PointVisitor visitor);
+
+    /**
+     * Gathers every point in a region into a buffer, replacing its contents
+     *
+     * @param bound  region to search, edges included
+     * @param result buffer to fill, reused between queries
+     */
+    void query(Rectangle2D bound, PointBuffer result);
+
+    /**
+     * @param bound region to search, edges included
+     * @return number of points in the region
+     */
+    long count(Rectangle2D bound);
+
+    /**
+     * Gathers the count, extent, mean and variance of the points in a
+     * region, replacing what the result holds. Visits every point in the
+     * region unless the index keeps summaries to answer from.
+     *
+     * @param bound  region to search, edges included
+     * @param result statistics to fill, reused between queries
+     */
+    default void aggregate(Rectangle2D bound, RegionStats result) {
+        result.clear();
+        query(bound, result);
+    }
+
+    /**
+     * Finds the {@code k} points nearest to a location, nearest first, with
+     * each axis scaled before measuring distance
+     *
+     * @param scaleX      factor applied to x offsets
+     * @param scaleY      factor applied to y offsets
+     * @param maxDistance scaled distance beyond which points are ignored
+     * @param result      buffer to fill, reused between queries
+     */
+    void nearest(double x, double y, double scaleX, double scaleY, int k, double maxDistance, PointBuffer result);
+}
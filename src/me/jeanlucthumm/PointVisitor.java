@@ -0,0 +1,15 @@
+package me.jeanlucthumm;
+
+/**
+ * Receives the points found by a {@link QuadTree} query one at a time,
+ * as primitives, so that no object is created per result
+ *
+ * @author Jean-Luc Thumm
+ */
+interface PointVisitor {
+
+    /**
+     * @param index index of the point in the tree's point columns
+     */
+    void visit(int index, double x, double y);
+}
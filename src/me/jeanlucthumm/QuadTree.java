@@ -3,22 +3,84 @@ package me.jeanlucthumm;
 
 import javafx.geometry.Point2D;
 import javafx.geometry.Rectangle2D;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.paint.Color;
-import javafx.scene.shape.Rectangle;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
 
 /**
  * Indexes 2D space using a tree data structure. Supports 2D points insertion
  * and look up (individually and within a region)
+ * <p>
+ * Points live in primitive {@link PointColumns} and nodes in primitive
+ * {@link NodeColumns}, so neither costs an object per element. Nodes refer to
+ * points by index. A node's bounds are not stored: they follow from the root
+ * bounds and the path taken to reach the node, and are computed on the way
+ * down during every traversal.
+ * <p>
+ * Bounds are only a starting point: adding a point outside them grows the
+ * root upward, doubling its size with the old root as one of its quadrants,
+ * until the point fits.
+ * <p>
+ * Removing a point frees its slot in the columns for the next insert, but
+ * leaves the shape of the tree alone. Quadrants left with few enough points
+ * to fit in a leaf are merged back into one later, a bounded amount at a time,
+ * by {@link #merge}, whose freed nodes are reused by the next subdivisions.
+ * Once most slots are free, the columns are rebuilt to fit the points left.
  *
  * @author Jean-Luc
  */
-class QuadTree {
+class QuadTree implements PointIndex {
 
-    private Node root;
+    private static final int NONE = NodeColumns.NONE;
+    private static final int INITIAL_NODES = 1 << 10;
+    static final int DEFAULT_LEAF_CAPACITY = 8;
+    static final int DEFAULT_MAX_DEPTH = 24;
+    static final int MORTON_BITS = 15;                      // grid resolution per axis used for sorting
+    private static final int SEQUENTIAL_THRESHOLD = 1 << 14; // points below which bulk loading stops forking
+    private static final int[] MORTON_RANK = {1, 0, 2, 3};  // position of each quadrant in Z-order
+    private static final int DUPLICATE_SCAN_LIMIT = 32;     // points sharing a Morton code compared pairwise
+    private static final int QUERY_THRESHOLD = 1 << 15;     // points below which range queries stop forking
+
+    private PointColumns points;
+    private Rectangle2D bounds;
     private long size;
+    private int leafCapacity;   // points a leaf holds before it subdivides
+    private int maxDepth;       // depth at which leaves stop subdividing and overflow instead
+
+    // Parents hold only their first point; leaves hold up to leafCapacity, or
+    // any number at maxDepth. Every node's summary is kept up to date on insert
+    // and its representative point is its first.
+    private NodeColumns nodes;
+    private int[] path; // parents visited by the current insert or removal
+    private int deepest = -1; // depth of the deepest point, or -1 until first asked for
+
+    // Slots of removed points, reused by inserts before the columns grow
+    private int[] freePoints = new int[0];
+    private int freePointCount;
+
+    // Blocks of 4 children freed by merging, chained through the quads of
+    // their first node, and reused by subdivisions before new nodes are appended
+    private int freeBlocks = NONE;
+    private int freeNodes;
+
+    // Bit per node, set along the path to parents that removals left with few
+    // enough points to merge into a leaf, so that merging only visits those
+    private long[] pending = new long[0];
+    private int[] merged;   // points of the node being merged
+
+    // Region whose drawing changed since the last call to takeDirtyRegion(), empty if minX > maxX
+    private double dirtyMinX = Double.POSITIVE_INFINITY;
+    private double dirtyMinY = Double.POSITIVE_INFINITY;
+    private double dirtyMaxX = Double.NEGATIVE_INFINITY;
+    private double dirtyMaxY = Double.NEGATIVE_INFINITY;
 
     /**
      * Construct new QuadTree with the given bounds
@@ -26,23 +88,113 @@ class QuadTree {
      * @param bounds only points within this bound will be added to tree
      */
     QuadTree(Rectangle2D bounds) {
-        root = new Node(null, bounds); // root node has no data
+        this(bounds, DEFAULT_LEAF_CAPACITY, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Construct new QuadTree with the given bounds and leaf settings
+     *
+     * @param bounds       only points within this bound will be added to tree
+     * @param leafCapacity number of points a leaf holds before subdividing
+     * @param maxDepth     depth past which nodes never subdivide, so clusters of
+     *                     nearly equal points overflow into one leaf instead of
+     *                     forming long chains of mostly empty nodes
+     */
+    QuadTree(Rectangle2D bounds, int leafCapacity, int maxDepth) {
+        this.bounds = growable(bounds);
+        this.leafCapacity = Math.max(leafCapacity, 1);
+        this.maxDepth = maxDepth;
+        points = new PointColumns();
+        nodes = new NodeColumns(INITIAL_NODES, points.capacity());
+        path = new int[maxDepth + 1];
+        nodes.newNode(); // root node has no data
         size = 0;
     }
 
+    /**
+     * Bulk loads every point in {@code points} into a new tree. The tree
+     * takes ownership of the columns instead of copying them.
+     * <p>
+     * Points are sorted by Morton code so that every quadrant's points sit in
+     * one contiguous run, which turns each subdivision into a single
+     * sequential scan for run boundaries. Subtrees are then built in parallel
+     * with fork-join and laid out into the node columns in one final pass. The result is the same tree
+     * that adding the points one at a time in index order would produce.
+     * Points outside the bounds, if any, are added one at a time afterwards.
+     *
+     * @param bounds initial bounds, which grow to fit points outside them
+     * @param points points to index
+     */
+    QuadTree(Rectangle2D bounds, PointColumns points) {
+        this(bounds, points, DEFAULT_LEAF_CAPACITY, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Bulk loads every point in {@code points} into a new tree with the given
+     * leaf settings
+     *
+     * @see #QuadTree(Rectangle2D, PointColumns)
+     * @see #QuadTree(Rectangle2D, int, int)
+     */
+    QuadTree(Rectangle2D bounds, PointColumns points, int leafCapacity, int maxDepth) {
+        this.bounds = growable(bounds);
+        bounds = this.bounds;
+        this.points = points;
+        this.leafCapacity = Math.max(leafCapacity, 1);
+        this.maxDepth = maxDepth;
+        nodes = new NodeColumns(INITIAL_NODES, points.capacity());
+
+        ZOrder z = new ZOrder(points, bounds, nodes, this.leafCapacity, maxDepth);
+        int end = z.order.length;
+        Fragment root = ForkJoinPool.commonPool().invoke(new BulkLoad(z, 0, end, z.first(0, end), 0,
+                bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), bounds.getHeight()));
+
+        nodes.ensureCapacity(root.nodes);
+        nodes.claim(1);
+        path = new int[maxDepth + 1];
+        place(root, 0);
+        size = root.size;
+
+        // Points outside the bounds are added one at a time, growing the root
+        for (int i = 0; i < z.outside.length; i++) {
+            int index = z.outside[i];
+            insert(points.getX(index), points.getY(index), index);
+        }
+        takeDirtyRegion();
+    }
+
+    /**
+     * Wraps columns that already hold a built tree, such as those mapped from
+     * an {@link IndexFile}
+     *
+     * @param size number of points in the tree
+     */
+    QuadTree(Rectangle2D bounds, int leafCapacity, int maxDepth, long size, PointColumns points,
+             NodeColumns nodes) {
+        this.bounds = bounds;
+        this.leafCapacity = leafCapacity;
+        this.maxDepth = maxDepth;
+        this.size = size;
+        this.points = points;
+        this.nodes = nodes;
+        path = new int[maxDepth + 1];
+    }
+
     /**
      * Gets the number of points stored in this tree
      *
      * @return SE
      */
     @SuppressWarnings("unused")
+    @Override
     public long getSize() {
 
         return size;
     }
 
+    @Override
     public Rectangle2D getBounds() {
-        return root.bounds;
+        return bounds;
     }
 
     /**
@@ -51,10 +203,67 @@ class QuadTree {
      * @return SE
      */
     @SuppressWarnings("unused")
+    @Override
     public boolean isEmpty() {
         return size == 0;
     }
 
+    /**
+     * Gets the number of nodes in this tree, including empty leaves
+     *
+     * @return SE
+     */
+    int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Depth of the deepest point, the root being at depth 0. Measured by a
+     * traversal the first time, then kept up to date by inserts. Removals do
+     * not lower it until the columns are rebuilt to fit.
+     *
+     * @return SE, or -1 if the tree is empty
+     */
+    @Override
+    public int getDepth() {
+        if (deepest < 0) deepest = measureDepth(0, 0);
+        return deepest;
+    }
+
+    /**
+     * Helper for {@link #getDepth()}
+     */
+    private int measureDepth(int node, int depth) {
+        int deepest = nodes.getData(node) != NONE ? depth : -1;
+        if (isLeaf(node)) return deepest;
+        for (int quad = 0; quad < 4; quad++) {
+            deepest = Math.max(deepest, measureDepth(nodes.getQuads(node) + quad, depth + 1));
+        }
+        return deepest;
+    }
+
+    /**
+     * Memory held by the point and node columns, including spare capacity
+     */
+    @Override
+    public long getMemoryBytes() {
+        return points.getMemoryBytes() + nodes.getMemoryBytes() + (long) freePoints.length * Integer.BYTES
+                + (long) pending.length * Long.BYTES;
+    }
+
+    /**
+     * Memory held by the point and node columns divided by the number
+     * of points stored. Includes spare capacity, so this is what a machine
+     * actually needs per point.
+     *
+     * @return bytes used per point, or 0 if the tree is empty
+     */
+    @Override
+    public double getBytesPerPoint() {
+        if (size == 0) return 0;
+        return (double) getMemoryBytes() / size;
+    }
+
     /**
      * Insertion operation
      *
@@ -63,42 +272,442 @@ class QuadTree {
      * {@code false} otherwise
      */
     boolean add(Point2D point) {
-        return point != null && add(root, point);
+        return point != null && add(point.getX(), point.getY());
     }
 
     /**
-     * Recursive helper for {@link #add(Point2D)}
+     * Insertion operation. Grows the tree if the point is out of bounds.
+     *
+     * @return {@code true} if the insertion was succesful,
+     * {@code false} if the point is not finite or already in the tree
      */
-    private boolean add(Node node, Point2D point) {
-        // Leaf node -> subdivide and add
-        if (node.isLeaf()) {
-            // Child is empty -> just add to it
-            if (node.data == null) {
-                node.data = point;
-                size++;
-                return true;
-            }
-            // Child is not empty -> subdivide for more space
-            if (point.equals(node.data)) return false; // no duplicates
-            if (!node.subdivide()) return false; // subdivide
-
-            // Add to appropriate child
-            for (Node quad : node.quads) {
-                if (quad.contains(point)) {
-                    quad.data = point;
-                    size++;
-                    return true;
-                }
+    @Override
+    public boolean add(double x, double y) {
+        return insert(x, y, NONE);
+    }
+
+    /**
+     * Helper for {@link #add(double, double)}
+     *
+     * @param index where the point already is in the point columns, or NONE to store it in a free slot or
+     *              append it
+     */
+    private boolean insert(double x, double y, int index) {
+        if (!bounds.contains(x, y) && !grow(x, y)) return false;
+
+        int node = 0;
+        int depth = 0;
+        double minX = bounds.getMinX();
+        double minY = bounds.getMinY();
+        double width = bounds.getWidth();
+        double height = bounds.getHeight();
+
+        // Parent node -> recur into the quadrant containing the point
+        while (!isLeaf(node)) {
+            if (isAt(nodes.getData(node), x, y)) return false; // no duplicates
+            path[depth++] = node;
+            width /= 2;
+            height /= 2;
+            int quad = quadrant(x, y, minX + width, minY + height);
+            minX = quadMinX(quad, minX, width);
+            minY = quadMinY(quad, minY, height);
+            node = nodes.getQuads(node) + quad;
+        }
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            if (isAt(p, x, y)) return false; // no duplicates
+        }
+
+        // Point is new -> summarize it along the path and add it to the leaf
+        for (int i = 0; i < depth; i++) {
+            nodes.include(path[i], x, y);
+        }
+        if (index == NONE && freePointCount > 0) {
+            index = freePoints[--freePointCount];
+            points.set(index, x, y);
+        } else if (index == NONE) {
+            index = points.add(x, y);
+        }
+        nodes.ensureLinks(points.capacity());
+        nodes.setNext(index, NONE);
+        markDirty(x, y, x, y);
+        addToLeaf(node, depth, minX, minY, width, height, index);
+        size++;
+        return true;
+    }
+
+    /**
+     * Appends a point to the chain of a leaf, subdividing the leaf if it is
+     * full. A subdivided node keeps its first point and hands the rest down.
+     *
+     * @param index point known not to be in the tree yet
+     */
+    private void addToLeaf(int node, int depth, double minX, double minY, double width, double height,
+                           int index) {
+        nodes.include(node, points.getX(index), points.getY(index));
+
+        // Leaf node has space -> just add to it
+        int count = 0;
+        int tail = NONE;
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            tail = p;
+            count++;
+        }
+        if (count < leafCapacity || depth >= maxDepth) {
+            if (tail == NONE) nodes.setData(node, index);
+            else nodes.setNext(tail, index);
+            if (deepest >= 0 && depth > deepest) deepest = depth;
+            return;
+        }
+
+        // Leaf node is full -> subdivide for more space and add to appropriate children
+        subdivide(node);
+        markDirty(minX, minY, minX + width, minY + height); // new boundaries
+        int rest = nodes.getNext(nodes.getData(node));
+        nodes.setNext(nodes.getData(node), NONE);
+        double halfWidth = width / 2;
+        double halfHeight = height / 2;
+        for (int p = rest; p != NONE; ) {
+            int following = nodes.getNext(p);
+            nodes.setNext(p, NONE);
+            addToQuadrant(node, depth, minX, minY, halfWidth, halfHeight, p);
+            p = following;
+        }
+        addToQuadrant(node, depth, minX, minY, halfWidth, halfHeight, index);
+    }
+
+    /**
+     * Helper for {@link #addToLeaf} that finds the child of {@code node} a point belongs to
+     */
+    private void addToQuadrant(int node, int depth, double minX, double minY,
+                               double halfWidth, double halfHeight, int index) {
+        int quad = quadrant(points.getX(index), points.getY(index), minX + halfWidth, minY + halfHeight);
+        addToLeaf(nodes.getQuads(node) + quad, depth + 1, quadMinX(quad, minX, halfWidth),
+                quadMinY(quad, minY, halfHeight), halfWidth, halfHeight, index);
+    }
+
+    /**
+     * Grows the root upward until it contains a point. Each step doubles the
+     * bounds away from the old root, which becomes one of the new root's
+     * quadrants with its whole subtree intact.
+     *
+     * @return {@code false} if the point can never fit, being infinite or NaN
+     */
+    private boolean grow(double x, double y) {
+        if (!Double.isFinite(x) || !Double.isFinite(y)) return false;
+        while (!bounds.contains(x, y)) {
+            double width = bounds.getWidth();
+            double height = bounds.getHeight();
+            double minX = x < bounds.getMinX() ? bounds.getMinX() - width : bounds.getMinX();
+            double minY = y < bounds.getMinY() ? bounds.getMinY() - height : bounds.getMinY();
+            if (!Double.isFinite(minX + 2 * width) || !Double.isFinite(minY + 2 * height)) return false;
+
+            // Old node bounds must follow exactly from the new root, or points
+            // on dividing lines could end up in the wrong quadrant. Points on
+            // the old max edges that become dividing lines would, too.
+            int quad = quadrant(bounds.getMinX(), bounds.getMinY(), minX + width, minY + height);
+            Rectangle2D grown = new Rectangle2D(minX, minY, 2 * width, 2 * height);
+            boolean onDivide = minX == bounds.getMinX() && nodes.getMaxX(0) >= bounds.getMaxX()
+                    || minY == bounds.getMinY() && nodes.getMaxY(0) >= bounds.getMaxY();
+            if (onDivide || quadMinX(quad, minX, width) != bounds.getMinX()
+                    || quadMinY(quad, minY, height) != bounds.getMinY()) {
+                rebuild(grown);
+                continue;
             }
-            return false;
+
+            int first = newBlock();
+            nodes.copy(nodes, 0, first + quad, 0);
+            if (isPending(0)) setPending(first + quad); // keep the old root reachable by merging
+            nodes.setQuads(0, first);
+            nodes.setData(0, NONE);
+            bounds = grown;
+            growDepth();
+            if (deepest >= 0) deepest++; // everything moved one level down
+        }
+        markDirty(bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY()); // new boundaries
+        return true;
+    }
+
+    /**
+     * Rebuilds the tree from scratch within new bounds, for when the old root
+     * cannot be reused as a quadrant. Points keep their order of insertion.
+     */
+    private void rebuild(Rectangle2D grown) {
+        int[] indices = new int[(int) size];
+        int count = collect(0, indices, 0);
+        Arrays.sort(indices, 0, count);
+
+        clearNodes(Math.max(nodes.size(), INITIAL_NODES));
+        bounds = grown;
+        growDepth();
+        deepest = -1;
+        size = 0;
+        for (int i = 0; i < count; i++) {
+            insert(points.getX(indices[i]), points.getY(indices[i]), indices[i]);
+        }
+    }
+
+    /**
+     * Replaces the node columns with a lone empty root, forgetting freed and
+     * pending nodes
+     */
+    private void clearNodes(int capacity) {
+        nodes = new NodeColumns(capacity, points.capacity());
+        nodes.newNode();
+        freeBlocks = NONE;
+        freeNodes = 0;
+        pending = new long[0];
+    }
+
+    /**
+     * Removes a point. Summaries along the way are kept up to date, but the
+     * tree keeps its shape: parents left with few enough points to fit in a
+     * leaf are only marked, and merged later by {@link #merge}.
+     *
+     * @return {@code true} if the point was in the tree
+     */
+    boolean remove(double x, double y) {
+        if (!bounds.contains(x, y)) return false;
+
+        int node = 0;
+        int depth = 0;
+        double minX = bounds.getMinX();
+        double minY = bounds.getMinY();
+        double width = bounds.getWidth();
+        double height = bounds.getHeight();
+
+        // Look through the chain of each node on the way down, parents holding only their first point
+        int previous;
+        int p;
+        while (true) {
+            previous = NONE;
+            for (p = nodes.getData(node); p != NONE && !isAt(p, x, y); p = nodes.getNext(p)) previous = p;
+            if (p != NONE || isLeaf(node)) break;
+            path[depth++] = node;
+            width /= 2;
+            height /= 2;
+            int quad = quadrant(x, y, minX + width, minY + height);
+            minX = quadMinX(quad, minX, width);
+            minY = quadMinY(quad, minY, height);
+            node = nodes.getQuads(node) + quad;
+        }
+        if (p == NONE) return false;
+
+        // Unlink the point and free its slot
+        if (previous == NONE) nodes.setData(node, nodes.getNext(p));
+        else nodes.setNext(previous, nodes.getNext(p));
+        if (freePointCount == freePoints.length) {
+            freePoints = Arrays.copyOf(freePoints, Math.max(16, freePointCount * 2));
+        }
+        freePoints[freePointCount++] = p;
+
+        // Summaries shrink only where the point was on the edge of their extent,
+        // which is never the case above a node where it was not
+        path[depth] = node;
+        boolean edge = true;
+        for (int i = depth; i >= 0; i--) {
+            int n = path[i];
+            edge = edge && (x == nodes.getMinX(n) || x == nodes.getMaxX(n) || y == nodes.getMinY(n)
+                    || y == nodes.getMaxY(n));
+            if (edge) summarize(n);
+            else nodes.exclude(n, x, y);
+        }
+
+        // Mark the way to the highest parent that now fits in a leaf
+        for (int i = 0; i <= depth; i++) {
+            if (isLeaf(path[i]) || nodes.getCount(path[i]) > leafCapacity) continue;
+            for (int j = 0; j <= i; j++) setPending(path[j]);
+            break;
+        }
+        markDirty(x, y, x, y);
+        size--;
+        return true;
+    }
+
+    /**
+     * Recomputes a node's summary from its own points and its children's summaries
+     */
+    private void summarize(int node) {
+        nodes.clearSummary(node);
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            nodes.include(node, points.getX(p), points.getY(p));
+        }
+        if (isLeaf(node)) return;
+        for (int quad = 0; quad < 4; quad++) {
+            nodes.include(node, nodes, nodes.getQuads(node) + quad);
         }
-        // Parent node -> recur
-        for (Node quad : node.quads) {
-            // Let child figure out if it needs to subdivide
-            if (quad.contains(point))
-                return add(quad, point);
+    }
+
+    /**
+     * Merges parents that removals left with few enough points into leaves,
+     * then rebuilds the columns if most of their slots are free. Only parents
+     * marked by {@link #remove} and the way to them are visited, and merging
+     * stops once about {@code budget} nodes have been freed, leaving the rest
+     * for the next call. A merged leaf holds the same points as the subtree
+     * it replaces, so only its boundaries need redrawing.
+     *
+     * @param budget nodes to free at most, give or take those of the last subtree merged
+     * @return number of nodes freed
+     */
+    int merge(int budget) {
+        int freed = budget - merge(0, bounds.getMinX(), bounds.getMinY(), bounds.getWidth(),
+                bounds.getHeight(), budget);
+        if (points.size() > INITIAL_NODES && (size < points.size() / 4 || freeNodes > nodes.size() / 4 * 3)) {
+            shrink();
+        }
+        return freed;
+    }
+
+    /**
+     * Recursive helper for {@link #merge(int)}. A node stays marked until
+     * every marked node under it is done.
+     *
+     * @return budget left, 0 or less if it ran out
+     */
+    private int merge(int node, double minX, double minY, double width, double height, int budget) {
+        if (!isPending(node)) return budget;
+        if (isLeaf(node)) {
+            clearPending(node);
+            return budget;
+        }
+        if (budget <= 0) return budget;
+        if (nodes.getCount(node) <= leafCapacity) {
+            clearPending(node);
+            markDirty(minX, minY, minX + width, minY + height); // boundaries inside go away
+            return budget - collapse(node);
+        }
+
+        double halfWidth = width / 2;
+        double halfHeight = height / 2;
+        for (int quad = 0; quad < 4; quad++) {
+            budget = merge(nodes.getQuads(node) + quad, quadMinX(quad, minX, halfWidth),
+                    quadMinY(quad, minY, halfHeight), halfWidth, halfHeight, budget);
+        }
+        if (budget > 0) clearPending(node);
+        return budget;
+    }
+
+    /**
+     * Turns a parent into a leaf holding every point under it, its own first
+     *
+     * @return number of nodes freed
+     */
+    private int collapse(int node) {
+        if (merged == null) merged = new int[leafCapacity];
+        int count = collect(node, merged, 0);
+        int freed = release(nodes.getQuads(node));
+        nodes.setQuads(node, NONE);
+        int chain = NONE;
+        for (int i = count - 1; i >= 0; i--) {
+            nodes.setNext(merged[i], chain);
+            chain = merged[i];
+        }
+        nodes.setData(node, chain);
+        return freed;
+    }
+
+    /**
+     * Frees a block of children and every block under them
+     *
+     * @param first first node of the block
+     * @return number of nodes freed
+     */
+    private int release(int first) {
+        int freed = 4;
+        for (int quad = 0; quad < 4; quad++) {
+            if (!isLeaf(first + quad)) freed += release(nodes.getQuads(first + quad));
+        }
+        nodes.setQuads(first, freeBlocks);
+        freeBlocks = first;
+        freeNodes += 4;
+        return freed;
+    }
+
+    /**
+     * Rebuilds the columns to hold only the points left, for when removals
+     * freed most of their slots or nodes. Points keep the order of their slots.
+     */
+    private void shrink() {
+        int[] indices = new int[(int) size];
+        int count = collect(0, indices, 0);
+        Arrays.sort(indices, 0, count);
+        PointColumns old = points;
+        points = new PointColumns(count);
+        for (int i = 0; i < count; i++) {
+            points.add(old.getX(indices[i]), old.getY(indices[i]));
         }
-        return false;
+
+        clearNodes(INITIAL_NODES);
+        freePoints = new int[0];
+        freePointCount = 0;
+        deepest = -1;
+        size = 0;
+        for (int i = 0; i < count; i++) {
+            insert(points.getX(i), points.getY(i), i);
+        }
+        markDirty(bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY()); // merged anew
+    }
+
+    private boolean isPending(int node) {
+        return (node >>> 6) < pending.length && (pending[node >>> 6] & 1L << node) != 0;
+    }
+
+    private void setPending(int node) {
+        if ((node >>> 6) >= pending.length) {
+            pending = Arrays.copyOf(pending, Math.max((node >>> 6) + 1, pending.length * 2));
+        }
+        pending[node >>> 6] |= 1L << node;
+    }
+
+    private void clearPending(int node) {
+        if ((node >>> 6) < pending.length) pending[node >>> 6] &= ~(1L << node);
+    }
+
+    /**
+     * Gathers the index of every point under a node
+     *
+     * @return end of the indices written from {@code from}
+     */
+    private int collect(int node, int[] indices, int from) {
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            indices[from++] = p;
+        }
+        if (isLeaf(node)) return from;
+        for (int quad = 0; quad < 4; quad++) {
+            from = collect(nodes.getQuads(node) + quad, indices, from);
+        }
+        return from;
+    }
+
+    /**
+     * Allows one more level of nodes, so that a grown tree subdivides down
+     * to cells as small as before
+     */
+    private void growDepth() {
+        maxDepth++;
+        path = new int[maxDepth + 1];
+    }
+
+    /**
+     * Gets the region whose drawing changed since the last call, and starts
+     * over. Covers every point added or removed, every node subdivided to
+     * make room for them and every node merged after them.
+     *
+     * @return SE, or {@code null} if nothing changed
+     */
+    @Override
+    public Rectangle2D takeDirtyRegion() {
+        if (dirtyMinX > dirtyMaxX) return null;
+        Rectangle2D dirty = new Rectangle2D(dirtyMinX, dirtyMinY, dirtyMaxX - dirtyMinX, dirtyMaxY - dirtyMinY);
+        dirtyMinX = dirtyMinY = Double.POSITIVE_INFINITY;
+        dirtyMaxX = dirtyMaxY = Double.NEGATIVE_INFINITY;
+        return dirty;
+    }
+
+    private void markDirty(double minX, double minY, double maxX, double maxY) {
+        if (minX < dirtyMinX) dirtyMinX = minX;
+        if (minY < dirtyMinY) dirtyMinY = minY;
+        if (maxX > dirtyMaxX) dirtyMaxX = maxX;
+        if (maxY > dirtyMaxY) dirtyMaxY = maxY;
     }
 
     /**
@@ -109,85 +718,160 @@ class QuadTree {
      */
     @SuppressWarnings("unused")
     boolean find(Point2D point) {
-        return root != null && point != null && find(root, point);
+        return point != null && lookup(point.getX(), point.getY()) != NONE;
+    }
+
+    /**
+     * Tells a point the tree holds from a duplicate of it that was rejected,
+     * or a point that was never added
+     *
+     * @param index index of the point in the tree's point columns
+     * @return whether the tree holds the point under that index
+     */
+    boolean holds(int index) {
+        return lookup(points.getX(index), points.getY(index)) == index;
     }
 
     /**
-     * Recursive helper for {@link #find(Point2D)}
+     * @return index of the point the tree holds at {@code (x, y)}, or {@link #NONE}
      */
-    private boolean find(Node node, Point2D point) {
-        if (node == null) return false;
-        if (point.equals(node.data)) return true;
+    private int lookup(double x, double y) {
+        if (!bounds.contains(x, y)) return NONE;
 
-        // Recur
-        for (Node quad : node.quads) {
-            if (find(quad, point)) return true;
+        int node = 0;
+        double minX = bounds.getMinX();
+        double minY = bounds.getMinY();
+        double width = bounds.getWidth();
+        double height = bounds.getHeight();
+        while (!isLeaf(node)) {
+            if (isAt(nodes.getData(node), x, y)) return nodes.getData(node);
+
+            // Only the quadrant containing the point can hold it
+            width /= 2;
+            height /= 2;
+            int quad = quadrant(x, y, minX + width, minY + height);
+            minX = quadMinX(quad, minX, width);
+            minY = quadMinY(quad, minY, height);
+            node = nodes.getQuads(node) + quad;
+        }
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            if (isAt(p, x, y)) return p;
         }
-        return false;
+        return NONE;
     }
 
-    void graphPointsAndBoundaries(GraphicsContext gc, ZoomLevel level, Rectangle2D localBounds) {
-        if (root == null) return;
-        double width = gc.getLineWidth();
-        gc.setLineWidth(0.5);
-        // Get location of pixel clicked and local bounds in original space
-        Point2D pixelDim = new Point2D(1 / level.getWidthRatio(), 1 / level.getHeightRatio());
-        Rectangle2D originalBounds = level.convertToOriginal(localBounds);
-        int x = graphPointsAndBoundaries(root, gc, level, pixelDim, originalBounds);
-        System.out.println("Points graphed: " + x); // DEBUG
-        gc.setLineWidth(width);
+    /**
+     * Draws every node intersecting the view along with its points. Nodes
+     * smaller than the grain are drawn as their summary instead of
+     * descending into them, so each doubling of the grain stops the
+     * traversal one level higher.
+     *
+     * @param grain     side in pixels below which nodes are summarized, 1 for full detail
+     * @param cancelled checked at every node, stops the traversal once it returns {@code true}
+     * @param stats     counts what the traversal visited and drew, added to what it holds
+     * @return {@code false} if the traversal was cancelled
+     */
+    @Override
+    public boolean graphPointsAndBoundaries(RenderTarget target, ZoomLevel level, Rectangle2D localBounds, int grain,
+                                            BooleanSupplier cancelled, TraversalStats stats) {
+        // Get size of the grain in original space
+        double pixelWidth = grain / level.getWidthRatio();
+        double pixelHeight = grain / level.getHeightRatio();
+        return graphPointsAndBoundaries(0, bounds.getMinX(), bounds.getMinY(), bounds.getWidth(),
+                bounds.getHeight(), target, level, pixelWidth, pixelHeight, localBounds, cancelled, stats);
     }
 
-    private int graphPointsAndBoundaries(Node node, GraphicsContext gc, ZoomLevel level,
-                                         Point2D pixelDim, Rectangle2D originalBounds) {
+    /**
+     * Recursive helper for {@link #graphPointsAndBoundaries(RenderTarget, ZoomLevel, Rectangle2D, int,
+     * BooleanSupplier, TraversalStats)}. Works on primitives only, so the
+     * traversal allocates nothing per node or per point.
+     *
+     * @return {@code false} if cancelled
+     */
+    private boolean graphPointsAndBoundaries(int node, double minX, double minY, double width, double height,
+                                             RenderTarget target, ZoomLevel level, double pixelWidth,
+                                             double pixelHeight, Rectangle2D localBounds,
+                                             BooleanSupplier cancelled, TraversalStats stats) {
+        if (cancelled.getAsBoolean()) return false;
+        stats.visited++;
+
         // Check if points this node contains are irrelevant to the current zoom
-        if (!originalBounds.intersects(node.bounds))
-            return 0;
+        if (!isInView(minX, minY, width, height, level, localBounds)) {
+            stats.pruned++;
+            return true;
+        }
 
-        // Check if resolution or screen bounds allow us to ignore this node
-        if (node.bounds.getWidth() < pixelDim.getX() && node.bounds.getHeight() < pixelDim.getY())
-            return 0;
+        // Node is smaller than the grain -> its summary is all there is to see
+        if (width < pixelWidth && height < pixelHeight) {
+            if (nodes.getCount(node) == 0) {
+                stats.pruned++;
+                return true;
+            }
+            graphSummary(node, target, level);
+            stats.summarized++;
+            return true;
+        }
 
         // Convert to local coordinates and graph boundaries.
-        Rectangle2D bounds = level.convertToLocal(node.bounds);
-        gc.strokeRect(bounds.getMinX(), bounds.getMinY(),
-                bounds.getWidth(), bounds.getHeight());
+        target.boundary(level.toLocalX(minX), level.toLocalY(minY),
+                width * level.getWidthRatio(), height * level.getHeightRatio());
 
-        // Convert to local coordinates and graph point
-        if (node.data != null) {
-            Point2D localPoint = level.convertToLocal(node.data);
-            gc.fillOval(localPoint.getX() - Main.POINT_RAD, localPoint.getY() - Main.POINT_RAD,
-                    2 * Main.POINT_RAD, 2 * Main.POINT_RAD);
+        // Convert to local coordinates and graph points
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            target.point(level.toLocalX(points.getX(p)), level.toLocalY(points.getY(p)));
+            stats.points++;
         }
 
-        int res = 1;
         // Traverse
-        if (node.isLeaf()) return res;
-        for (Node quad : node.quads) {
-            res += graphPointsAndBoundaries(quad, gc, level, pixelDim, originalBounds);
+        if (isLeaf(node)) return true;
+        double halfWidth = width / 2;
+        double halfHeight = height / 2;
+        for (int quad = 0; quad < 4; quad++) {
+            if (!graphPointsAndBoundaries(nodes.getQuads(node) + quad,
+                    quadMinX(quad, minX, halfWidth), quadMinY(quad, minY, halfHeight), halfWidth, halfHeight,
+                    target, level, pixelWidth, pixelHeight, localBounds, cancelled, stats)) return false;
         }
-        return res;
+        return true;
+    }
+
+    /**
+     * Tells whether a node's bounds reach into the view, edges included.
+     * Compares in local coordinates, so that a traversal needs no view bounds
+     * of its own in original space and allocates nothing.
+     */
+    static boolean isInView(double minX, double minY, double width, double height, ZoomLevel level,
+                            Rectangle2D localBounds) {
+        return level.toLocalX(minX) <= localBounds.getMaxX()
+                && level.toLocalX(minX + width) >= localBounds.getMinX()
+                && level.toLocalY(minY) <= localBounds.getMaxY()
+                && level.toLocalY(minY + height) >= localBounds.getMinY();
     }
 
-    void graphPoints(GraphicsContext gc, ZoomLevel level) {
-        if (root == null) return;
-        gc.setFill(Color.BLUE);
-        graphPoints(root, gc, level);
+    /**
+     * Draws the summary of a node over the extent of its points
+     */
+    private void graphSummary(int node, RenderTarget target, ZoomLevel level) {
+        double minX = nodes.getMinX(node);
+        double minY = nodes.getMinY(node);
+        target.summary(level.toLocalX(minX), level.toLocalY(minY),
+                (nodes.getMaxX(node) - minX) * level.getWidthRatio(),
+                (nodes.getMaxY(node) - minY) * level.getHeightRatio(), nodes.getCount(node));
     }
 
-    private void graphPoints(Node node, GraphicsContext gc, ZoomLevel level) {
-        // Convert point to local coordinates and graph
-        if (node.data != null) {
-            Point2D localPoint = level.convertToLocal(node.data);
-            Point2D roundPoint = new Point2D(Math.round(localPoint.getX()), Math.round(localPoint.getY()));
-            gc.fillOval(roundPoint.getX() - Main.POINT_RAD, roundPoint.getY() - Main.POINT_RAD,
-                    2 * Main.POINT_RAD, 2 * Main.POINT_RAD);
+    void graphPoints(RenderTarget target, ZoomLevel level) {
+        graphPoints(0, target, level);
+    }
+
+    private void graphPoints(int node, RenderTarget target, ZoomLevel level) {
+        // Convert points to local coordinates and graph
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            target.point(Math.round(level.toLocalX(points.getX(p))), Math.round(level.toLocalY(points.getY(p))));
         }
 
         // Traverse
-        if (node.isLeaf()) return;
-        for (Node quad : node.quads) {
-            graphPoints(quad, gc, level);
+        if (isLeaf(node)) return;
+        for (int quad = 0; quad < 4; quad++) {
+            graphPoints(nodes.getQuads(node) + quad, target, level);
         }
     }
 
@@ -199,103 +883,1054 @@ class QuadTree {
      */
     LinkedList<Point2D> getPointsInBound(Rectangle2D bound) {
         LinkedList<Point2D> list = new LinkedList<>();
-        if (root == null) return list;
-        getPointsInBound(root, list, bound);
+        query(bound, (index, x, y) -> list.add(new Point2D(x, y)));
         return list;
     }
 
     /**
-     * Recursive helper for {@link #getPointsInBound(Rectangle2D)}
+     * Visits every point in a region, in the order the tree holds them.
+     * Subtrees are skipped or taken whole by comparing the region with the
+     * extent of their points, so only subtrees straddling its edges are
+     * checked point by point.
+     *
+     * @param bound region to search, edges included
+     */
+    @Override
+    public void query(Rectangle2D bound, PointVisitor visitor) {
+        query(0, new Region(bound), false, visitor);
+    }
+
+    /**
+     * Gathers every point in a region into a buffer, replacing its contents.
+     * Subtrees holding many points are searched in parallel with fork-join,
+     * each writing straight into its own slice of the buffer, in the same
+     * order {@link #query(Rectangle2D, PointVisitor)} visits them.
+     *
+     * @param bound  region to search, edges included
+     * @param result buffer to fill, reused between queries
+     */
+    @Override
+    public void query(Rectangle2D bound, PointBuffer result) {
+        result.clear();
+        Region region = new Region(bound);
+        if (size < QUERY_THRESHOLD) {
+            query(0, region, false, result);
+            return;
+        }
+        result.setSize((int) count(0, region));
+        ForkJoinPool.commonPool().invoke(new RangeQuery(this, 0, region, false, result, 0));
+    }
+
+    /**
+     * Counts the points in a region without visiting the subtrees that lie
+     * entirely inside it
+     *
+     * @param bound region to search, edges included
+     * @return SE
+     */
+    @Override
+    public long count(Rectangle2D bound) {
+        return count(0, new Region(bound));
+    }
+
+    /**
+     * Gathers statistics of the points in a region from the summaries of the
+     * subtrees that lie entirely inside it, so only the points of nodes
+     * straddling its edges are visited
+     *
+     * @param bound  region to search, edges included
+     * @param result statistics to fill, reused between queries
      */
-    private void getPointsInBound(Node node, LinkedList<Point2D> list, Rectangle2D bound) {
-        if (bound.contains(node.data))
-            list.add(node.data);
+    @Override
+    public void aggregate(Rectangle2D bound, RegionStats result) {
+        result.clear();
+        aggregate(0, new Region(bound), result);
+    }
 
-        // Check children
-        if (node.isLeaf()) return;
-        for (Node quad : node.quads) {
-            if (quad.bounds.intersects(bound))
-                getPointsInBound(quad, list, bound);
+    /**
+     * Recursive helper for {@link #query(Rectangle2D, PointVisitor)}
+     *
+     * @param inside whether the node is already known to lie inside the region
+     */
+    private void query(int node, Region region, boolean inside, PointVisitor visitor) {
+        if (!inside) {
+            if (!region.overlaps(nodes, node)) return;
+            inside = region.covers(nodes, node);
+        }
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            double x = points.getX(p);
+            double y = points.getY(p);
+            if (inside || region.contains(x, y)) visitor.visit(p, x, y);
+        }
+        if (isLeaf(node)) return;
+        for (int quad = 0; quad < 4; quad++) {
+            query(nodes.getQuads(node) + quad, region, inside, visitor);
         }
     }
 
     /**
-     * Underlying element of QuadTree. Has 4 children representing the 4
-     * quadrants of space in 2D
+     * Recursive helper for {@link #count(Rectangle2D)}
      */
-    private class Node {
-        Point2D data;
-        Rectangle2D bounds;
-        Node[] quads;
+    private long count(int node, Region region) {
+        if (!region.overlaps(nodes, node)) return 0;
+        if (region.covers(nodes, node)) return nodes.getCount(node);
+        long count = 0;
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            if (region.contains(points.getX(p), points.getY(p))) count++;
+        }
+        if (isLeaf(node)) return count;
+        for (int quad = 0; quad < 4; quad++) {
+            count += count(nodes.getQuads(node) + quad, region);
+        }
+        return count;
+    }
+
+    /**
+     * Recursive helper for {@link #aggregate(Rectangle2D, RegionStats)}
+     */
+    private void aggregate(int node, Region region, RegionStats result) {
+        if (!region.overlaps(nodes, node)) return;
+        if (region.covers(nodes, node)) {
+            result.add(nodes.getCount(node), nodes.getMinX(node), nodes.getMinY(node), nodes.getMaxX(node),
+                    nodes.getMaxY(node), nodes.getMeanX(node), nodes.getMeanY(node), nodes.getM2X(node),
+                    nodes.getM2Y(node));
+            return;
+        }
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            double x = points.getX(p);
+            double y = points.getY(p);
+            if (region.contains(x, y)) result.add(x, y);
+        }
+        if (isLeaf(node)) return;
+        for (int quad = 0; quad < 4; quad++) {
+            aggregate(nodes.getQuads(node) + quad, region, result);
+        }
+    }
+
+    /**
+     * Finds the point nearest to a location
+     *
+     * @return index of the point, or {@link #NONE} if the tree is empty
+     */
+    int nearest(double x, double y) {
+        PointBuffer result = new PointBuffer(1);
+        nearest(x, y, 1, 1, 1, Double.POSITIVE_INFINITY, result);
+        return result.isEmpty() ? NONE : result.getIndex(0);
+    }
+
+    /**
+     * Finds the {@code k} points nearest to a location, nearest first
+     *
+     * @param maxDistance distance beyond which points are ignored
+     * @param result      buffer to fill, reused between queries
+     */
+    void nearest(double x, double y, int k, double maxDistance, PointBuffer result) {
+        nearest(x, y, 1, 1, k, maxDistance, result);
+    }
+
+    /**
+     * Finds the {@code k} points nearest to a location, nearest first, with
+     * each axis scaled before measuring distance. Scaling by a zoom level's
+     * ratios measures distance in pixels, which is what a pointer hovering
+     * over a stretched view expects.
+     * <p>
+     * Searches best first: nodes are visited in order of the distance to the
+     * extent of their points, and the search stops as soon as the nearest
+     * unvisited node is farther than the {@code k}th point found. Only the
+     * few nodes around the location are visited, however large the tree.
+     *
+     * @param scaleX      factor applied to x offsets
+     * @param scaleY      factor applied to y offsets
+     * @param maxDistance scaled distance beyond which points are ignored
+     * @param result      buffer to fill, reused between queries
+     */
+    @Override
+    public void nearest(double x, double y, double scaleX, double scaleY, int k, double maxDistance,
+                 PointBuffer result) {
+        result.clear();
+        if (k <= 0 || size == 0) return;
+        new NearestSearch(this, x, y, scaleX, scaleY, k, maxDistance).run(result);
+    }
+
+    /**
+     * Visits every point within a distance of a location, in the order the
+     * tree holds them. Subtrees whose points all lie farther are skipped.
+     *
+     * @param radius distance from the location, the edge included
+     */
+    void within(double x, double y, double radius, PointVisitor visitor) {
+        within(0, x, y, radius * radius, visitor);
+    }
+
+    /**
+     * Recursive helper for {@link #within(double, double, double, PointVisitor)}
+     */
+    private void within(int node, double x, double y, double radius2, PointVisitor visitor) {
+        if (nodes.getCount(node) == 0 || distance2(node, x, y, 1, 1) > radius2) return;
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+            double dx = points.getX(p) - x;
+            double dy = points.getY(p) - y;
+            if (dx * dx + dy * dy <= radius2) visitor.visit(p, points.getX(p), points.getY(p));
+        }
+        if (isLeaf(node)) return;
+        for (int quad = 0; quad < 4; quad++) {
+            within(nodes.getQuads(node) + quad, x, y, radius2, visitor);
+        }
+    }
+
+    /**
+     * Squared scaled distance from a location to the extent of a node's
+     * points, 0 if the location is inside it
+     */
+    private double distance2(int node, double x, double y, double scaleX, double scaleY) {
+        double dx = Math.max(0, Math.max(nodes.getMinX(node) - x, x - nodes.getMaxX(node))) * scaleX;
+        double dy = Math.max(0, Math.max(nodes.getMinY(node) - y, y - nodes.getMaxY(node))) * scaleY;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Copies the tree into a read only {@link CompactQuadTree}, which stores
+     * coordinates as fixed point offsets within node cells
+     *
+     * @param maxErrorX largest difference allowed between a stored and an original x
+     * @param maxErrorY largest difference allowed between a stored and an original y
+     * @return SE
+     */
+    CompactQuadTree compact(double maxErrorX, double maxErrorY) {
+        return new CompactQuadTree(bounds, size, nodes, points, maxErrorX, maxErrorY);
+    }
+
+    /**
+     * Counts nodes and points by depth and leaves by occupancy, for tuning the
+     * leaf capacity and maximum depth
+     *
+     * @return SE
+     */
+    Histogram getHistogram() {
+        Histogram histogram = new Histogram(maxDepth, leafCapacity);
+        fillHistogram(0, 0, histogram);
+        return histogram;
+    }
+
+    /**
+     * Recursive helper for {@link #getHistogram()}
+     */
+    private void fillHistogram(int node, int depth, Histogram histogram) {
+        int count = 0;
+        for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) count++;
+        histogram.nodesAtDepth[depth]++;
+        histogram.pointsAtDepth[depth] += count;
+
+        if (isLeaf(node)) {
+            histogram.leavesByOccupancy[Math.min(count, leafCapacity + 1)]++;
+            return;
+        }
+        for (int quad = 0; quad < 4; quad++) {
+            fillHistogram(nodes.getQuads(node) + quad, depth + 1, histogram);
+        }
+    }
+
+    /**
+     * Writes a bulk loaded fragment into the node columns
+     *
+     * @param slot node the root of the fragment goes in
+     */
+    private void place(Fragment fragment, int slot) {
+        if (fragment instanceof SplitFragment) {
+            SplitFragment split = (SplitFragment) fragment;
+            int first = nodes.claim(4);
+            nodes.setData(slot, split.data);
+            nodes.setQuads(slot, first);
+            for (int quad = 0; quad < 4; quad++) {
+                place(split.quads[quad], first + quad);
+            }
+            summarize(slot);
+            return;
+        }
+
+        // The buffer's root goes in the slot and the rest is appended, so every
+        // child reference past the root shifts by the same amount
+        NodeColumns buffer = ((NodeBuffer) fragment).columns;
+        int shift = nodes.claim(buffer.size() - 1) - 1;
+        nodes.copy(buffer, 0, slot, shift);
+        for (int i = 1; i < buffer.size(); i++) {
+            nodes.copy(buffer, i, i + shift, shift);
+        }
+    }
+
+    /**
+     * Puts the leaf settings, bounds and sizes of the tree in an index header
+     */
+    void writeHeader(ByteBuffer header) {
+        header.putInt(leafCapacity).putInt(maxDepth);
+        header.putDouble(bounds.getMinX()).putDouble(bounds.getMinY())
+                .putDouble(bounds.getWidth()).putDouble(bounds.getHeight());
+        header.putLong(size).putInt(points.size()).putInt(nodes.size());
+    }
+
+    /**
+     * Writes the point and node columns at the channel's position
+     */
+    void writeColumns(FileChannel channel) throws IOException {
+        points.write(channel);
+        nodes.write(channel, points.size());
+    }
+
+    /**
+     * Widens bounds with no width or height, which could never grow by doubling
+     */
+    static Rectangle2D growable(Rectangle2D bounds) {
+        double width = bounds.getWidth();
+        double height = bounds.getHeight();
+        if (width > 0 && height > 0) return bounds;
+        double side = Math.max(Math.max(width, height), 1);
+        return new Rectangle2D(bounds.getMinX(), bounds.getMinY(), width > 0 ? width : side,
+                height > 0 ? height : side);
+    }
+
+    private Point2D getPoint(int index) {
+        return new Point2D(points.getX(index), points.getY(index));
+    }
+
+    private boolean isAt(int index, double x, double y) {
+        return index != NONE && points.getX(index) == x && points.getY(index) == y;
+    }
+
+    private boolean isLeaf(int node) {
+        return nodes.isLeaf(node);
+    }
+
+    /**
+     * Create children for the 4 regions in 2D space
+     */
+    private void subdivide(int node) {
+        nodes.setQuads(node, newBlock());
+    }
+
+    /**
+     * Gets 4 empty leaves in a row, reusing a block freed by merging if there is one
+     *
+     * @return index of the first
+     */
+    private int newBlock() {
+        int first = freeBlocks;
+        if (first == NONE) {
+            first = nodes.newNode();
+            nodes.newNode();
+            nodes.newNode();
+            nodes.newNode();
+            return first;
+        }
+        freeBlocks = nodes.getQuads(first);
+        freeNodes -= 4;
+        for (int node = first; node < first + 4; node++) {
+            nodes.setQuads(node, NONE);
+            nodes.setData(node, NONE);
+            nodes.clearSummary(node);
+            clearPending(node);
+        }
+        return first;
+    }
+
+    /**
+     * Finds which of the 4 quadrants around the center {@code (midX, midY)}
+     * contains a point. Points on a dividing line belong to the upper/right side.
+     *
+     * @return 0 for ne, 1 for nw, 2 for sw, 3 for se
+     */
+    static int quadrant(double x, double y, double midX, double midY) {
+        boolean right = x >= midX;
+        if (y < midY) return right ? 0 : 1;
+        return right ? 3 : 2;
+    }
+
+    static double quadMinX(int quad, double minX, double halfWidth) {
+        return quad == 0 || quad == 3 ? minX + halfWidth : minX;
+    }
+
+    static double quadMinY(int quad, double minY, double halfHeight) {
+        return quad >= 2 ? minY + halfHeight : minY;
+    }
+
+    /**
+     * Spaces out the bits of {@code value} so that another value can be interleaved
+     */
+    static long spread(int value) {
+        long v = value & 0xFFFF;
+        v = (v | (v << 8)) & 0x00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0FL;
+        v = (v | (v << 2)) & 0x33333333L;
+        v = (v | (v << 1)) & 0x55555555L;
+        return v;
+    }
+
+    /**
+     * Indices of the points within bounds sorted by Morton code, along with
+     * copies of their coordinates in the same order so that scanning a run
+     * reads memory sequentially
+     */
+    private static final class ZOrder {
+        final PointColumns points;
+        final NodeColumns links;
+        final int leafCapacity;
+        final int maxDepth;
+        final int[] order;
+        final double[] xs;
+        final double[] ys;
+        final int[] outside; // indices of points out of bounds, in index order
+
+        /**
+         * @param links columns of the tree being built, whose chain links are filled in as leaves are built
+         */
+        ZOrder(PointColumns points, Rectangle2D bounds, NodeColumns links, int leafCapacity, int maxDepth) {
+            this.points = points;
+            this.links = links;
+            this.leafCapacity = leafCapacity;
+            this.maxDepth = maxDepth;
+            double minX = bounds.getMinX();
+            double minY = bounds.getMinY();
+            double scaleX = (1 << MORTON_BITS) / bounds.getWidth();
+            double scaleY = (1 << MORTON_BITS) / bounds.getHeight();
+            int max = (1 << MORTON_BITS) - 1;
+
+            // Code in the high half, index in the low half. Points out of bounds are
+            // marked negative so they sort first, in index order, and can be skipped.
+            long[] keys = new long[points.size()];
+            IntStream.range(0, keys.length).parallel().forEach(i -> {
+                double x = points.getX(i);
+                double y = points.getY(i);
+                if (!bounds.contains(x, y)) {
+                    keys[i] = Long.MIN_VALUE | i;
+                    return;
+                }
+                int cellX = Math.min(max, Math.max(0, (int) ((x - minX) * scaleX)));
+                int cellY = Math.min(max, Math.max(0, (int) ((y - minY) * scaleY)));
+                long code = spread(cellX) | (spread(cellY) << 1);
+                keys[i] = code << 32 | i;
+            });
+            Arrays.parallelSort(keys);
+
+            int skip = 0;
+            while (skip < keys.length && keys[skip] < 0) skip++;
+            outside = new int[skip];
+            for (int i = 0; i < skip; i++) outside[i] = (int) keys[i];
+            int length = dropDuplicates(points, keys, skip);
+            int offset = skip;
+            order = new int[length - skip];
+            xs = new double[order.length];
+            ys = new double[order.length];
+            IntStream.range(0, order.length).parallel().forEach(i -> {
+                int index = (int) keys[i + offset];
+                order[i] = index;
+                xs[i] = points.getX(index);
+                ys[i] = points.getY(index);
+            });
+        }
 
         /**
-         * Creates a new node with the given parameters
+         * Removes every point that has the same coordinates as a point with a
+         * lower index, which insertion would have rejected. Equal points share a
+         * Morton code, and points with the same code are sorted by index, so
+         * only runs of equal codes need checking.
          *
-         * @param data data for node to hold
-         * @param ne   pointer to node representing northeast quadrant
-         * @param nw   pointer to node representing northwest quadrant
-         * @param sw   pointer to node representing southwest quadrant
-         * @param se   pointer to node representing southeast quadrant
+         * @return end of the remaining keys, which are moved to the front of {@code keys[from, ...)}
          */
-        Node(Point2D data, Rectangle2D bounds, Node ne, Node nw, Node sw, Node se) {
-            this.bounds = bounds;
-            this.data = data;
-            quads = new Node[4];
-            quads[0] = ne;
-            quads[1] = nw;
-            quads[2] = sw;
-            quads[3] = se;
+        private static int dropDuplicates(PointColumns points, long[] keys, int from) {
+            int end = from;
+            for (int lo = from, hi; lo < keys.length; lo = hi) {
+                long code = keys[lo] >>> 32;
+                hi = lo + 1;
+                while (hi < keys.length && keys[hi] >>> 32 == code) hi++;
+
+                int run = end;
+                if (hi - lo > DUPLICATE_SCAN_LIMIT) {
+                    // Dense cells are sorted by position so equal points are
+                    // neighbors, the lowest index first, then put back in index order
+                    sortByPosition(points, keys, lo, hi);
+                    for (int i = lo; i < hi; i++) {
+                        if (i == lo || !isAt(points, keys[i], keys[i - 1])) keys[end++] = keys[i];
+                    }
+                    Arrays.sort(keys, run, end);
+                    continue;
+                }
+                for (int i = lo; i < hi; i++) {
+                    boolean duplicate = false;
+                    for (int j = run; j < end && !duplicate; j++) duplicate = isAt(points, keys[i], keys[j]);
+                    if (!duplicate) keys[end++] = keys[i];
+                }
+            }
+            return end;
+        }
+
+        /**
+         * @return whether the points of two keys have equal coordinates, as
+         * {@link QuadTree#isAt} compares them
+         */
+        private static boolean isAt(PointColumns points, long a, long b) {
+            return points.getX((int) a) == points.getX((int) b) && points.getY((int) a) == points.getY((int) b);
+        }
+
+        /**
+         * Heap sorts {@code keys[lo, hi)} by the x, then y, then index of
+         * their points, without allocating
+         */
+        private static void sortByPosition(PointColumns points, long[] keys, int lo, int hi) {
+            int length = hi - lo;
+            for (int i = length / 2 - 1; i >= 0; i--) siftDown(points, keys, lo, i, length);
+            for (int last = length - 1; last > 0; last--) {
+                long top = keys[lo];
+                keys[lo] = keys[lo + last];
+                keys[lo + last] = top;
+                siftDown(points, keys, lo, 0, last);
+            }
+        }
+
+        private static void siftDown(PointColumns points, long[] keys, int lo, int i, int length) {
+            for (int child = 2 * i + 1; child < length; i = child, child = 2 * i + 1) {
+                if (child + 1 < length && before(points, keys[lo + child], keys[lo + child + 1])) child++;
+                if (!before(points, keys[lo + i], keys[lo + child])) return;
+                long swap = keys[lo + i];
+                keys[lo + i] = keys[lo + child];
+                keys[lo + child] = swap;
+            }
         }
 
         /**
-         * Creates a new leaf node with the given data
+         * Orders keys by position, comparing coordinates with {@code <} so
+         * that -0.0 and 0.0 are equal as they are to {@link QuadTree#isAt}
+         */
+        private static boolean before(PointColumns points, long a, long b) {
+            double ax = points.getX((int) a);
+            double bx = points.getX((int) b);
+            if (ax != bx) return ax < bx;
+            double ay = points.getY((int) a);
+            double by = points.getY((int) b);
+            if (ay != by) return ay < by;
+            return (int) a < (int) b;
+        }
+
+        /**
+         * Smallest index in {@code order[lo, hi)}, which is the point that
+         * would have been inserted first
          *
-         * @param data data to place in leaf node
+         * @return SE, or NONE if the range is empty
          */
-        Node(Point2D data, Rectangle2D bounds) {
-            this(data, bounds, null, null, null, null);
+        int first(int lo, int hi) {
+            int first = Integer.MAX_VALUE;
+            for (int i = lo; i < hi; i++) {
+                if (order[i] < first) first = order[i];
+            }
+            return lo == hi ? NONE : first;
         }
 
         /**
-         * Checks if this node is a leaf
+         * Chains the points of the run {@code [lo, hi)} into a leaf in index
+         * order, which is the order insertion would have appended them in
          *
-         * @return true if this node is a leaf, false otherwise
+         * @return first point of the chain, or NONE if the run is empty
          */
-        boolean isLeaf() {
-            return quads[0] == null; // all children are created at once
+        int chain(int lo, int hi) {
+            if (lo == hi) return NONE;
+            Arrays.sort(order, lo, hi); // coordinates are not needed past this point
+            for (int i = lo; i < hi - 1; i++) {
+                links.setNext(order[i], order[i + 1]);
+            }
+            links.setNext(order[hi - 1], NONE);
+            return order[lo];
         }
 
         /**
-         * Checks if point is contained in this node's region
+         * Splits the run {@code [lo, hi)} of a node holding point {@code index}
+         * into stable Z-order quadrant runs around {@code (midX, midY)}, leaving
+         * out the node's point. Runs are normally already in place thanks to
+         * the Morton sort, in which case nothing moves.
          *
-         * @param point point to check for
-         * @return self explanatory
+         * @param cuts   receives the ends of the 4 runs
+         * @param firsts receives the smallest index in each run, or NONE if it is empty
          */
-        boolean contains(Point2D point) {
-            return bounds.contains(point);
+        void partition(int lo, int hi, int index, double midX, double midY, int[] cuts, int[] firsts) {
+            Arrays.fill(cuts, 0);
+            Arrays.fill(firsts, Integer.MAX_VALUE);
+            boolean sorted = true;
+            int lastRank = 0;
+            int end = lo;
+            for (int i = lo; i < hi; i++) {
+                if (order[i] == index) continue;
+                double px = xs[i];
+                double py = ys[i];
+
+                int rank = MORTON_RANK[quadrant(px, py, midX, midY)];
+                if (rank < lastRank) sorted = false;
+                lastRank = rank;
+                cuts[rank]++;
+                if (order[i] < firsts[rank]) firsts[rank] = order[i];
+                if (end != i) { // only after skipping the node's point
+                    order[end] = order[i];
+                    xs[end] = px;
+                    ys[end] = py;
+                }
+                end++;
+            }
+            cuts[0] += lo;
+            cuts[1] += cuts[0];
+            cuts[2] += cuts[1];
+            cuts[3] = end;
+            for (int rank = 0; rank < 4; rank++) {
+                if (firsts[rank] == Integer.MAX_VALUE) firsts[rank] = NONE;
+            }
+            if (sorted) return;
+
+            // Points that straddle a cell boundary after rounding need moving
+            int[] tmpOrder = Arrays.copyOfRange(order, lo, end);
+            double[] tmpXs = Arrays.copyOfRange(xs, lo, end);
+            double[] tmpYs = Arrays.copyOfRange(ys, lo, end);
+            int[] next = {lo, cuts[0], cuts[1], cuts[2]};
+            for (int k = 0; k < tmpOrder.length; k++) {
+                int i = next[MORTON_RANK[quadrant(tmpXs[k], tmpYs[k], midX, midY)]]++;
+                order[i] = tmpOrder[k];
+                xs[i] = tmpXs[k];
+                ys[i] = tmpYs[k];
+            }
+        }
+    }
+
+    /**
+     * Part of a tree built during bulk loading
+     */
+    private static class Fragment {
+        int nodes;  // number of nodes in the fragment
+        long size;  // number of points in the fragment
+    }
+
+    /**
+     * Node whose 4 subtrees were built as separate fragments
+     */
+    private static final class SplitFragment extends Fragment {
+        final int data;
+        final Fragment[] quads;
+
+        SplitFragment(int data, Fragment[] quads) {
+            this.data = data;
+            this.quads = quads;
+            nodes = 1;
+            size = 1;
+            for (Fragment quad : quads) {
+                nodes += quad.nodes;
+                size += quad.size;
+            }
+        }
+    }
+
+    /**
+     * Subtree built sequentially into its own node columns, laid out the same
+     * way as the tree's. Its root is node 0 and its chain links are written
+     * straight into the tree's columns.
+     */
+    private static final class NodeBuffer extends Fragment {
+        private final int[] cuts = new int[4];
+        private final int[] firsts = new int[4];
+        final NodeColumns columns;
+
+        NodeBuffer(int capacity) {
+            columns = new NodeColumns(capacity, 0);
         }
 
         /**
-         * Create children for the 4 regions in 2D space
+         * Builds the subtree for the run {@code [lo, hi)} covering the given bounds
          *
-         * @return true if operation was successful, false otherwise
+         * @param node  node to build into
+         * @param index first point in the run
          */
-        boolean subdivide() {
-            if (!isLeaf()) return false;
+        void build(int node, ZOrder z, int lo, int hi, int index, int depth,
+                   double minX, double minY, double width, double height) {
+            // Few enough points for a leaf
+            if (hi - lo <= z.leafCapacity || depth >= z.maxDepth) {
+                columns.setData(node, z.chain(lo, hi));
+                for (int p = columns.getData(node); p != NONE; p = z.links.getNext(p)) {
+                    columns.include(node, z.points.getX(p), z.points.getY(p));
+                }
+                size += hi - lo;
+                return;
+            }
 
-            // Extract dimensions
-            double minx = bounds.getMinX();
-            double miny = bounds.getMinY();
-            double widthSmall = bounds.getWidth() / 2;
-            double heightSmall = bounds.getHeight() / 2;
+            // Otherwise the node keeps its first point and subdivides
+            columns.setData(node, index);
+            z.links.setNext(index, NONE);
+            columns.include(node, z.points.getX(index), z.points.getY(index));
+            size++;
+            double halfWidth = width / 2;
+            double halfHeight = height / 2;
+            z.partition(lo, hi, index, minX + halfWidth, minY + halfHeight, cuts, firsts);
+            int cut0 = cuts[0];
+            int cut1 = cuts[1];
+            int cut2 = cuts[2];
+            int end = cuts[3];
+            int nw = firsts[0];
+            int ne = firsts[1];
+            int sw = firsts[2];
+            int se = firsts[3];
 
-            // Subdivide
-            quads[0] = new Node(null, new Rectangle2D(minx + widthSmall, miny, widthSmall, heightSmall));
-            quads[1] = new Node(null, new Rectangle2D(minx, miny, widthSmall, heightSmall));
-            quads[2] = new Node(null, new Rectangle2D(minx, miny + heightSmall, widthSmall, heightSmall));
-            quads[3] = new Node(null, new Rectangle2D(minx + widthSmall, miny + heightSmall, widthSmall, heightSmall));
+            int child = columns.newNode();
+            columns.newNode();
+            columns.newNode();
+            columns.newNode();
+            columns.setQuads(node, child);
 
-            return true;
+            // Runs are in Z-order: nw, ne, sw, se
+            build(child + 1, z, lo, cut0, nw, depth + 1, minX, minY, halfWidth, halfHeight);
+            build(child, z, cut0, cut1, ne, depth + 1, minX + halfWidth, minY, halfWidth, halfHeight);
+            build(child + 2, z, cut1, cut2, sw, depth + 1, minX, minY + halfHeight, halfWidth, halfHeight);
+            build(child + 3, z, cut2, end, se, depth + 1, minX + halfWidth, minY + halfHeight,
+                    halfWidth, halfHeight);
+            for (int quad = child; quad < child + 4; quad++) {
+                columns.include(node, columns, quad);
+            }
+        }
+    }
+
+    /**
+     * Builds the subtree for the run {@code [lo, hi)}, forking a task per
+     * quadrant until runs are small enough to build sequentially
+     */
+    private static final class BulkLoad extends RecursiveTask<Fragment> {
+        private static final long serialVersionUID = 1L;
+
+        private final ZOrder z;
+        private final int lo;
+        private final int hi;
+        private final int index;
+        private final int depth;
+        private final double minX;
+        private final double minY;
+        private final double width;
+        private final double height;
+
+        BulkLoad(ZOrder z, int lo, int hi, int index, int depth,
+                 double minX, double minY, double width, double height) {
+            this.z = z;
+            this.lo = lo;
+            this.hi = hi;
+            this.index = index;
+            this.depth = depth;
+            this.minX = minX;
+            this.minY = minY;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        protected Fragment compute() {
+            if (hi - lo <= SEQUENTIAL_THRESHOLD || depth >= z.maxDepth) {
+                NodeBuffer buffer = new NodeBuffer(2 * (hi - lo) / z.leafCapacity + 1);
+                NodeColumns columns = buffer.columns;
+                buffer.build(columns.newNode(), z, lo, hi, index, depth, minX, minY, width, height);
+                buffer.nodes = columns.size();
+                return buffer;
+            }
+
+            int[] cuts = new int[4];
+            int[] firsts = new int[4];
+            double halfWidth = width / 2;
+            double halfHeight = height / 2;
+            z.links.setNext(index, NONE);
+            z.partition(lo, hi, index, minX + halfWidth, minY + halfHeight, cuts, firsts);
+
+            // Runs are in Z-order: nw, ne, sw, se
+            int childDepth = depth + 1;
+            BulkLoad[] tasks = {
+                    new BulkLoad(z, cuts[0], cuts[1], firsts[1], childDepth, minX + halfWidth, minY,
+                            halfWidth, halfHeight),
+                    new BulkLoad(z, lo, cuts[0], firsts[0], childDepth, minX, minY, halfWidth, halfHeight),
+                    new BulkLoad(z, cuts[1], cuts[2], firsts[2], childDepth, minX, minY + halfHeight,
+                            halfWidth, halfHeight),
+                    new BulkLoad(z, cuts[2], cuts[3], firsts[3], childDepth, minX + halfWidth, minY + halfHeight,
+                            halfWidth, halfHeight)
+            };
+            invokeAll(tasks);
+
+            Fragment[] quads = new Fragment[4];
+            for (int quad = 0; quad < 4; quad++) {
+                quads[quad] = tasks[quad].join();
+            }
+            return new SplitFragment(index, quads);
+        }
+    }
+
+    /**
+     * Best first search for the nearest points. Pending nodes wait in a
+     * binary min heap keyed by their distance, and the points found so far in
+     * a binary max heap of size {@code k}, so the farthest of them is the
+     * one to replace. Both heaps are primitive arrays.
+     */
+    private static final class NearestSearch {
+        private final QuadTree tree;
+        private final double x;
+        private final double y;
+        private final double scaleX;
+        private final double scaleY;
+        private final int k;
+        private double limit; // squared distance a point must beat to be kept
+
+        // Pending nodes, nearest on top
+        private int[] queued = new int[64];
+        private double[] queuedDistances = new double[64];
+        private int queueSize;
+
+        // Points found, farthest on top
+        private final int[] found;
+        private final double[] foundDistances;
+        private int foundSize;
+
+        NearestSearch(QuadTree tree, double x, double y, double scaleX, double scaleY, int k,
+                      double maxDistance) {
+            this.tree = tree;
+            this.x = x;
+            this.y = y;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            this.k = (int) Math.min(k, tree.size);
+            limit = maxDistance * maxDistance;
+            found = new int[this.k];
+            foundDistances = new double[this.k];
+        }
+
+        void run(PointBuffer result) {
+            NodeColumns nodes = tree.nodes;
+            offer(0);
+            while (queueSize > 0) {
+                if (queuedDistances[0] > limit) break; // nothing left can come closer
+                int node = poll();
+                for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) consider(p);
+                if (nodes.isLeaf(node)) continue;
+                for (int quad = 0; quad < 4; quad++) offer(nodes.getQuads(node) + quad);
+            }
+
+            // Empty the max heap from the back so the nearest comes first
+            result.ensureCapacity(foundSize);
+            int count = foundSize;
+            int[] sorted = new int[count];
+            for (int i = count - 1; i >= 0; i--) sorted[i] = pollFound();
+            for (int p : sorted) result.visit(p, tree.points.getX(p), tree.points.getY(p));
+        }
+
+        private void consider(int p) {
+            double dx = (tree.points.getX(p) - x) * scaleX;
+            double dy = (tree.points.getY(p) - y) * scaleY;
+            double distance = dx * dx + dy * dy;
+            if (distance > limit) return;
+            if (foundSize == k) {
+                if (distance >= foundDistances[0]) return;
+                pollFound();
+            }
+
+            // Sift up
+            int i = foundSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (foundDistances[parent] >= distance) break;
+                found[i] = found[parent];
+                foundDistances[i] = foundDistances[parent];
+                i = parent;
+            }
+            found[i] = p;
+            foundDistances[i] = distance;
+            if (foundSize == k) limit = Math.min(limit, foundDistances[0]);
+        }
+
+        /**
+         * Removes the farthest point found
+         */
+        private int pollFound() {
+            int top = found[0];
+            int last = --foundSize;
+            int p = found[last];
+            double distance = foundDistances[last];
+
+            // Sift down
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= last) break;
+                if (child + 1 < last && foundDistances[child + 1] > foundDistances[child]) child++;
+                if (foundDistances[child] <= distance) break;
+                found[i] = found[child];
+                foundDistances[i] = foundDistances[child];
+                i = child;
+            }
+            found[i] = p;
+            foundDistances[i] = distance;
+            return top;
+        }
+
+        private void offer(int node) {
+            if (tree.nodes.getCount(node) == 0) return;
+            double distance = tree.distance2(node, x, y, scaleX, scaleY);
+            if (distance > limit) return;
+            if (queueSize == queued.length) {
+                queued = Arrays.copyOf(queued, 2 * queueSize);
+                queuedDistances = Arrays.copyOf(queuedDistances, 2 * queueSize);
+            }
+
+            // Sift up
+            int i = queueSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (queuedDistances[parent] <= distance) break;
+                queued[i] = queued[parent];
+                queuedDistances[i] = queuedDistances[parent];
+                i = parent;
+            }
+            queued[i] = node;
+            queuedDistances[i] = distance;
+        }
+
+        /**
+         * Removes the nearest pending node
+         */
+        private int poll() {
+            int top = queued[0];
+            int last = --queueSize;
+            int node = queued[last];
+            double distance = queuedDistances[last];
+
+            // Sift down
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= last) break;
+                if (child + 1 < last && queuedDistances[child + 1] < queuedDistances[child]) child++;
+                if (queuedDistances[child] >= distance) break;
+                queued[i] = queued[child];
+                queuedDistances[i] = queuedDistances[child];
+                i = child;
+            }
+            queued[i] = node;
+            queuedDistances[i] = distance;
+            return top;
+        }
+    }
+
+    /**
+     * Query region as primitives, compared against the extent of a node's points
+     */
+    private static final class Region {
+        final double minX;
+        final double minY;
+        final double maxX;
+        final double maxY;
+
+        Region(Rectangle2D bound) {
+            minX = bound.getMinX();
+            minY = bound.getMinY();
+            maxX = bound.getMaxX();
+            maxY = bound.getMaxY();
+        }
+
+        boolean contains(double x, double y) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY;
+        }
+
+        /**
+         * @return whether some of the node's points may lie in the region, {@code false} if it has none
+         */
+        boolean overlaps(NodeColumns nodes, int node) {
+            return nodes.getMinX(node) <= maxX && nodes.getMaxX(node) >= minX
+                    && nodes.getMinY(node) <= maxY && nodes.getMaxY(node) >= minY;
+        }
+
+        /**
+         * @return whether all of the node's points lie in the region
+         */
+        boolean covers(NodeColumns nodes, int node) {
+            return nodes.getMinX(node) >= minX && nodes.getMaxX(node) <= maxX
+                    && nodes.getMinY(node) >= minY && nodes.getMaxY(node) <= maxY;
+        }
+    }
+
+    /**
+     * Searches the subtree of a node for a range query, forking a task per
+     * child while the subtree holds enough points to be worth splitting.
+     * Children are counted before they are forked, so each task writes its
+     * points into a slice of the result that no other task touches.
+     */
+    private static final class RangeQuery extends RecursiveAction implements PointVisitor {
+        private static final long serialVersionUID = 1L;
+
+        private final QuadTree tree;
+        private final int node;
+        private final Region region;
+        private final boolean inside;
+        private final PointBuffer result;
+        private int next; // position in the result of the next point found
+
+        RangeQuery(QuadTree tree, int node, Region region, boolean inside, PointBuffer result, int from) {
+            this.tree = tree;
+            this.node = node;
+            this.region = region;
+            this.inside = inside;
+            this.result = result;
+            this.next = from;
+        }
+
+        @Override
+        protected void compute() {
+            NodeColumns nodes = tree.nodes;
+            if (nodes.getCount(node) < QUERY_THRESHOLD || nodes.isLeaf(node)) {
+                tree.query(node, region, inside, this);
+                return;
+            }
+            if (!inside && !region.overlaps(nodes, node)) return;
+            boolean covered = inside || region.covers(nodes, node);
+
+            for (int p = nodes.getData(node); p != NONE; p = nodes.getNext(p)) {
+                double x = tree.points.getX(p);
+                double y = tree.points.getY(p);
+                if (covered || region.contains(x, y)) visit(p, x, y);
+            }
+            RangeQuery[] children = new RangeQuery[4];
+            for (int quad = 0; quad < 4; quad++) {
+                int child = nodes.getQuads(node) + quad;
+                children[quad] = new RangeQuery(tree, child, region, covered, result, next);
+                next += covered ? nodes.getCount(child) : (int) tree.count(child, region);
+            }
+            invokeAll(children);
+        }
+
+        @Override
+        public void visit(int index, double x, double y) {
+            result.set(next++, index, x, y);
+        }
+    }
+
+    /**
+     * Shape of a tree, see {@link #getHistogram()}
+     */
+    static final class Histogram {
+        final long[] nodesAtDepth;
+        final long[] pointsAtDepth;
+        final long[] leavesByOccupancy; // last bucket counts overflowing leaves
+
+        private Histogram(int maxDepth, int leafCapacity) {
+            nodesAtDepth = new long[maxDepth + 1];
+            pointsAtDepth = new long[maxDepth + 1];
+            leavesByOccupancy = new long[leafCapacity + 2];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("depth\tnodes\tpoints\n");
+            for (int depth = 0; depth < nodesAtDepth.length; depth++) {
+                if (nodesAtDepth[depth] == 0) continue;
+                builder.append(depth).append('\t').append(nodesAtDepth[depth])
+                        .append('\t').append(pointsAtDepth[depth]).append('\n');
+            }
+            builder.append("points\tleaves\n");
+            int overflow = leavesByOccupancy.length - 1;
+            for (int count = 0; count < leavesByOccupancy.length; count++) {
+                builder.append(count == overflow ? ">" + (count - 1) : String.valueOf(count))
+                        .append('\t').append(leavesByOccupancy[count]).append('\n');
+            }
+            return builder.toString();
         }
     }
 }
@@ -0,0 +1,157 @@
+package me.jeanlucthumm;
+
+/**
+ * Count, extent, mean and variance of the points in a region, gathered by
+ * {@link PointIndex#aggregate}. Points are added one at a time or a whole
+ * group at once from its own count, mean and squared deviations, so a tree
+ * adds the subtrees inside the region from their summaries without looking
+ * at their points. Means and squared deviations are merged rather than
+ * plain sums, which keeps the variance of points far from the origin exact.
+ *
+ * @author Jean-Luc Thumm
+ */
+class RegionStats implements PointVisitor {
+
+    private long count;
+    private double minX;
+    private double minY;
+    private double maxX;
+    private double maxY;
+    private double meanX;
+    private double meanY;
+    private double m2X;   // sum of squared deviations from the mean
+    private double m2Y;
+
+    RegionStats() {
+        clear();
+    }
+
+    /**
+     * Forgets every point added so far
+     */
+    void clear() {
+        count = 0;
+        minX = minY = Double.POSITIVE_INFINITY;
+        maxX = maxY = Double.NEGATIVE_INFINITY;
+        meanX = meanY = 0;
+        m2X = m2Y = 0;
+    }
+
+    @Override
+    public void visit(int index, double x, double y) {
+        add(x, y);
+    }
+
+    /**
+     * Adds a point
+     */
+    void add(double x, double y) {
+        add(1, x, y, x, y, x, y, 0, 0);
+    }
+
+    /**
+     * Adds a group of points from its summary
+     *
+     * @param m2X sum of the squared deviations of the group's x from its mean
+     * @param m2Y sum of the squared deviations of the group's y from its mean
+     */
+    void add(long count, double minX, double minY, double maxX, double maxY, double meanX, double meanY,
+             double m2X, double m2Y) {
+        if (count == 0) return;
+        extend(minX, minY, maxX, maxY);
+        this.m2X = mergeM2(this.count, this.meanX, this.m2X, count, meanX, m2X);
+        this.m2Y = mergeM2(this.count, this.meanY, this.m2Y, count, meanY, m2Y);
+        this.meanX = mergeMean(this.count, this.meanX, count, meanX);
+        this.meanY = mergeMean(this.count, this.meanY, count, meanY);
+        this.count += count;
+    }
+
+    /**
+     * @return mean of two groups of values together. The mean moves toward
+     * the other group by its share of the count.
+     */
+    static double mergeMean(long count, double mean, long otherCount, double otherMean) {
+        return mean + (otherMean - mean) * otherCount / (count + otherCount);
+    }
+
+    /**
+     * @return sum of squared deviations of two groups of values together
+     * from their common mean. The gap between the groups' means adds to the
+     * deviations of each.
+     */
+    static double mergeM2(long count, double mean, double m2, long otherCount, double otherMean, double otherM2) {
+        double gap = otherMean - mean;
+        return m2 + otherM2 + gap * gap * ((double) count * otherCount / (count + otherCount));
+    }
+
+    private void extend(double minX, double minY, double maxX, double maxY) {
+        if (minX < this.minX) this.minX = minX;
+        if (minY < this.minY) this.minY = minY;
+        if (maxX > this.maxX) this.maxX = maxX;
+        if (maxY > this.maxY) this.maxY = maxY;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return SE, or positive infinity if there are no points
+     */
+    double getMinX() {
+        return minX;
+    }
+
+    double getMinY() {
+        return minY;
+    }
+
+    /**
+     * @return SE, or negative infinity if there are no points
+     */
+    double getMaxX() {
+        return maxX;
+    }
+
+    double getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * @return SE, or NaN if there are no points
+     */
+    double getMeanX() {
+        return count == 0 ? Double.NaN : meanX;
+    }
+
+    double getMeanY() {
+        return count == 0 ? Double.NaN : meanY;
+    }
+
+    /**
+     * @return population variance of x, or NaN if there are no points
+     */
+    double getVarianceX() {
+        return count == 0 ? Double.NaN : m2X / count;
+    }
+
+    /**
+     * @return population variance of y, or NaN if there are no points
+     */
+    double getVarianceY() {
+        return count == 0 ? Double.NaN : m2Y / count;
+    }
+
+    @Override
+    public String toString() {
+        if (count == 0) return "0 points";
+        return String.format("%d points%n"
+                        + "x: mean %g, variance %g, min %g, max %g%n"
+                        + "y: mean %g, variance %g, min %g, max %g",
+                count, meanX, getVarianceX(), minX, maxX, meanY, getVarianceY(), minY, maxY);
+    }
+}
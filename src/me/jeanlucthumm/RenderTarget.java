@@ -0,0 +1,28 @@
+package me.jeanlucthumm;
+
+/**
+ * Receives what a {@link QuadTree} traversal draws, in local (canvas)
+ * coordinates. Lets the traversal run away from the JavaFX application
+ * thread and feed any backend, not only a live {@code GraphicsContext}.
+ *
+ * @author Jean-Luc Thumm
+ */
+interface RenderTarget {
+
+    /**
+     * Draws a point centered on {@code (x, y)}
+     */
+    void point(double x, double y);
+
+    /**
+     * Draws the outline of a node
+     */
+    void boundary(double x, double y, double width, double height);
+
+    /**
+     * Draws the summary of a node too small to draw point by point
+     *
+     * @param count number of points summarized, at least 1
+     */
+    void summary(double x, double y, double width, double height, int count);
+}
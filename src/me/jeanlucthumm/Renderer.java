@@ -0,0 +1,540 @@
+package me.jeanlucthumm;
+
+import javafx.application.Platform;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.paint.Paint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders the indexes of a set of {@link Series} on a background thread so
+ * that zooming and panning never wait on a traversal. Every request replaces the one before
+ * it: a burst of requests renders only the latest viewport, and a traversal
+ * still running when a newer request arrives is abandoned. Finished frames
+ * are handed to the JavaFX application thread, which only has to present them.
+ * <p>
+ * The view is made of fixed size tiles rendered at quantized zoom levels and
+ * kept in a {@link TileCache}. A frame whose tiles are all cached, which is
+ * what panning mostly produces, is composed right away without touching the
+ * tree; otherwise only the missing tiles are rendered. Tiles are stretched
+ * to the exact zoom when composed.
+ * <p>
+ * Missing tiles are refined coarse to fine: each is first drawn with
+ * everything smaller than {@link #PREVIEW_GRAIN} pixels summarized, then
+ * again at half the grain, level after level down to full detail, coarsest
+ * tiles first so the whole view sharpens evenly. The worker presents what
+ * it has every {@link Main#FRAME_BUDGET} and carries on after the frame is
+ * shown. Coarse tiles are kept apart from finished ones, so they are shown
+ * but never taken for finished. Panning carries on refining tiles where
+ * they were left; a new zoom starts over from the coarsest grain.
+ * <p>
+ * Every series has tiles of its own, in its own color, composed over each
+ * other in order. Hidden series are neither rendered nor composed, and
+ * showing one again only renders its tiles.
+ * <p>
+ * Tiles are rasterized by one of two backends: {@link PixelRaster} stamps
+ * points into pixel buffers on the worker, {@link DrawList} records canvas
+ * commands that are replayed onto a canvas and snapshotted on the JavaFX
+ * application thread. Either way the application thread hands targets back
+ * to the worker once it has made images of them, so they are reused.
+ * Traversing an index into a target allocates nothing, but a pass still
+ * allocates its list of tiles and their keys, the maps of tiles it hands
+ * over and the images made of them.
+ *
+ * @author Jean-Luc Thumm
+ */
+class Renderer {
+
+    /**
+     * How tiles are rasterized
+     */
+    enum Backend {
+        PIXELS, CANVAS
+    }
+
+    static final int TILE_SIZE = 256;                   // pixels per tile side
+    static final int PREVIEW_GRAIN = 32;                // pixels summarized by the first drawing of a tile
+    private static final int ZOOM_STEPS = 4;            // quantized zoom levels per doubling
+    private static final int ASPECT_STEPS = 1 << 20;    // quantized aspect ratios per doubling
+    private static final long CACHE_BYTES = 64L << 20;  // memory for cached tiles
+    private static final long PREVIEW_BYTES = 16L << 20; // memory for tiles still being refined
+    private static final int SPARE_TARGETS = 16;        // drawn tiles kept for reuse
+
+    private final Series[] series;
+    private final GraphicsContext gc;
+    private final Rectangle2D localBounds;
+    private final TileCache cache = new TileCache(CACHE_BYTES);
+    private final TileCache previews = new TileCache(PREVIEW_BYTES); // coarse tiles shown until refined
+    private final Backend backend;
+    private final Metrics metrics;
+    private final TraversalStats traversal = new TraversalStats(); // used by the worker only
+    private final int[] pointColors;    // ARGB colors of the pixel backend, one per series
+    private final int boundaryColor;
+    private volatile boolean densityShaded;
+
+    // Tiles are drawn with some margin so that points on their edges are not cut off
+    private final Rectangle2D tileBounds = new Rectangle2D(-Main.POINT_RAD, -Main.POINT_RAD,
+            TILE_SIZE + 2 * Main.POINT_RAD, TILE_SIZE + 2 * Main.POINT_RAD);
+    private final Canvas tileCanvas = new Canvas(TILE_SIZE, TILE_SIZE);
+    private final SnapshotParameters snapshot = new SnapshotParameters();
+    private double aspect = Double.NaN; // height ratio over width ratio the cache was rendered at
+
+    // Used by the worker only: grain each tile being refined is drawn at
+    // next, for the zoom and style of the view refinement started with
+    private final Map<TileCache.Key, Integer> grains = new HashMap<>();
+    private View refining;
+
+    // Targets the application thread is done with, taken again by the worker
+    private final BlockingQueue<RenderTarget> spares = new ArrayBlockingQueue<>(SPARE_TARGETS);
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "renderer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicReference<View> latest = new AtomicReference<>(); // view to render next
+    private final AtomicLong generation = new AtomicLong();  // bumped by every request
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * @param series      series to draw, in order, each in its own color
+     * @param gc          where finished frames are presented, whose stroke
+     *                    colors boundaries
+     * @param localBounds local bounds of the canvas
+     * @param metrics     where frames and render passes are recorded
+     */
+    Renderer(Series[] series, GraphicsContext gc, Rectangle2D localBounds, Backend backend, Metrics metrics) {
+        this.series = series;
+        this.gc = gc;
+        this.localBounds = localBounds;
+        this.backend = backend;
+        this.metrics = metrics;
+        pointColors = new int[series.length];
+        for (int s = 0; s < series.length; s++) pointColors[s] = argb(series[s].getColor());
+        boundaryColor = argb(gc.getStroke());
+        snapshot.setFill(Color.TRANSPARENT);
+    }
+
+    /**
+     * Turns points' opacity into a measure of how many points land on each
+     * pixel. Only the pixel backend shades by density. Takes effect from the
+     * next request.
+     */
+    void setDensityShaded(boolean densityShaded) {
+        if (densityShaded == this.densityShaded) return;
+        this.densityShaded = densityShaded;
+        cache.clear();
+        previews.clear();
+    }
+
+    boolean isDensityShaded() {
+        return densityShaded;
+    }
+
+    /**
+     * Asks for the tree to be rendered at a zoom level. Presents the frame
+     * right away if every tile it needs is cached; otherwise returns
+     * immediately and the frame is presented once its tiles are rendered,
+     * unless a newer request beats it. Call on the JavaFX application thread.
+     *
+     * @param level zoom level to render, copied so that the caller may keep changing it
+     */
+    void request(ZoomLevel level) {
+        View view = new View(new ZoomLevel(level));
+        latest.set(view);
+        long frame = generation.incrementAndGet(); // after the view, so a worker seeing it sees the view too
+
+        // Tiles only line up with others rendered at the same aspect ratio
+        if (view.aspect != aspect) {
+            cache.clear();
+            previews.clear();
+            aspect = view.aspect;
+        }
+
+        // Count every tile once here, whether it is then found or rendered
+        boolean complete = true;
+        for (long y = view.minTileY; y <= view.maxTileY; y++) {
+            for (long x = view.minTileX; x <= view.maxTileX; x++) {
+                for (int s = 0; s < series.length; s++) {
+                    if (view.visible[s] && cache.get(s, view.zoom, x, y) == null) complete = false;
+                }
+            }
+        }
+        if (complete) {
+            present(view, frame);
+            return;
+        }
+        if (scheduled.compareAndSet(false, true)) worker.execute(this::render);
+    }
+
+    /**
+     * Runs a task on the worker thread, between renders, so it may read the
+     * trees while nothing changes them
+     */
+    void submit(Runnable task) {
+        worker.execute(task);
+    }
+
+    /**
+     * Changes the indexes on the worker thread, between renders, then renders
+     * again what the change touched. Tiles the change did not touch stay cached.
+     *
+     * @param change adds points to the indexes, run on the worker thread
+     */
+    void update(Runnable change) {
+        submit(() -> {
+            change.run();
+            metrics.recordTrees(series);
+            Rectangle2D[] dirty = new Rectangle2D[series.length];
+            boolean changed = false;
+            for (int s = 0; s < series.length; s++) {
+                dirty[s] = series[s].getIndex().takeDirtyRegion();
+                if (dirty[s] != null) changed = true;
+            }
+            if (!changed) return;
+
+            // Queued behind tiles already on their way to the cache, so none of them survive
+            Platform.runLater(() -> {
+                for (int s = 0; s < series.length; s++) {
+                    if (dirty[s] != null) invalidate(s, dirty[s]);
+                }
+                View view = latest.get();
+                if (view != null) request(view.level);
+            });
+        });
+    }
+
+    /**
+     * Drops every cached tile of a series that overlaps a region, including
+     * those only reached by the points drawn on the region's edge
+     */
+    private void invalidate(int changed, Rectangle2D region) {
+        TileCache.Filter overlaps = (s, zoom, x, y) -> {
+            if (s != changed) return false;
+            double scaleX = scaleOf(zoom);
+            double scaleY = scaleX * aspect;
+            double marginX = (Main.POINT_RAD + 1) / scaleX;
+            double marginY = (Main.POINT_RAD + 1) / scaleY;
+            return x >= Math.floor((region.getMinX() - marginX) * scaleX / TILE_SIZE)
+                    && x <= Math.floor((region.getMaxX() + marginX) * scaleX / TILE_SIZE)
+                    && y >= Math.floor((region.getMinY() - marginY) * scaleY / TILE_SIZE)
+                    && y <= Math.floor((region.getMaxY() + marginY) * scaleY / TILE_SIZE);
+        };
+        cache.removeIf(overlaps);
+        previews.removeIf(overlaps);
+    }
+
+    /**
+     * Quantizes the height ratio over the width ratio of a zoom level.
+     * Scrolling scales both ratios by the same factor, but rounding makes
+     * their quotient drift in its last bits, which must not count as a new
+     * aspect ratio and clear the cache. Steps are fine enough that tiles
+     * stretched to the exact ratio are off by far less than a pixel.
+     */
+    private static double aspectOf(ZoomLevel level) {
+        double log = Math.log(level.getHeightRatio() / level.getWidthRatio()) / Math.log(2);
+        return Math.pow(2, Math.rint(log * ASPECT_STEPS) / ASPECT_STEPS);
+    }
+
+    /**
+     * @return pixels per unit along x of a quantized zoom level
+     */
+    private static double scaleOf(int zoom) {
+        return Math.pow(2, (double) zoom / ZOOM_STEPS);
+    }
+
+    /**
+     * @return cache of rendered tiles, for its counters
+     */
+    TileCache getTileCache() {
+        return cache;
+    }
+
+    /**
+     * Renders the tiles missing from the latest request on the worker
+     * thread, coarsest first, until every one is finished or the frame
+     * budget is spent. Presents what it rendered, then carries on if
+     * tiles are left to refine.
+     */
+    private void render() {
+        scheduled.set(false);
+        long frame = generation.get();
+        View view = latest.get();
+        Metrics.RenderEvent event = new Metrics.RenderEvent();
+        event.begin();
+        traversal.clear();
+        long deadline = System.nanoTime() + Main.FRAME_BUDGET;
+
+        // Refinement starts over at a new zoom or style, panning carries on with it
+        if (refining == null || !view.drawsTilesLike(refining)) grains.clear();
+        refining = view;
+
+        List<TileCache.Key> pending = new ArrayList<>();
+        for (long y = view.minTileY; y <= view.maxTileY; y++) {
+            for (long x = view.minTileX; x <= view.maxTileX; x++) {
+                for (int s = 0; s < series.length; s++) {
+                    if (view.visible[s] && cache.peek(s, view.zoom, x, y) == null) {
+                        pending.add(new TileCache.Key(s, view.zoom, x, y));
+                    }
+                }
+            }
+        }
+
+        // Give up as soon as a newer request comes in, it will be rendered next.
+        // Tiles finished by then are still worth caching, and coarse ones showing.
+        Map<TileCache.Key, RenderTarget> finished = new LinkedHashMap<>();
+        Map<TileCache.Key, RenderTarget> coarse = new LinkedHashMap<>(); // only the finest drawing of each
+        int rendered = 0;
+        boolean complete = true;
+        while (!pending.isEmpty()) {
+            int next = coarsest(pending);
+            TileCache.Key key = pending.get(next);
+            int grain = grainOf(key);
+            RenderTarget tile = obtain(key.series, view.densityShaded);
+            long summarized = traversal.summarized;
+            complete = series[key.series].getIndex().graphPointsAndBoundaries(tile, view.tileLevel(key.x, key.y),
+                    tileBounds, grain, () -> generation.get() != frame, traversal);
+            if (!complete) {
+                release(tile);
+                break;
+            }
+            if (tile instanceof PixelRaster) ((PixelRaster) tile).getPixels(); // resolve shading here
+            rendered++;
+
+            // Nothing was summarized -> nothing finer to draw
+            if (grain == 1 || traversal.summarized == summarized) {
+                pending.remove(next);
+                grains.remove(key);
+                release(coarse.remove(key));
+                finished.put(key, tile);
+            } else {
+                grains.put(key, grain / 2);
+                release(coarse.put(key, tile));
+            }
+            if (Main.FRAME_BUDGET > 0 && System.nanoTime() >= deadline) break;
+        }
+        boolean refined = pending.isEmpty();
+        metrics.recordRender(rendered, traversal, !complete, event);
+        metrics.recordTrees(series);
+
+        Platform.runLater(() -> {
+            // Tiles drawn in a style that has since changed are of no use
+            boolean current = view.densityShaded == densityShaded;
+            for (Map.Entry<TileCache.Key, RenderTarget> entry : finished.entrySet()) {
+                TileCache.Key key = entry.getKey();
+                if (current) {
+                    cache.put(key, rasterize(entry.getValue(), series[key.series].getColor()));
+                    previews.remove(key);
+                }
+                release(entry.getValue());
+            }
+            for (Map.Entry<TileCache.Key, RenderTarget> entry : coarse.entrySet()) {
+                TileCache.Key key = entry.getKey();
+                if (current) previews.put(key, rasterize(entry.getValue(), series[key.series].getColor()));
+                release(entry.getValue());
+            }
+            if (!current) return;
+            present(view, frame);
+
+            // Refine further once this frame is shown, unless a newer request took over
+            if (!refined && frame == generation.get() && scheduled.compareAndSet(false, true)) {
+                worker.execute(this::render);
+            }
+        });
+    }
+
+    /**
+     * @return position of the tile to draw next, the first of those with the coarsest grain
+     */
+    private int coarsest(List<TileCache.Key> pending) {
+        int coarsest = 0;
+        for (int i = 1; i < pending.size(); i++) {
+            if (grainOf(pending.get(i)) > grainOf(pending.get(coarsest))) coarsest = i;
+        }
+        return coarsest;
+    }
+
+    /**
+     * @return grain a tile is drawn at next: the coarsest for a tile not
+     * started yet, or full detail if there is no frame budget to refine in
+     */
+    private int grainOf(TileCache.Key key) {
+        Integer grain = grains.get(key);
+        if (grain != null) return grain;
+        return Main.FRAME_BUDGET > 0 ? PREVIEW_GRAIN : 1;
+    }
+
+    /**
+     * @return an empty target to draw a tile of a series into, a spare one
+     * if there is any. Runs on the worker.
+     */
+    private RenderTarget obtain(int series, boolean densityShaded) {
+        RenderTarget tile = spares.poll();
+        if (tile instanceof PixelRaster) {
+            ((PixelRaster) tile).reset(pointColors[series], densityShaded);
+        } else if (tile instanceof DrawList) {
+            ((DrawList) tile).clear();
+        } else {
+            tile = backend == Backend.PIXELS
+                    ? new PixelRaster(TILE_SIZE, TILE_SIZE, pointColors[series], boundaryColor, densityShaded)
+                    : new DrawList();
+        }
+        return tile;
+    }
+
+    /**
+     * Hands a target that is no longer needed back for reuse, dropping it if
+     * there are spares enough. Runs on either thread.
+     */
+    private void release(RenderTarget tile) {
+        if (tile != null) spares.offer(tile);
+    }
+
+    /**
+     * Turns a rendered tile into an image. Runs on the JavaFX application thread.
+     *
+     * @param color color points of the canvas backend are drawn in
+     */
+    private Image rasterize(RenderTarget tile, Color color) {
+        if (tile instanceof PixelRaster) {
+            WritableImage image = new WritableImage(TILE_SIZE, TILE_SIZE);
+            ((PixelRaster) tile).writeTo(image.getPixelWriter());
+            return image;
+        }
+
+        DrawList list = (DrawList) tile;
+        GraphicsContext tileGc = tileCanvas.getGraphicsContext2D();
+        tileGc.clearRect(0, 0, TILE_SIZE, TILE_SIZE);
+        tileGc.setFill(color);
+        tileGc.setStroke(gc.getStroke());
+        list.draw(tileGc);
+        return tileCanvas.snapshot(snapshot, new WritableImage(TILE_SIZE, TILE_SIZE));
+    }
+
+    /**
+     * Replaces what is on the canvas with the tiles of a view, unless a newer
+     * frame is on its way. Runs on the JavaFX application thread.
+     */
+    private void present(View view, long frame) {
+        if (frame != generation.get()) return;
+        metrics.recordFrame(System.nanoTime() - view.requested,
+                (int) ((view.maxTileX - view.minTileX + 1) * (view.maxTileY - view.minTileY + 1)));
+        gc.clearRect(localBounds.getMinX(), localBounds.getMinY(), localBounds.getWidth(), localBounds.getHeight());
+        for (long y = view.minTileY; y <= view.maxTileY; y++) {
+            for (long x = view.minTileX; x <= view.maxTileX; x++) {
+                // Snap edges to whole pixels so that neighbouring tiles leave no seams
+                double minX = Math.floor(view.level.toLocalX(view.tileMinX(x)));
+                double minY = Math.floor(view.level.toLocalY(view.tileMinY(y)));
+                double maxX = Math.floor(view.level.toLocalX(view.tileMinX(x + 1)));
+                double maxY = Math.floor(view.level.toLocalY(view.tileMinY(y + 1)));
+                for (int s = 0; s < series.length; s++) {
+                    if (!view.visible[s]) continue;
+                    Image tile = cache.peek(s, view.zoom, x, y);
+                    if (tile == null) tile = previews.peek(s, view.zoom, x, y);
+                    if (tile != null) gc.drawImage(tile, minX, minY, maxX - minX, maxY - minY);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return ARGB of a color, or opaque black if it is not a plain color
+     */
+    static int argb(Paint paint) {
+        if (!(paint instanceof Color)) return 0xFF000000;
+        Color color = (Color) paint;
+        return (int) Math.round(color.getOpacity() * 255) << 24
+                | (int) Math.round(color.getRed() * 255) << 16
+                | (int) Math.round(color.getGreen() * 255) << 8
+                | (int) Math.round(color.getBlue() * 255);
+    }
+
+    /**
+     * Stops the worker thread. Frames still in flight are dropped.
+     */
+    void shutdown() {
+        worker.shutdownNow();
+    }
+
+    /**
+     * Zoom level of a request along with the quantized zoom and range of
+     * tiles that cover it
+     */
+    private final class View {
+        final ZoomLevel level;
+        final long requested = System.nanoTime();
+        final int zoom;
+        final double scaleX;  // pixels per unit of the quantized zoom
+        final double scaleY;
+        final double aspect;
+        final boolean densityShaded;
+        final boolean[] visible; // series shown
+        final long minTileX;
+        final long minTileY;
+        final long maxTileX;
+        final long maxTileY;
+
+        View(ZoomLevel level) {
+            this.level = level;
+            densityShaded = Renderer.this.densityShaded;
+            visible = new boolean[series.length];
+            for (int s = 0; s < series.length; s++) visible[s] = series[s].isVisible();
+            aspect = aspectOf(level);
+            zoom = (int) Math.round(ZOOM_STEPS * Math.log(level.getWidthRatio()) / Math.log(2));
+            scaleX = scaleOf(zoom);
+            scaleY = scaleX * aspect;
+
+            Rectangle2D original = level.convertToOriginal(localBounds);
+            minTileX = (long) Math.floor(original.getMinX() * scaleX / TILE_SIZE);
+            minTileY = (long) Math.floor(original.getMinY() * scaleY / TILE_SIZE);
+            maxTileX = (long) Math.floor(original.getMaxX() * scaleX / TILE_SIZE);
+            maxTileY = (long) Math.floor(original.getMaxY() * scaleY / TILE_SIZE);
+        }
+
+        /**
+         * @return whether tiles of both views are drawn alike, at the same
+         * quantized zoom and aspect ratio and in the same style
+         */
+        boolean drawsTilesLike(View other) {
+            return zoom == other.zoom && aspect == other.aspect && densityShaded == other.densityShaded;
+        }
+
+        /**
+         * @return original x of the left edge of tile column {@code x}
+         */
+        double tileMinX(long x) {
+            return x * TILE_SIZE / scaleX;
+        }
+
+        /**
+         * @return original y of the bottom edge of tile row {@code y}
+         */
+        double tileMinY(long y) {
+            return y * TILE_SIZE / scaleY;
+        }
+
+        /**
+         * @return zoom level mapping a tile onto {@code [0, TILE_SIZE)} in both axes
+         */
+        ZoomLevel tileLevel(long x, long y) {
+            return new ZoomLevel(tileMinX(x), tileMinY(y), scaleX, scaleY);
+        }
+    }
+}
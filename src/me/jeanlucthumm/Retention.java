@@ -0,0 +1,166 @@
+package me.jeanlucthumm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the tree of a series down to a rolling window of its most recent
+ * points: the last {@link Main#WINDOW_ROWS}, and only those that arrived in
+ * the last {@link Main#WINDOW_SECONDS}. Points are remembered in a ring in
+ * the order they were added, along with the time each batch of them
+ * arrived, and the oldest are removed from the tree as they fall out of the
+ * window. Quadrants they leave behind are merged a bounded amount at a time
+ * after each batch, see {@link QuadTree#merge}, so the tree stays the size
+ * of the window however long the data file is followed.
+ * <p>
+ * Points the tree rejected are not remembered, so a point added again while
+ * still in the tree leaves the window with the copy that was inserted.
+ *
+ * @author Jean-Luc Thumm
+ */
+class Retention {
+
+    private static final int MERGE_BUDGET = 1 << 12;   // nodes freed per batch besides those paid for by removals
+    private static final int MERGE_PER_REMOVAL = 8;    // nodes freed per point removed
+
+    private final QuadTree tree;
+    private final long maxPoints;
+    private final long maxNanos;
+
+    // Ring of points in the window, oldest at head
+    private double[] xs;
+    private double[] ys;
+    private int head;
+    private int size;
+
+    // Ring of batches in the window, oldest at batchHead: how many of the
+    // oldest points arrived together, and when
+    private int[] batchCounts;
+    private long[] batchTimes;
+    private int batchHead;
+    private int batchSize;
+    private int unbatched; // points recorded since the last batch was closed
+
+    /**
+     * Remembers the points of a tree just built from them, as having arrived
+     * now. Duplicates and points the tree rejected are skipped, as
+     * {@link #record} would never be told of them.
+     *
+     * @param points the points the tree was built from, oldest first
+     */
+    Retention(QuadTree tree, PointColumns points) {
+        this.tree = tree;
+        maxPoints = Main.WINDOW_ROWS > 0 ? Main.WINDOW_ROWS : Long.MAX_VALUE;
+        maxNanos = Main.WINDOW_SECONDS > 0 ? TimeUnit.SECONDS.toNanos(Main.WINDOW_SECONDS) : Long.MAX_VALUE;
+        xs = new double[Math.max(points.size(), 16)];
+        ys = new double[xs.length];
+        batchCounts = new int[16];
+        batchTimes = new long[16];
+        for (int i = 0; i < points.size(); i++) {
+            if (tree.holds(i)) record(points.getX(i), points.getY(i));
+        }
+        expire(System.nanoTime());
+    }
+
+    /**
+     * @return whether {@link Main} sets a window, so that series keep only their recent points
+     */
+    static boolean isEnabled() {
+        return Main.WINDOW_ROWS > 0 || Main.WINDOW_SECONDS > 0;
+    }
+
+    /**
+     * Keeps only the last {@link Main#WINDOW_ROWS} points of freshly read
+     * columns, so that a tree is not built from rows about to leave the window
+     *
+     * @return SE, or the columns themselves if they fit
+     */
+    static PointColumns trim(PointColumns points) {
+        if (Main.WINDOW_ROWS <= 0 || points.size() <= Main.WINDOW_ROWS) return points;
+        PointColumns trimmed = new PointColumns(Main.WINDOW_ROWS);
+        for (int i = points.size() - Main.WINDOW_ROWS; i < points.size(); i++) {
+            trimmed.add(points.getX(i), points.getY(i));
+        }
+        return trimmed;
+    }
+
+    /**
+     * @return number of points in the window
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Remembers a point just added to the tree, as part of the batch closed
+     * by the next call to {@link #expire}
+     */
+    void record(double x, double y) {
+        if (size == xs.length) {
+            xs = unroll(xs, head, size);
+            ys = unroll(ys, head, size);
+            head = 0;
+        }
+        int slot = (head + size) % xs.length;
+        xs[slot] = x;
+        ys[slot] = y;
+        size++;
+        unbatched++;
+    }
+
+    /**
+     * Closes the current batch as having arrived at {@code now}, removes the
+     * points that fell out of the window from the tree, then merges what
+     * they left behind
+     *
+     * @param now {@link System#nanoTime()} at the time of the call
+     * @return number of points removed
+     */
+    int expire(long now) {
+        if (unbatched > 0) {
+            if (batchSize == batchCounts.length) {
+                batchCounts = unroll(batchCounts, batchHead, batchSize);
+                batchTimes = unroll(batchTimes, batchHead, batchSize);
+                batchHead = 0;
+            }
+            int slot = (batchHead + batchSize) % batchCounts.length;
+            batchCounts[slot] = unbatched;
+            batchTimes[slot] = now;
+            batchSize++;
+            unbatched = 0;
+        }
+
+        int removed = 0;
+        while (size > maxPoints || (batchSize > 0 && now - batchTimes[batchHead] > maxNanos)) {
+            if (tree.remove(xs[head], ys[head])) removed++;
+            head = (head + 1) % xs.length;
+            size--;
+            if (--batchCounts[batchHead] == 0) {
+                batchHead = (batchHead + 1) % batchCounts.length;
+                batchSize--;
+            }
+        }
+        tree.merge(MERGE_BUDGET + MERGE_PER_REMOVAL * removed);
+        return removed;
+    }
+
+    /**
+     * Copies a ring into an array twice its length, oldest first
+     */
+    private static double[] unroll(double[] ring, int head, int size) {
+        double[] grown = new double[ring.length * 2];
+        for (int i = 0; i < size; i++) grown[i] = ring[(head + i) % ring.length];
+        return grown;
+    }
+
+    private static int[] unroll(int[] ring, int head, int size) {
+        int[] grown = new int[ring.length * 2];
+        for (int i = 0; i < size; i++) grown[i] = ring[(head + i) % ring.length];
+        return grown;
+    }
+
+    private static long[] unroll(long[] ring, int head, int size) {
+        long[] grown = new long[ring.length * 2];
+        for (int i = 0; i < size; i++) grown[i] = ring[(head + i) % ring.length];
+        return grown;
+    }
+}
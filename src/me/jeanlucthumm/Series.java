@@ -0,0 +1,281 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.paint.Color;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.IntStream;
+
+/**
+ * One y column of the data file plotted against its x column: the index
+ * over its points, and how it is drawn. Each series has its own index, so
+ * a hidden series is never traversed.
+ *
+ * @author Jean-Luc Thumm
+ */
+class Series {
+
+    // Colors given to series in order, then reused
+    private static final Color[] PALETTE = {
+            Color.BLUE, Color.RED, Color.GREEN, Color.ORANGE, Color.PURPLE,
+            Color.rgb(0, 128, 128), Color.rgb(128, 64, 0), Color.rgb(255, 0, 255), Color.GRAY,
+            Color.rgb(128, 128, 0)
+    };
+
+    private static final int PAGED_BATCH_ROWS = 1 << 20; // rows read at a time when indexing on disk
+    private static final int HEAP_PER_DATA_BYTE = 4;     // heap needed to index a byte of data file in memory, roughly
+
+    private final String name;
+    private final PointIndex index;
+    private final Color color;
+    private volatile boolean visible = true;
+    private Retention retention;
+
+    /**
+     * @param position position of the series in the data file, which picks its color
+     */
+    Series(String name, PointIndex index, int position) {
+        this.name = name;
+        this.index = index;
+        color = PALETTE[position % PALETTE.length];
+    }
+
+    String getName() {
+        return name;
+    }
+
+    PointIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return what keeps the index down to a window of recent points, or
+     * {@code null} if it keeps every point
+     */
+    Retention getRetention() {
+        return retention;
+    }
+
+    Color getColor() {
+        return color;
+    }
+
+    boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * Shows or hides the series from the next render request
+     */
+    void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    /**
+     * Maps the tree of each series from the indexes next to the data file.
+     * If any index is missing or stale, the data file is read in one pass
+     * and the missing trees are built in parallel, one per core, then saved
+     * as the new indexes. If x strictly increases down the file, every
+     * series gets a {@link SortedIndex} instead, which takes a single pass
+     * to build and so is never saved. A data file too large to index in the
+     * heap is indexed on disk instead, see {@link #loadPaged}. If
+     * {@link Main#COMPACT_ERROR} is set, trees are then compacted, see {@link #compact}.
+     * <p>
+     * If {@link Main} sets a window, see {@link Retention}, indexes are
+     * neither mapped nor saved, as they hold only the recent rows: every
+     * series gets a tree of the rows in the window, sorted or not, which
+     * drops rows as they fall out of it. Compacted trees and trees on disk
+     * cannot drop rows, so compaction is skipped and the window is ignored
+     * by a data file too large for the heap. Otherwise, if
+     * {@link Main#CONCURRENT_INSERTS} is set, every series gets a
+     * {@link ConcurrentQuadTree} built on every core, which is not saved either.
+     *
+     * @param reader  reader of the data file, left positioned after the rows indexed
+     * @param metrics where the ingest is recorded
+     * @return the series, or {@code null} if there is no data
+     * @throws IOException if the data file could not be read
+     */
+    static Series[] load(String path, CSVReader reader, Metrics metrics) throws IOException {
+        long start = System.nanoTime();
+        long dataSize = Files.size(Paths.get(path)); // an index is only used if the file is still this size
+        String[] names = reader.getSeriesNames();
+        if (names == null) {
+            System.err.println(CSVReader.EMPTY_MSG + path);
+            return null;
+        }
+        if (dataSize > Runtime.getRuntime().maxMemory() / HEAP_PER_DATA_BYTE) {
+            return named(names, loadPaged(path, reader, metrics, names.length, dataSize));
+        }
+
+        boolean windowed = Retention.isEnabled();
+        boolean concurrent = Main.CONCURRENT_INSERTS && !windowed;
+        PointIndex[] indexes = new PointIndex[names.length];
+        PointColumns[] recent = new PointColumns[names.length]; // points in the window, if any
+        boolean mapped = !windowed && !concurrent; // only plain trees are saved
+        boolean complete = mapped;
+        for (int i = 0; i < names.length && mapped; i++) {
+            try {
+                indexes[i] = IndexFile.load(path, i);
+            } catch (IOException e) {
+                System.err.println(IndexFile.IOERROR_MSG + IndexFile.pathFor(path, i));
+            }
+            if (indexes[i] == null) complete = false;
+        }
+
+        if (complete) {
+            reader.seek(dataSize);
+            System.out.printf("Mapped %d indexes in %.1f ms%n", names.length, (System.nanoTime() - start) / 1e6);
+        } else {
+            // Read points of every series and their bounds in one pass
+            System.out.println("Reading data...");
+            long reading = System.nanoTime();
+            PointColumns[] points = reader.read();
+            if (points == null) return null;
+            metrics.recordIngest(reader.getRowCount(), System.nanoTime() - reading);
+            System.out.printf("Read %d rows of %d series (%.0f rows/s), skipped %d malformed lines%n",
+                    reader.getRowCount(), names.length, reader.getRowsPerSecond(), reader.getMalformedCount());
+
+            if (windowed) {
+                System.out.println("Initializing trees of the rows in the window...");
+                IntStream.range(0, names.length).parallel().forEach(i -> {
+                    recent[i] = Retention.trim(points[i]);
+                    indexes[i] = new QuadTree(recent[i].getBounds(), recent[i]);
+                });
+            } else if (concurrent) {
+                System.out.println("Initializing concurrent trees on every core...");
+                for (int i = 0; i < names.length; i++) {
+                    ConcurrentQuadTree tree = new ConcurrentQuadTree(points[i].getBounds());
+                    PointColumns columns = points[i];
+                    IntStream.range(0, columns.size()).parallel().forEach(j -> tree.add(columns.getX(j),
+                            columns.getY(j)));
+                    tree.takeDirtyRegion();
+                    indexes[i] = tree;
+                }
+            } else if (reader.isSorted()) {
+                System.out.println("Data is sorted by x, indexing series by x...");
+                for (int i = 0; i < names.length; i++) indexes[i] = new SortedIndex(points[i]);
+            } else {
+                System.out.println("Initializing trees...");
+                IntStream.range(0, names.length).parallel().filter(i -> indexes[i] == null).forEach(i -> {
+                    QuadTree tree = new QuadTree(points[i].getBounds(), points[i]);
+                    indexes[i] = tree;
+                    try {
+                        IndexFile.save(tree, path, i);
+                    } catch (IOException e) {
+                        System.err.println(IndexFile.IOERROR_MSG + IndexFile.pathFor(path, i));
+                    }
+                });
+            }
+        }
+
+        if (windowed) {
+            Series[] loaded = named(names, indexes);
+            for (int i = 0; i < loaded.length; i++) {
+                loaded[i].retention = new Retention((QuadTree) indexes[i], recent[i]);
+            }
+            return loaded;
+        }
+        if (Main.COMPACT_ERROR > 0) compact(names, indexes);
+        return named(names, indexes);
+    }
+
+    /**
+     * Replaces every {@link QuadTree} with a read only {@link CompactQuadTree}
+     * whose coordinates are off by at most {@link Main#COMPACT_ERROR} of the
+     * tree's extent
+     */
+    private static void compact(String[] names, PointIndex[] indexes) {
+        for (int i = 0; i < indexes.length; i++) {
+            if (!(indexes[i] instanceof QuadTree)) continue;
+            QuadTree tree = (QuadTree) indexes[i];
+            Rectangle2D bounds = tree.getBounds();
+            CompactQuadTree compact = tree.compact(Main.COMPACT_ERROR * bounds.getWidth(),
+                    Main.COMPACT_ERROR * bounds.getHeight());
+            System.out.printf("Compacted %s from %.1f to %.1f bytes per point, off by at most %.3g in x and %.3g"
+                    + " in y%n", names[i], tree.getBytesPerPoint(), compact.getBytesPerPoint(), compact.getErrorX(),
+                    compact.getErrorY());
+            indexes[i] = compact;
+        }
+    }
+
+    /**
+     * Opens a {@link PagedQuadTree} for each series from the files next to
+     * the data file. If any is missing or stale, every tree is built again
+     * from the data file, read a batch of {@value #PAGED_BATCH_ROWS} rows at
+     * a time, so that neither the points nor the trees need fit in memory.
+     * The trees share {@link Main#PAGE_CACHE_BYTES} of page cache, or a
+     * quarter of the heap if that is less.
+     *
+     * @param dataSize size of the data file, which trees must have been built from
+     * @return SE
+     */
+    private static PointIndex[] loadPaged(String path, CSVReader reader, Metrics metrics, int count, long dataSize)
+            throws IOException {
+        long start = System.nanoTime();
+        Path csv = Paths.get(path);
+        long cacheBytes = Math.min(Main.PAGE_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 4) / count;
+        PagedQuadTree[] trees = new PagedQuadTree[count];
+        boolean complete = true;
+        for (int i = 0; i < count; i++) {
+            try {
+                trees[i] = PagedQuadTree.open(PagedQuadTree.pathFor(path, i), csv, cacheBytes);
+            } catch (IOException e) {
+                System.err.println(IndexFile.IOERROR_MSG + PagedQuadTree.pathFor(path, i));
+            }
+            if (trees[i] == null) complete = false;
+        }
+        if (complete) {
+            reader.seek(dataSize);
+            System.out.printf("Opened %d paged indexes in %.1f ms%n", count, (System.nanoTime() - start) / 1e6);
+            return trees;
+        }
+
+        // Rows go to every series' tree, one batch at a time
+        System.out.println("Data is larger than memory, indexing on disk...");
+        for (int i = 0; i < count; i++) {
+            if (trees[i] != null) trees[i].close();
+            trees[i] = null;
+        }
+        long rows = 0;
+        long malformed = 0;
+        PointColumns[] batch;
+        do {
+            long reading = System.nanoTime();
+            batch = reader.readAppended(PAGED_BATCH_ROWS);
+            metrics.recordIngest(reader.getRowCount(), System.nanoTime() - reading);
+            rows += reader.getRowCount();
+            malformed += reader.getMalformedCount();
+            for (int i = 0; i < count; i++) {
+                if (trees[i] == null && batch[i].size() > 0) {
+                    trees[i] = PagedQuadTree.create(PagedQuadTree.pathFor(path, i), batch[i].getBounds(), cacheBytes);
+                }
+            }
+            PointColumns[] points = batch;
+            IntStream.range(0, count).parallel().filter(i -> trees[i] != null).forEach(i -> trees[i].addAll(points[i]));
+        } while (reader.getRowCount() == PAGED_BATCH_ROWS);
+
+        for (int i = 0; i < count; i++) {
+            if (trees[i] == null) {
+                trees[i] = PagedQuadTree.create(PagedQuadTree.pathFor(path, i), new Rectangle2D(0, 0, 1, 1),
+                        cacheBytes);
+            }
+            try {
+                trees[i].save(csv);
+            } catch (IOException e) {
+                System.err.println(IndexFile.IOERROR_MSG + PagedQuadTree.pathFor(path, i));
+            }
+        }
+        System.out.printf("Indexed %d rows of %d series on disk in %.1f s, skipped %d malformed lines%n",
+                rows, count, (System.nanoTime() - start) / 1e9, malformed);
+        return trees;
+    }
+
+    private static Series[] named(String[] names, PointIndex[] indexes) {
+        Series[] loaded = new Series[names.length];
+        for (int i = 0; i < names.length; i++) loaded[i] = new Series(names[i], indexes[i], i);
+        return loaded;
+    }
+}
@@ -0,0 +1,515 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Index over points whose x strictly increases, such as a time series. The
+ * points are kept in x order in primitive {@link PointColumns}, and a pyramid
+ * of y extents sits on top of them: level 0 holds the min and max y of every
+ * block of {@link #BLOCK} consecutive points, and every level above holds
+ * those of pairs of blocks of the level below.
+ * <p>
+ * Drawing any view walks its pixel columns instead of its points. The points
+ * of a column are found by binary search on x, and their y extent is read
+ * from the pyramid in a few steps, however many points the column holds. A
+ * column of many points is drawn as a summary spanning their extent, so a
+ * spike of a single point still reaches as far as it does in the data.
+ *
+ * @author Jean-Luc Thumm
+ */
+class SortedIndex implements PointIndex {
+
+    private static final int BLOCK_SHIFT = 3;
+    static final int BLOCK = 1 << BLOCK_SHIFT; // points summarized by each entry of the lowest level
+    private static final int COLUMN_POINTS = 2;  // points a pixel column holds before it is summarized
+
+    private PointColumns points;
+
+    // Pyramid of y extents, level by level. The top level always has a
+    // single entry covering every point.
+    private double[][] mins = new double[0][];
+    private double[][] maxs = new double[0][];
+
+    private double dirtyMinX = Double.POSITIVE_INFINITY;
+    private double dirtyMinY = Double.POSITIVE_INFINITY;
+    private double dirtyMaxX = Double.NEGATIVE_INFINITY;
+    private double dirtyMaxY = Double.NEGATIVE_INFINITY;
+
+    SortedIndex() {
+        points = new PointColumns();
+    }
+
+    /**
+     * Indexes points in one pass. Points that are not finite, or whose x
+     * does not exceed the x before them, are left out.
+     *
+     * @param points taken over if every point can be kept, copied otherwise
+     */
+    SortedIndex(PointColumns points) {
+        if (isSorted(points)) {
+            this.points = points;
+            for (int i = 0; i < points.size(); i++) summarize(i, points.getY(i));
+        } else {
+            this.points = new PointColumns(points.size());
+            for (int i = 0; i < points.size(); i++) add(points.getX(i), points.getY(i));
+            takeDirtyRegion();
+        }
+    }
+
+    private static boolean isSorted(PointColumns points) {
+        double last = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < points.size(); i++) {
+            double x = points.getX(i);
+            if (!(x > last) || !isFinite(x, points.getY(i))) return false;
+            last = x;
+        }
+        return true;
+    }
+
+    private static boolean isFinite(double x, double y) {
+        return Double.isFinite(x) && Double.isFinite(y);
+    }
+
+    @Override
+    public long getSize() {
+        return points.size();
+    }
+
+    @Override
+    public Rectangle2D getBounds() {
+        return points.getBounds();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return points.isEmpty();
+    }
+
+    /**
+     * @return levels of the pyramid above the lowest, or -1 if empty
+     */
+    @Override
+    public int getDepth() {
+        return mins.length - 1;
+    }
+
+    /**
+     * Memory held by the points and the pyramid, including spare capacity
+     */
+    @Override
+    public long getMemoryBytes() {
+        long bytes = points.getMemoryBytes();
+        for (double[] level : mins) bytes += 2L * level.length * Double.BYTES;
+        return bytes;
+    }
+
+    @Override
+    public double getBytesPerPoint() {
+        if (points.isEmpty()) return 0;
+        return (double) getMemoryBytes() / points.size();
+    }
+
+    /**
+     * Appends a point after every other
+     *
+     * @return {@code false} if the point is not finite or its x does not
+     * exceed the last point's
+     */
+    @Override
+    public boolean add(double x, double y) {
+        int size = points.size();
+        if (!isFinite(x, y) || size > 0 && !(x > points.getX(size - 1))) return false;
+        points.add(x, y);
+        summarize(size, y);
+
+        // The summary of the column holding the last point now reaches this one
+        double lastX = size > 0 ? points.getX(size - 1) : x;
+        double lastY = size > 0 ? points.getY(size - 1) : y;
+        markDirty(lastX, Math.min(lastY, y), x, Math.max(lastY, y));
+        return true;
+    }
+
+    /**
+     * Includes a point in every level of the pyramid, adding a level on top
+     * once the current top no longer covers it
+     */
+    private void summarize(int index, double y) {
+        if (mins.length == 0 || index >> (BLOCK_SHIFT + mins.length - 1) > 0) addLevel();
+        for (int level = 0; level < mins.length; level++) {
+            int entry = index >> (BLOCK_SHIFT + level);
+            if (entry == mins[level].length) {
+                int capacity = entry + (entry >> 1) + 1;
+                mins[level] = Arrays.copyOf(mins[level], capacity);
+                maxs[level] = Arrays.copyOf(maxs[level], capacity);
+            }
+            if ((index & ((BLOCK << level) - 1)) == 0) {
+                // First point of the entry
+                mins[level][entry] = y;
+                maxs[level][entry] = y;
+            } else {
+                if (y < mins[level][entry]) mins[level][entry] = y;
+                if (y > maxs[level][entry]) maxs[level][entry] = y;
+            }
+        }
+    }
+
+    /**
+     * Puts a level on top of the pyramid, its single entry covering the old top's two
+     */
+    private void addLevel() {
+        int top = mins.length;
+        mins = Arrays.copyOf(mins, top + 1);
+        maxs = Arrays.copyOf(maxs, top + 1);
+        mins[top] = new double[1];
+        maxs[top] = new double[1];
+        if (top == 0) return;
+        mins[top][0] = mins[top - 1][0];
+        maxs[top][0] = maxs[top - 1][0];
+    }
+
+    /**
+     * Gets the region whose drawing changed since the last call, and starts
+     * over. Covers every point added and the point before it.
+     *
+     * @return SE, or {@code null} if nothing changed
+     */
+    @Override
+    public Rectangle2D takeDirtyRegion() {
+        if (dirtyMinX > dirtyMaxX) return null;
+        Rectangle2D dirty = new Rectangle2D(dirtyMinX, dirtyMinY, dirtyMaxX - dirtyMinX, dirtyMaxY - dirtyMinY);
+        dirtyMinX = dirtyMinY = Double.POSITIVE_INFINITY;
+        dirtyMaxX = dirtyMaxY = Double.NEGATIVE_INFINITY;
+        return dirty;
+    }
+
+    private void markDirty(double minX, double minY, double maxX, double maxY) {
+        if (minX < dirtyMinX) dirtyMinX = minX;
+        if (minY < dirtyMinY) dirtyMinY = minY;
+        if (maxX > dirtyMaxX) dirtyMaxX = maxX;
+        if (maxY > dirtyMaxY) dirtyMaxY = maxY;
+    }
+
+    /**
+     * Draws the view one column at a time, each as wide as the grain.
+     * Columns of a few points draw them, denser columns draw a summary over
+     * the x and y extent of their points. Costs a binary search and a
+     * pyramid lookup per column, so the view's width sets the cost and not
+     * the number of points in it. Nothing is drawn for boundaries, there
+     * being no nodes.
+     *
+     * @param grain     width of a column in pixels, 1 for full detail
+     * @param cancelled checked at every column, stops drawing once it returns {@code true}
+     * @param stats     counts columns as nodes, added to what it holds
+     * @return {@code false} if drawing was cancelled
+     */
+    @Override
+    public boolean graphPointsAndBoundaries(RenderTarget target, ZoomLevel level, Rectangle2D localBounds, int grain,
+                                            BooleanSupplier cancelled, TraversalStats stats) {
+        int size = points.size();
+        if (size == 0) return true;
+        double top = level.toOriginalY(localBounds.getMinY());
+        double bottom = level.toOriginalY(localBounds.getMaxY());
+        double viewMinY = Math.min(top, bottom);
+        double viewMaxY = Math.max(top, bottom);
+
+        // Columns start on whole multiples of the grain, so that every tile of a view splits points alike
+        long first = Math.floorDiv((long) Math.floor(localBounds.getMinX()), grain) * grain;
+        long last = (long) Math.ceil(localBounds.getMaxX());
+        int from = ceiling(level.toOriginalX(first));
+        for (long column = first; column < last && from < size; column += grain) {
+            if (cancelled.getAsBoolean()) return false;
+            stats.visited++;
+            int to = ceiling(level.toOriginalX(column + grain), from, size);
+            if (from == to) {
+                stats.pruned++;
+                continue;
+            }
+
+            double minY = extent(from, to, false);
+            double maxY = extent(from, to, true);
+            if (maxY < viewMinY || minY > viewMaxY) {
+                stats.pruned++;
+            } else if (to - from <= COLUMN_POINTS) {
+                for (int i = from; i < to; i++) {
+                    target.point(level.toLocalX(points.getX(i)), level.toLocalY(points.getY(i)));
+                    stats.points++;
+                }
+            } else {
+                double minX = points.getX(from);
+                target.summary(level.toLocalX(minX), level.toLocalY(minY),
+                        (points.getX(to - 1) - minX) * level.getWidthRatio(),
+                        (maxY - minY) * level.getHeightRatio(), to - from);
+                stats.summarized++;
+            }
+            from = to;
+        }
+        return true;
+    }
+
+    /**
+     * Min or max y of the points in {@code [from, to)}. Points are read one
+     * by one up to the first block boundary, then the largest aligned
+     * entries of the pyramid that fit are taken, climbing and descending
+     * levels as the range allows. Returns a single value so that drawing
+     * allocates nothing per column.
+     *
+     * @param max {@code true} for the max, {@code false} for the min
+     */
+    private double extent(int from, int to, boolean max) {
+        double[][] pyramid = max ? maxs : mins;
+        double extent = max ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        int i = from;
+        for (; i < to && (i & (BLOCK - 1)) != 0; i++) {
+            extent = widen(extent, points.getY(i), max);
+        }
+        int level = 0;
+        while (i + BLOCK <= to) {
+            while (level + 1 < pyramid.length && (i & ((BLOCK << (level + 1)) - 1)) == 0
+                    && i + (BLOCK << (level + 1)) <= to) level++;
+            while (i + (BLOCK << level) > to) level--;
+            double entry = pyramid[level][i >> (BLOCK_SHIFT + level)];
+            extent = widen(extent, entry, max);
+            i += BLOCK << level;
+        }
+        for (; i < to; i++) {
+            extent = widen(extent, points.getY(i), max);
+        }
+        return extent;
+    }
+
+    private static double widen(double extent, double y, boolean max) {
+        if (max) return y > extent ? y : extent;
+        return y < extent ? y : extent;
+    }
+
+    /**
+     * @return index of the first point whose x is at least {@code x}, or the size if none is
+     */
+    private int ceiling(double x) {
+        return ceiling(x, 0, points.size());
+    }
+
+    /**
+     * Binary search for {@link #ceiling(double)} within {@code [from, to)}
+     */
+    private int ceiling(double x, int from, int to) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (points.getX(mid) < x) from = mid + 1;
+            else to = mid;
+        }
+        return from;
+    }
+
+    /**
+     * @return index just past the last point whose x is at most {@code x}
+     */
+    private int floor(double x) {
+        int from = 0;
+        int to = points.size();
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (points.getX(mid) <= x) from = mid + 1;
+            else to = mid;
+        }
+        return from;
+    }
+
+    /**
+     * Visits every point in a region, in x order. Finds the points within
+     * its x range by binary search, then skips whole entries of the pyramid
+     * that lie above or below it.
+     *
+     * @param bound region to search, edges included
+     */
+    @Override
+    public void query(Rectangle2D bound, PointVisitor visitor) {
+        query(ceiling(bound.getMinX()), floor(bound.getMaxX()), bound.getMinY(), bound.getMaxY(), visitor);
+    }
+
+    /**
+     * Helper for {@link #query(Rectangle2D, PointVisitor)} over the points in {@code [from, to)}
+     */
+    private void query(int from, int to, double minY, double maxY, PointVisitor visitor) {
+        int i = from;
+        while (i < to) {
+            // Take the largest aligned entry that fits, skipping it if it misses
+            int level = entryLevel(i, to);
+            if (level < 0) {
+                double y = points.getY(i);
+                if (y >= minY && y <= maxY) visitor.visit(i, points.getX(i), y);
+                i++;
+                continue;
+            }
+            int entry = i >> (BLOCK_SHIFT + level);
+            int end = i + (BLOCK << level);
+            if (maxs[level][entry] >= minY && mins[level][entry] <= maxY) {
+                for (int p = i; p < end; p++) {
+                    double y = points.getY(p);
+                    if (y >= minY && y <= maxY) visitor.visit(p, points.getX(p), y);
+                }
+            }
+            i = end;
+        }
+    }
+
+    /**
+     * @return highest level with an entry starting at {@code i} and ending by {@code to}, or -1 if none
+     */
+    private int entryLevel(int i, int to) {
+        int level = -1;
+        while (level + 1 < mins.length && (i & ((BLOCK << (level + 1)) - 1)) == 0
+                && i + (BLOCK << (level + 1)) <= to) level++;
+        return level;
+    }
+
+    @Override
+    public void query(Rectangle2D bound, PointBuffer result) {
+        result.clear();
+        query(bound, (PointVisitor) result);
+    }
+
+    /**
+     * Counts the points in a region. Entries of the pyramid wholly inside
+     * the region's y range are counted without reading their points.
+     *
+     * @param bound region to search, edges included
+     * @return number of points in the region
+     */
+    @Override
+    public long count(Rectangle2D bound) {
+        int to = floor(bound.getMaxX());
+        double minY = bound.getMinY();
+        double maxY = bound.getMaxY();
+        long count = 0;
+        int i = ceiling(bound.getMinX());
+        while (i < to) {
+            int level = entryLevel(i, to);
+            if (level < 0) {
+                double y = points.getY(i);
+                if (y >= minY && y <= maxY) count++;
+                i++;
+                continue;
+            }
+            int entry = i >> (BLOCK_SHIFT + level);
+            int end = i + (BLOCK << level);
+            if (mins[level][entry] >= minY && maxs[level][entry] <= maxY) {
+                count += end - i;
+            } else if (maxs[level][entry] >= minY && mins[level][entry] <= maxY) {
+                for (int p = i; p < end; p++) {
+                    double y = points.getY(p);
+                    if (y >= minY && y <= maxY) count++;
+                }
+            }
+            i = end;
+        }
+        return count;
+    }
+
+    /**
+     * Finds the {@code k} points nearest to a location, nearest first, with
+     * each axis scaled before measuring distance. Searches the pyramid
+     * depth first as a binary tree over x, taking the half nearer in x
+     * first and skipping entries whose extent is farther than the
+     * {@code k}th point found.
+     *
+     * @param scaleX      factor applied to x offsets
+     * @param scaleY      factor applied to y offsets
+     * @param maxDistance scaled distance beyond which points are ignored
+     * @param result      buffer to fill, reused between queries
+     */
+    @Override
+    public void nearest(double x, double y, double scaleX, double scaleY, int k, double maxDistance,
+                        PointBuffer result) {
+        result.clear();
+        if (k <= 0 || points.isEmpty()) return;
+        NearestSearch search = new NearestSearch(x, y, scaleX, scaleY, Math.min(k, points.size()),
+                maxDistance);
+        search.run(mins.length - 1, 0);
+        for (int i = 0; i < search.foundSize; i++) {
+            int p = search.found[i];
+            result.visit(p, points.getX(p), points.getY(p));
+        }
+    }
+
+    /**
+     * State of a nearest neighbor search. Points found are kept sorted
+     * nearest first, {@code k} being small.
+     */
+    private final class NearestSearch {
+        private final double x;
+        private final double y;
+        private final double scaleX;
+        private final double scaleY;
+        private double limit; // squared distance a point must beat to be kept
+
+        private final int[] found;
+        private final double[] foundDistances;
+        private int foundSize;
+
+        NearestSearch(double x, double y, double scaleX, double scaleY, int k, double maxDistance) {
+            this.x = x;
+            this.y = y;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            limit = maxDistance * maxDistance;
+            found = new int[k];
+            foundDistances = new double[k];
+        }
+
+        /**
+         * Searches an entry of the pyramid
+         */
+        void run(int level, int entry) {
+            int from = entry << (BLOCK_SHIFT + level);
+            int to = Math.min(from + (BLOCK << level), points.size());
+            if (from >= to || distance2(from, to, level, entry) > limit) return;
+
+            if (level == 0) {
+                for (int p = from; p < to; p++) consider(p);
+                return;
+            }
+            int left = 2 * entry;
+            int right = left + 1;
+            if (right << (BLOCK_SHIFT + level - 1) < points.size()
+                    && x >= points.getX(right << (BLOCK_SHIFT + level - 1))) {
+                run(level - 1, right);
+                run(level - 1, left);
+            } else {
+                run(level - 1, left);
+                run(level - 1, right);
+            }
+        }
+
+        /**
+         * Squared scaled distance from the location to the extent of the points in an entry
+         */
+        private double distance2(int from, int to, int level, int entry) {
+            double dx = Math.max(0, Math.max(points.getX(from) - x, x - points.getX(to - 1))) * scaleX;
+            double dy = Math.max(0, Math.max(mins[level][entry] - y, y - maxs[level][entry])) * scaleY;
+            return dx * dx + dy * dy;
+        }
+
+        private void consider(int p) {
+            double dx = (points.getX(p) - x) * scaleX;
+            double dy = (points.getY(p) - y) * scaleY;
+            double distance = dx * dx + dy * dy;
+            if (distance > limit || foundSize == found.length && distance >= limit) return;
+
+            // Insert in order, dropping the farthest once full
+            int i = Math.min(foundSize, found.length - 1);
+            while (i > 0 && foundDistances[i - 1] > distance) {
+                found[i] = found[i - 1];
+                foundDistances[i] = foundDistances[i - 1];
+                i--;
+            }
+            found[i] = p;
+            foundDistances[i] = distance;
+            if (foundSize < found.length) foundSize++;
+            if (foundSize == found.length) limit = foundDistances[foundSize - 1];
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package me.jeanlucthumm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Follows a CSV file that keeps being appended to. Polls the file for new
+ * bytes, parses only those, and hands the new points to the
+ * {@link Renderer}, which inserts them between renders and redraws only the
+ * tiles they touched. Parsing happens on its own thread, so interaction
+ * carries on while data streams in. If every index is concurrent, see
+ * {@link PointIndex#isConcurrent()}, new points are inserted right away on
+ * every core instead, and the renderer only redraws what changed. Series
+ * that keep a window of recent points drop the oldest after each batch, and
+ * keep dropping them as they age even when no rows arrive.
+ *
+ * @author Jean-Luc Thumm
+ */
+class Tailer {
+
+    private static final long POLL_INTERVAL = 100; // milliseconds between checks for new rows
+
+    private final CSVReader reader;
+    private final String path;
+    private final Series[] series;
+    private final Renderer renderer;
+    private final Metrics metrics;
+    private final boolean concurrent; // whether indexes take inserts on any thread, even while rendering
+    private ScheduledExecutorService poller;
+
+    // Totals since following started
+    private volatile long rows;     // written by the poller only
+    private volatile long dropped;  // written by the render worker only, or the poller if concurrent
+    private volatile long expired;  // written by the render worker only
+
+    /**
+     * @param reader reader positioned where following should start
+     */
+    Tailer(CSVReader reader, String path, Series[] series, Renderer renderer, Metrics metrics) {
+        this.reader = reader;
+        this.path = path;
+        this.series = series;
+        this.renderer = renderer;
+        this.metrics = metrics;
+        concurrent = Arrays.stream(series).allMatch(s -> s.getIndex().isConcurrent());
+    }
+
+    /**
+     * Starts polling the file, if not already
+     */
+    void start() {
+        if (poller != null) return;
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tailer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::poll, 0, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling. Rows already read are still inserted.
+     */
+    void stop() {
+        if (poller == null) return;
+        poller.shutdownNow();
+        poller = null;
+    }
+
+    boolean isRunning() {
+        return poller != null;
+    }
+
+    private void poll() {
+        PointColumns[] batch;
+        long start = System.nanoTime();
+        try {
+            batch = reader.readAppended();
+        } catch (IOException e) {
+            System.err.println(CSVReader.IOERROR_MSG + path);
+            return;
+        }
+        long read = reader.getRowCount();
+        if (read == 0) {
+            if (Main.WINDOW_SECONDS > 0) renderer.update(this::expire); // rows age out of the window regardless
+            return;
+        }
+
+        rows += read;
+        metrics.recordIngest(read, System.nanoTime() - start);
+        if (concurrent) {
+            insert(batch, read);
+            renderer.update(() -> { }); // picks up what changed
+        } else {
+            renderer.update(() -> insert(batch, read));
+        }
+    }
+
+    /**
+     * Inserts a batch of points, on every core if indexes are concurrent, then
+     * removes those that fell out of windows. Runs on the render worker unless
+     * indexes are concurrent.
+     */
+    private void insert(PointColumns[] batch, long read) {
+        Metrics.IngestEvent event = new Metrics.IngestEvent();
+        event.begin();
+        int rejected = 0;
+        for (int s = 0; s < series.length; s++) {
+            PointIndex index = series[s].getIndex();
+            PointColumns points = batch[s];
+            if (concurrent) {
+                rejected += (int) IntStream.range(0, points.size()).parallel()
+                        .filter(i -> !index.add(points.getX(i), points.getY(i))).count();
+                continue;
+            }
+            Retention retention = series[s].getRetention();
+            for (int i = 0; i < points.size(); i++) {
+                double x = points.getX(i);
+                double y = points.getY(i);
+                if (!index.add(x, y)) rejected++;
+                else if (retention != null) retention.record(x, y);
+            }
+        }
+        dropped += rejected;
+        int removed = expire();
+        event.end();
+        if (event.shouldCommit()) {
+            long size = 0;
+            long bytes = 0;
+            for (Series s : series) {
+                size += s.getIndex().getSize();
+                bytes += s.getIndex().getMemoryBytes();
+            }
+            event.rows = (int) read;
+            event.dropped = rejected;
+            event.expired = removed;
+            event.treeSize = size;
+            event.treeBytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Removes the points that fell out of the window of each series. Runs on the render worker.
+     *
+     * @return number of points removed
+     */
+    private int expire() {
+        long now = System.nanoTime();
+        int removed = 0;
+        for (Series s : series) {
+            if (s.getRetention() != null) removed += s.getRetention().expire(now);
+        }
+        expired += removed;
+        return removed;
+    }
+
+    /**
+     * @return number of rows read since following started
+     */
+    long getRowCount() {
+        return rows;
+    }
+
+    /**
+     * @return number of points that were not inserted, being duplicates, not finite, out of x order in a sorted
+     * series, or in a compacted series, which is read only
+     */
+    long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * @return number of points removed since following started, having fallen out of the window of their series
+     */
+    long getExpiredCount() {
+        return expired;
+    }
+}
@@ -0,0 +1,184 @@
+package me.jeanlucthumm;
+
+import javafx.scene.image.Image;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least recently used cache of rendered tiles. Tiles are keyed by
+ * series, quantized zoom level and tile coordinate, so panning at a fixed
+ * zoom finds most of what it needs already rendered.
+ *
+ * @author Jean-Luc Thumm
+ */
+class TileCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Image> tiles = new LinkedHashMap<>(16, 0.75f, true); // access order
+
+    // Counters
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes memory the cached tiles may use before the least
+     *                 recently used ones are evicted
+     */
+    TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up a tile, counting a hit or a miss
+     *
+     * @return SE, or {@code null} if it is not cached
+     */
+    synchronized Image get(int series, int zoom, long x, long y) {
+        Image tile = tiles.get(new Key(series, zoom, x, y));
+        if (tile == null) misses++;
+        else hits++;
+        return tile;
+    }
+
+    /**
+     * Looks up a tile without counting a hit or a miss, for lookups that
+     * repeat one already counted
+     *
+     * @return SE, or {@code null} if it is not cached
+     */
+    synchronized Image peek(int series, int zoom, long x, long y) {
+        return tiles.get(new Key(series, zoom, x, y));
+    }
+
+    synchronized void put(Key key, Image tile) {
+        put(key.series, key.zoom, key.x, key.y, tile);
+    }
+
+    synchronized void put(int series, int zoom, long x, long y, Image tile) {
+        Image old = tiles.put(new Key(series, zoom, x, y), tile);
+        if (old != null) bytes -= bytesOf(old);
+        bytes += bytesOf(tile);
+        // Evict least recently used tiles until back under budget, always keeping the new one
+        while (bytes > maxBytes && tiles.size() > 1) {
+            Key eldest = tiles.keySet().iterator().next();
+            bytes -= bytesOf(tiles.remove(eldest));
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops a tile, if it is cached
+     */
+    synchronized void remove(Key key) {
+        Image tile = tiles.remove(key);
+        if (tile != null) bytes -= bytesOf(tile);
+    }
+
+    /**
+     * Drops every tile a filter accepts, such as tiles whose region changed.
+     * Counters are kept.
+     *
+     * @return number of tiles dropped
+     */
+    synchronized int removeIf(Filter filter) {
+        int removed = 0;
+        for (Iterator<Map.Entry<Key, Image>> it = tiles.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, Image> entry = it.next();
+            Key key = entry.getKey();
+            if (!filter.accept(key.series, key.zoom, key.x, key.y)) continue;
+            bytes -= bytesOf(entry.getValue());
+            it.remove();
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Drops every tile. Counters are kept.
+     */
+    synchronized void clear() {
+        tiles.clear();
+        bytes = 0;
+    }
+
+    synchronized int size() {
+        return tiles.size();
+    }
+
+    synchronized long getMemoryBytes() {
+        return bytes;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return fraction of lookups that were hits, or 0 if there were none
+     */
+    synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d tiles (%.1f MB), %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                tiles.size(), bytes / 1e6, hits, misses, 100 * getHitRate(), evictions);
+    }
+
+    /**
+     * Memory used by a tile's pixels, at 4 bytes per pixel
+     */
+    private static long bytesOf(Image tile) {
+        return 4L * (long) tile.getWidth() * (long) tile.getHeight();
+    }
+
+    /**
+     * Selects tiles by series, zoom level and tile coordinate
+     */
+    interface Filter {
+        boolean accept(int series, int zoom, long x, long y);
+    }
+
+    /**
+     * Series, quantized zoom level and coordinate of a tile
+     */
+    static final class Key {
+        final int series;
+        final int zoom;
+        final long x;
+        final long y;
+
+        Key(int series, int zoom, long x, long y) {
+            this.series = series;
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return series == other.series && zoom == other.zoom && x == other.x && y == other.y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * series + zoom) + Long.hashCode(x)) + Long.hashCode(y);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package me.jeanlucthumm;
+
+/**
+ * What a render traversal of a {@link PointIndex} visited and drew. Counted
+ * with plain increments by the single thread running the traversal, then
+ * handed to {@link Metrics} once per render.
+ *
+ * @author Jean-Luc Thumm
+ */
+class TraversalStats {
+
+    long visited;       // nodes the traversal looked at
+    long pruned;        // nodes skipped, being outside the view or empty
+    long summarized;    // nodes drawn as their summary instead of descending into them
+    long points;        // points drawn one by one
+
+    /**
+     * Starts counting over
+     */
+    void clear() {
+        visited = 0;
+        pruned = 0;
+        summarized = 0;
+        points = 0;
+    }
+}
@@ -4,24 +4,32 @@ import javafx.geometry.Point2D;
 import javafx.geometry.Rectangle2D;
 
 class ZoomLevel {
-    private Point2D anchor;
+    // Anchor is kept as primitives so that transforms and input handling allocate nothing
+    private double anchorX;
+    private double anchorY;
     private double widthRatio;
     private double heightRatio;
 
     ZoomLevel(Point2D anchor, double widthRatio, double heightRatio) {
-        this.anchor = anchor;
+        this(anchor.getX(), anchor.getY(), widthRatio, heightRatio);
+    }
+
+    ZoomLevel(double anchorX, double anchorY, double widthRatio, double heightRatio) {
+        this.anchorX = anchorX;
+        this.anchorY = anchorY;
         this.widthRatio = widthRatio;
         this.heightRatio = heightRatio;
     }
 
     ZoomLevel(Rectangle2D unzoomed, Rectangle2D zoomed) {
-        anchor = new Point2D(zoomed.getMinX(), zoomed.getMinY());
+        anchorX = zoomed.getMinX();
+        anchorY = zoomed.getMinY();
         widthRatio = zoomed.getWidth() / unzoomed.getWidth();
         heightRatio = zoomed.getHeight() / unzoomed.getHeight();
     }
 
     ZoomLevel(ZoomLevel level) {
-        this(level.anchor, level.widthRatio, level.heightRatio);
+        this(level.anchorX, level.anchorY, level.widthRatio, level.heightRatio);
     }
 
     double getWidthRatio() {
@@ -32,32 +40,40 @@ class ZoomLevel {
         return heightRatio;
     }
 
+    double toOriginalX(double canvasX) {
+        return anchorX + canvasX / widthRatio;
+    }
+
+    double toOriginalY(double canvasY) {
+        return anchorY + canvasY / heightRatio;
+    }
+
+    double toLocalX(double treeX) {
+        return (treeX - anchorX) * widthRatio;
+    }
+
+    double toLocalY(double treeY) {
+        return (treeY - anchorY) * heightRatio;
+    }
+
     Point2D convertToOriginal(Point2D canvasPt) {
-        double x = anchor.getX() + canvasPt.getX() / widthRatio;
-        double y = anchor.getY() + canvasPt.getY() / heightRatio;
-        return new Point2D(x, y);
+        return new Point2D(toOriginalX(canvasPt.getX()), toOriginalY(canvasPt.getY()));
     }
 
     Rectangle2D convertToOriginal(Rectangle2D canvasRec) {
-        Point2D min = new Point2D(canvasRec.getMinX(), canvasRec.getMinY());
-        Point2D originalMin = convertToOriginal(min);
         double width = canvasRec.getWidth() / widthRatio;
         double height = canvasRec.getHeight() / heightRatio;
-        return new Rectangle2D(originalMin.getX(), originalMin.getY(), width, height);
+        return new Rectangle2D(toOriginalX(canvasRec.getMinX()), toOriginalY(canvasRec.getMinY()), width, height);
     }
 
     Point2D convertToLocal(Point2D treePt) {
-        double x = (treePt.getX() - anchor.getX()) * widthRatio;
-        double y = (treePt.getY() - anchor.getY()) * heightRatio;
-        return new Point2D(x, y);
+        return new Point2D(toLocalX(treePt.getX()), toLocalY(treePt.getY()));
     }
 
     Rectangle2D convertToLocal(Rectangle2D treeRec) {
-        Point2D min = new Point2D(treeRec.getMinX(), treeRec.getMinY());
-        Point2D localMin = convertToLocal(min);
         double width = treeRec.getWidth() * widthRatio;
         double height = treeRec.getHeight() * heightRatio;
-        return new Rectangle2D(localMin.getX(), localMin.getY(), width, height);
+        return new Rectangle2D(toLocalX(treeRec.getMinX()), toLocalY(treeRec.getMinY()), width, height);
     }
 
     Point2D convertDeltaToOriginal(Point2D delta) {
@@ -65,34 +81,56 @@ class ZoomLevel {
     }
 
     ZoomLevel zoom(Point2D source, Rectangle2D original, double percent) {
-        double adjPercent = 1 + percent;
-
-        // Adjust ratios and get resultant source offset
-        Point2D prevSource = convertToOriginal(source);
-        ZoomLevel newZoom = new ZoomLevel(anchor, adjPercent * widthRatio, adjPercent * heightRatio);
-        Point2D newSource = newZoom.convertToOriginal(source);
-
-        // Adjust anchor to keep sources the same in original
-        Point2D delta = prevSource.subtract(newSource);
-        newZoom.anchor = anchor.add(delta);
+        ZoomLevel newZoom = new ZoomLevel(this);
+        newZoom.setZoom(source.getX(), source.getY(), percent);
         return newZoom;
     }
 
     void setZoom(Point2D source, Rectangle2D original, double percent) {
+        setZoom(source.getX(), source.getY(), percent);
+    }
+
+    /**
+     * Zooms by {@code percent} around a point on the canvas, which stays where it is
+     */
+    void setZoom(double sourceX, double sourceY, double percent) {
         double adjPercent = 1 + percent;
 
         // Adjust ratios and get resultant source offset
-        Point2D prevSource = convertToOriginal(source);
+        double prevX = toOriginalX(sourceX);
+        double prevY = toOriginalY(sourceY);
         widthRatio = adjPercent * widthRatio;
         heightRatio = adjPercent * heightRatio;
-        Point2D newSource = convertToOriginal(source);
 
         // Adjust anchor to keep sources the same in original
-        Point2D delta = prevSource.subtract(newSource);
-        anchor = anchor.add(delta);
+        anchorX += prevX - toOriginalX(sourceX);
+        anchorY += prevY - toOriginalY(sourceY);
+    }
+
+    /**
+     * Zooms like {@link #setZoom(double, double, double)}, but no further in than the given ratios
+     */
+    void setZoom(double sourceX, double sourceY, double percent, double maxWidthRatio, double maxHeightRatio) {
+        double limit = Math.min(maxWidthRatio / widthRatio, maxHeightRatio / heightRatio);
+        setZoom(sourceX, sourceY, Math.min(percent, Math.max(0, limit - 1)));
     }
 
     void setPanDelta(Point2D delta) {
-        anchor = anchor.add(delta);
+        setPanDelta(delta.getX(), delta.getY());
+    }
+
+    /**
+     * Moves the view by a delta in original coordinates
+     */
+    void setPanDelta(double deltaX, double deltaY) {
+        anchorX += deltaX;
+        anchorY += deltaY;
+    }
+
+    /**
+     * Moves the view by a delta in canvas coordinates
+     */
+    void panByLocal(double deltaX, double deltaY) {
+        setPanDelta(deltaX / widthRatio, deltaY / heightRatio);
     }
 }
@@ -0,0 +1,88 @@
+package me.jeanlucthumm;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Inserts every point of a {@link Dataset} into a {@link ConcurrentQuadTree}
+ * from several threads, each point from two of them, while another thread
+ * keeps looking points up, to check that the tree is linearizable. Run it
+ * alone, as often as needed, with {@code mvn test -Dtest=ConcurrentQuadTreeStressTest}.
+ *
+ * @author Jean-Luc Thumm
+ */
+class ConcurrentQuadTreeStressTest {
+
+    private static final int SIZE = 100_000;
+    private static final long SEED = 42;
+
+    /**
+     * Checks that exactly one insert of each point succeeds, that a lookup
+     * never misses a point whose insert returned or that an earlier lookup
+     * found, and that the tree ends up with every point
+     */
+    @ParameterizedTest
+    @EnumSource(Dataset.class)
+    void insertsAreLinearizable(Dataset dataset) throws InterruptedException {
+        PointColumns points = dataset.generate(SIZE, SEED);
+        int writers = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+        ConcurrentQuadTree tree = new ConcurrentQuadTree(points.getBounds());
+        AtomicIntegerArray wins = new AtomicIntegerArray(SIZE);
+        AtomicIntegerArray done = new AtomicIntegerArray(SIZE); // 1 once an insert returned, 2 once a lookup found it
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong missed = new AtomicLong();
+
+        Thread reader = new Thread(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (writing.get()) {
+                int i = random.nextInt(SIZE);
+                int before = done.get(i);
+                boolean found = tree.contains(points.getX(i), points.getY(i));
+                if (before > 0 && !found) missed.incrementAndGet();
+                if (found) done.set(i, 2);
+            }
+        });
+        reader.start();
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            threads[w] = new Thread(() -> {
+                for (int i = 0; i < SIZE; i++) {
+                    int owner = i % writers;
+                    if (owner != writer && (owner + 1) % writers != writer) continue;
+                    if (tree.add(points.getX(i), points.getY(i))) wins.incrementAndGet(i);
+                    done.compareAndSet(i, 0, 1);
+                }
+            });
+            threads[w].start();
+        }
+        for (Thread thread : threads) thread.join();
+        writing.set(false);
+        reader.join();
+        assertEquals(0, missed.get(), "lookups that missed a point already inserted or found");
+
+        // Exactly one insert of each distinct point succeeded
+        Map<List<Double>, Integer> distinct = new HashMap<>();
+        long absent = 0;
+        for (int i = 0; i < SIZE; i++) {
+            distinct.merge(Arrays.asList(points.getX(i), points.getY(i)), wins.get(i), Integer::sum);
+            if (!tree.contains(points.getX(i), points.getY(i))) absent++;
+        }
+        assertEquals(0, absent, "points missing once every insert returned");
+        assertEquals(0, distinct.values().stream().filter(won -> won != 1).count(),
+                "points not inserted exactly once");
+        assertEquals(distinct.size(), tree.getSize());
+        assertEquals(distinct.size(), tree.count(tree.getBounds()));
+    }
+}
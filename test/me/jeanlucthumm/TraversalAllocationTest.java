@@ -0,0 +1,99 @@
+package me.jeanlucthumm;
+
+import javafx.geometry.Rectangle2D;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.lang.management.ManagementFactory;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that drawing a tile by traversing an index held in memory, the way
+ * {@link Renderer} does, allocates nothing once warmed up. Only the
+ * traversal into a {@link PixelRaster} is covered: a render pass also
+ * allocates its list of tiles and the images handed to the JavaFX
+ * application thread.
+ *
+ * @author Jean-Luc Thumm
+ */
+class TraversalAllocationTest {
+
+    private static final int SIZE = 10_000;
+    private static final long SEED = 42;
+    private static final int ROUNDS = 10;   // the last round is measured, the others warm up
+    private static final int RENDERS = 16;  // tiles drawn per round
+
+    @ParameterizedTest
+    @EnumSource(Dataset.class)
+    void treeTraversalAllocatesNothing(Dataset dataset) {
+        PointColumns points = dataset.generate(SIZE, SEED);
+        assertNoAllocation(new QuadTree(points.getBounds(), points));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Dataset.class)
+    void concurrentTreeTraversalAllocatesNothing(Dataset dataset) {
+        PointColumns points = dataset.generate(SIZE, SEED);
+        ConcurrentQuadTree tree = new ConcurrentQuadTree(points.getBounds());
+        IntStream.range(0, SIZE).parallel().forEach(i -> tree.add(points.getX(i), points.getY(i)));
+        assertNoAllocation(tree);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Dataset.class)
+    void compactTreeTraversalAllocatesNothing(Dataset dataset) {
+        PointColumns points = dataset.generate(SIZE, SEED);
+        QuadTree tree = new QuadTree(points.getBounds(), points);
+        assertNoAllocation(tree.compact(1e-6 * tree.getBounds().getWidth(), 1e-6 * tree.getBounds().getHeight()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Dataset.class)
+    void sortedIndexTraversalAllocatesNothing(Dataset dataset) {
+        assertNoAllocation(new SortedIndex(Dataset.sortedByX(dataset.generate(SIZE, SEED))));
+    }
+
+    /**
+     * Draws the whole index into one tile, at full detail and at the
+     * coarsest grain, until warmed up, then checks that doing it again
+     * allocates nothing
+     */
+    private static void assertNoAllocation(PointIndex index) {
+        assumeTrue(allocatedBytes() > 0, "the JVM does not count allocated bytes");
+        int tile = Renderer.TILE_SIZE;
+        Rectangle2D bounds = index.getBounds();
+        Rectangle2D tileBounds = new Rectangle2D(0, 0, tile, tile);
+        PixelRaster raster = new PixelRaster(tile, tile, 0xFF0000FF, 0xFF000000, false);
+        TraversalStats traversal = new TraversalStats();
+        ZoomLevel whole = new ZoomLevel(bounds.getMinX(), bounds.getMinY(),
+                tile / bounds.getWidth(), tile / bounds.getHeight());
+
+        long allocated = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = allocatedBytes();
+            long overhead = allocatedBytes() - start; // reading the counter may allocate itself
+            start += overhead;
+            for (int r = 0; r < RENDERS; r++) {
+                raster.clear();
+                index.graphPointsAndBoundaries(raster, whole, tileBounds, () -> false, traversal);
+                raster.clear();
+                index.graphPointsAndBoundaries(raster, whole, tileBounds, Renderer.PREVIEW_GRAIN, () -> false,
+                        traversal);
+            }
+            allocated = allocatedBytes() - start - overhead;
+        }
+        assertEquals(0, allocated, "bytes allocated drawing " + RENDERS + " tiles twice");
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or 0 where the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return 0;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}